@@ -12,6 +12,10 @@ import java.util.List;
  */
 public abstract class BaseDecoder<T extends MQTTMessage> {
 
+    // Cached enum values, values() creates a new array every time
+    private static final MQTTMessage.MessageType[] MESSAGE_TYPES = MQTTMessage.MessageType.values();
+    private static final MQTTMessage.QoSLevel[] QOS_LEVELS = MQTTMessage.QoSLevel.values();
+
     /**
      * Netty decoder method
      *
@@ -38,11 +42,14 @@ public abstract class BaseDecoder<T extends MQTTMessage> {
             return;
         }
 
+        // Only the current message, following messages may already be in the buffer
+        ByteBuf frame = in.readSlice(message.getRemainingLength());
+
         // Variable Header
-        decodeVariableHeader(message, in);
+        decodeVariableHeader(message, frame);
 
         // Payload
-        decodePayload(message, in);
+        decodePayload(message, frame);
 
         // Validate
         message.validate();
@@ -98,9 +105,9 @@ public abstract class BaseDecoder<T extends MQTTMessage> {
             return false;
         }
 
-        message.setMessageType(MQTTMessage.MessageType.values()[messageType]);
+        message.setMessageType(MESSAGE_TYPES[messageType]);
         message.setDupFlag(dupFlag);
-        message.setQosLevel(MQTTMessage.QoSLevel.values()[qosLevel]);
+        message.setQosLevel(QOS_LEVELS[qosLevel]);
         message.setRetain(retain);
         message.setRemainingLength(remainingLength);
         return true;
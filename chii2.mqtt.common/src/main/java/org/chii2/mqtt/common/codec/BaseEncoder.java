@@ -21,7 +21,7 @@ public abstract class BaseEncoder<T extends MQTTMessage> {
         message.validate();
 
         // Write Fixed Header
-        out.writeBytes(message.getFixedHeader());
+        message.encodeFixedHeader(out);
 
         // Write Variable Header
         encodeVariableHeader(message, out);
@@ -13,7 +13,7 @@ public class ConnectEncoder extends BaseEncoder<ConnectMessage> {
     protected void encodeVariableHeader(ConnectMessage message, ByteBuf out) {
         // Write Variable Header
         // Protocol Name 8 bytes
-        out.writeBytes(MQTTUtils.encodeString("Protocol Name", message.getProtocolName()));
+        MQTTUtils.encodeString("Protocol Name", message.getProtocolName(), out);
         // Protocol Version 1 byte
         out.writeByte(message.getProtocolVersion());
         // Connection Flags 1 byte
@@ -43,17 +43,17 @@ public class ConnectEncoder extends BaseEncoder<ConnectMessage> {
     protected void encodePayload(ConnectMessage message, ByteBuf out) {
         // Write Payload
         // Client ID
-        out.writeBytes(MQTTUtils.encodeString("Client ID", message.getClientID()));
+        MQTTUtils.encodeString("Client ID", message.getClientID(), out);
         // Will Topic & Will Message
         if (message.isWillFlag()) {
-            out.writeBytes(MQTTUtils.encodeString("Will Topic", message.getWillTopic()));
-            out.writeBytes(MQTTUtils.encodeString("Will Message", message.getWillMessage()));
+            MQTTUtils.encodeString("Will Topic", message.getWillTopic(), out);
+            MQTTUtils.encodeString("Will Message", message.getWillMessage(), out);
         }
         // User Name & Password
         if (message.isUserNameFlag()) {
-            out.writeBytes(MQTTUtils.encodeString("User Name", message.getUserName()));
+            MQTTUtils.encodeString("User Name", message.getUserName(), out);
             if (message.isPasswordFlag()) {
-                out.writeBytes(MQTTUtils.encodeString("Password", message.getPassword()));
+                MQTTUtils.encodeString("Password", message.getPassword(), out);
             }
         }
     }
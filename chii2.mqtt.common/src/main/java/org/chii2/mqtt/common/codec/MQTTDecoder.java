@@ -1,65 +1,137 @@
 package org.chii2.mqtt.common.codec;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishChunk;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * MQTT Message Decoder
  * This will be called by Netty pipeline, and route to specific message decoder.
+ * <p/>
+ * PUBLISH messages larger than the chunk threshold are not buffered as a whole, the message is
+ * emitted with headers only, followed by the Payload as {@link PublishChunk} messages.
+ * This bounds the memory used by each channel regardless of the message size.
  */
 public class MQTTDecoder extends ByteToMessageDecoder {
 
-    // Message Type <---> Decoder Map
-    protected Map<MQTTMessage.MessageType, BaseDecoder> decoderMap = new HashMap<>();
+    // Message Type <---> Decoder, indexed by the 4-bit Message Type in the first byte
+    // Decoders are stateless, shared by all the channels
+    private static final BaseDecoder[] DECODERS = new BaseDecoder[16];
+    // PUBLISH Decoder, also decodes chunked messages
+    private static final PublishDecoder PUBLISH_DECODER = new PublishDecoder();
+
+    // Remaining Length above which PUBLISH Payload is decoded in chunks
+    private final int chunkThreshold;
+    // Payload bytes of current chunked PUBLISH message not received yet
+    private int chunkRemaining;
+    // Drop the rest of current chunked PUBLISH message, its headers are incorrect
+    private boolean chunkDiscard;
     // The Logger
     private final Logger logger = LoggerFactory.getLogger(MQTTDecoder.class);
 
+    static {
+        register(MQTTMessage.MessageType.CONNECT, new ConnectDecoder());
+        register(MQTTMessage.MessageType.CONNACK, new ConnAckDecoder());
+        register(MQTTMessage.MessageType.PUBLISH, PUBLISH_DECODER);
+        register(MQTTMessage.MessageType.PUBACK, new PubAckDecoder());
+        register(MQTTMessage.MessageType.SUBSCRIBE, new SubscribeDecoder());
+        register(MQTTMessage.MessageType.SUBACK, new SubAckDecoder());
+        register(MQTTMessage.MessageType.UNSUBSCRIBE, new UnsubscribeDecoder());
+        register(MQTTMessage.MessageType.DISCONNECT, new DisconnectDecoder());
+        register(MQTTMessage.MessageType.PINGREQ, new PingReqDecoder());
+        register(MQTTMessage.MessageType.PINGRESP, new PingRespDecoder());
+        register(MQTTMessage.MessageType.UNSUBACK, new UnsubAckDecoder());
+        register(MQTTMessage.MessageType.PUBCOMP, new PubCompDecoder());
+        register(MQTTMessage.MessageType.PUBREC, new PubRecDecoder());
+        register(MQTTMessage.MessageType.PUBREL, new PubRelDecoder());
+    }
+
     public MQTTDecoder() {
-        super();
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param chunkThreshold Remaining Length in bytes above which PUBLISH Payload is decoded in chunks
+     */
+    public MQTTDecoder(int chunkThreshold) {
+        this.chunkThreshold = chunkThreshold;
+    }
 
-        // Init Map
-        decoderMap.put(MQTTMessage.MessageType.CONNECT, new ConnectDecoder());
-        decoderMap.put(MQTTMessage.MessageType.CONNACK, new ConnAckDecoder());
-        decoderMap.put(MQTTMessage.MessageType.PUBLISH, new PublishDecoder());
-        decoderMap.put(MQTTMessage.MessageType.PUBACK, new PubAckDecoder());
-        decoderMap.put(MQTTMessage.MessageType.SUBSCRIBE, new SubscribeDecoder());
-        decoderMap.put(MQTTMessage.MessageType.SUBACK, new SubAckDecoder());
-        decoderMap.put(MQTTMessage.MessageType.UNSUBSCRIBE, new UnsubscribeDecoder());
-        decoderMap.put(MQTTMessage.MessageType.DISCONNECT, new DisconnectDecoder());
-        decoderMap.put(MQTTMessage.MessageType.PINGREQ, new PingReqDecoder());
-        decoderMap.put(MQTTMessage.MessageType.PINGRESP, new PingRespDecoder());
-        decoderMap.put(MQTTMessage.MessageType.UNSUBACK, new UnsubAckDecoder());
-        decoderMap.put(MQTTMessage.MessageType.PUBCOMP, new PubCompDecoder());
-        decoderMap.put(MQTTMessage.MessageType.PUBREC, new PubRecDecoder());
-        decoderMap.put(MQTTMessage.MessageType.PUBREL, new PubRelDecoder());
+    /**
+     * Register the Decoder of the Message Type
+     *
+     * @param messageType Message Type
+     * @param decoder     Decoder
+     */
+    private static void register(MQTTMessage.MessageType messageType, BaseDecoder decoder) {
+        DECODERS[messageType.byteValue()] = decoder;
     }
 
     @Override
     @SuppressWarnings("unchecked")
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        // Payload of chunked PUBLISH message
+        if (chunkRemaining > 0) {
+            decodeChunk(in, out);
+            return;
+        }
+
         if (in.isReadable()) {
             in.markReaderIndex();
-            // Calculate Message Type
-            byte firstByte = in.readByte();
-            MQTTMessage.MessageType messageType = MQTTMessage.MessageType.values()[(firstByte & 0x00F0) >> 4];
-            in.resetReaderIndex();
+            // Message Type from the first byte, without moving the reader index
+            int messageType = (in.getByte(in.readerIndex()) & 0x00F0) >> 4;
 
             // Decode
-            BaseDecoder decoder = decoderMap.get(messageType);
+            BaseDecoder decoder = DECODERS[messageType];
+            if (decoder == null) {
+                logger.info("Unknown Message Type {}, data dropped.", messageType);
+                in.skipBytes(in.readableBytes());
+                return;
+            }
             try {
+                // Large PUBLISH message
+                if (decoder == PUBLISH_DECODER && chunkThreshold < Integer.MAX_VALUE) {
+                    int size = out.size();
+                    int length = PUBLISH_DECODER.decodeHeader(in, chunkThreshold, out);
+                    if (length >= 0) {
+                        chunkDiscard = out.size() == size;
+                        if (chunkDiscard) {
+                            logger.info("PUBLISH format incorrect, message dropped.");
+                        } else if (length == 0) {
+                            out.add(new PublishChunk(Unpooled.EMPTY_BUFFER, true));
+                        }
+                        chunkRemaining = length;
+                        return;
+                    }
+                }
                 decoder.decode(ctx, in, out);
             } catch (IllegalStateException e) {
-                logger.info("{} format incorrect, message dropped:{}", messageType, ExceptionUtils.getMessage(e));
+                logger.info("{} format incorrect, message dropped:{}", MQTTMessage.MessageType.values()[messageType], ExceptionUtils.getMessage(e));
             }
         }
     }
+
+    /**
+     * Decode the Payload of chunked PUBLISH message with received bytes
+     *
+     * @param in  Input ByteBuf
+     * @param out Output
+     */
+    private void decodeChunk(ByteBuf in, List<Object> out) {
+        int length = Math.min(chunkRemaining, in.readableBytes());
+        chunkRemaining = chunkRemaining - length;
+        if (chunkDiscard) {
+            in.skipBytes(length);
+        } else {
+            out.add(new PublishChunk(in.readBytes(length), chunkRemaining == 0));
+        }
+    }
 }
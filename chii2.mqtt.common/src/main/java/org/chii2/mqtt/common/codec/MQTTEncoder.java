@@ -1,52 +1,101 @@
 package org.chii2.mqtt.common.codec;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.EncoderException;
 import io.netty.handler.codec.MessageToByteEncoder;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * MQTT Message Encoder
  * This will be called by Netty pipeline, and route to specific message encoder.
+ * Stateless, one instance can be shared by all the channels.
  */
+@ChannelHandler.Sharable
 public class MQTTEncoder extends MessageToByteEncoder<MQTTMessage> {
 
-    // Message Type <---> Decoder Map
-    protected Map<MQTTMessage.MessageType, BaseEncoder> encoderMap = new HashMap<>();
+    // Message Type <---> Encoder, indexed by Message Type value
+    // Encoders are stateless, shared by all the channels
+    private static final BaseEncoder[] ENCODERS = new BaseEncoder[16];
+    // PUBLISH Encoder, Payload is written without copy
+    private static final PublishEncoder PUBLISH_ENCODER = new PublishEncoder();
     // The Logger
     private final Logger logger = LoggerFactory.getLogger(MQTTEncoder.class);
 
+    static {
+        register(MQTTMessage.MessageType.CONNECT, new ConnectEncoder());
+        register(MQTTMessage.MessageType.CONNACK, new ConnAckEncoder());
+        register(MQTTMessage.MessageType.PUBLISH, PUBLISH_ENCODER);
+        register(MQTTMessage.MessageType.PUBACK, new PubAckEncoder());
+        register(MQTTMessage.MessageType.SUBSCRIBE, new SubscribeEncoder());
+        register(MQTTMessage.MessageType.SUBACK, new SubAckEncoder());
+        register(MQTTMessage.MessageType.UNSUBSCRIBE, new UnsubscribeEncoder());
+        register(MQTTMessage.MessageType.DISCONNECT, new DisconnectEncoder());
+        register(MQTTMessage.MessageType.PINGREQ, new PingReqEncoder());
+        register(MQTTMessage.MessageType.PINGRESP, new PingRespEncoder());
+        register(MQTTMessage.MessageType.UNSUBACK, new UnsubAckEncoder());
+        register(MQTTMessage.MessageType.PUBCOMP, new PubCompEncoder());
+        register(MQTTMessage.MessageType.PUBREC, new PubRecEncoder());
+        register(MQTTMessage.MessageType.PUBREL, new PubRelEncoder());
+    }
+
     public MQTTEncoder() {
-        super();
-
-        // Init Map
-        encoderMap.put(MQTTMessage.MessageType.CONNECT, new ConnectEncoder());
-        encoderMap.put(MQTTMessage.MessageType.CONNACK, new ConnAckEncoder());
-        encoderMap.put(MQTTMessage.MessageType.PUBLISH, new PublishEncoder());
-        encoderMap.put(MQTTMessage.MessageType.PUBACK, new PubAckEncoder());
-        encoderMap.put(MQTTMessage.MessageType.SUBSCRIBE, new SubscribeEncoder());
-        encoderMap.put(MQTTMessage.MessageType.SUBACK, new SubAckEncoder());
-        encoderMap.put(MQTTMessage.MessageType.UNSUBSCRIBE, new UnsubscribeEncoder());
-        encoderMap.put(MQTTMessage.MessageType.DISCONNECT, new DisconnectEncoder());
-        encoderMap.put(MQTTMessage.MessageType.PINGREQ, new PingReqEncoder());
-        encoderMap.put(MQTTMessage.MessageType.PINGRESP, new PingRespEncoder());
-        encoderMap.put(MQTTMessage.MessageType.UNSUBACK, new UnsubAckEncoder());
-        encoderMap.put(MQTTMessage.MessageType.PUBCOMP, new PubCompEncoder());
-        encoderMap.put(MQTTMessage.MessageType.PUBREC, new PubRecEncoder());
-        encoderMap.put(MQTTMessage.MessageType.PUBREL, new PubRelEncoder());
+        // Prefer direct buffer, messages are written to socket without extra copy
+        super(true);
+    }
+
+    /**
+     * Register the Encoder of the Message Type
+     *
+     * @param messageType Message Type
+     * @param encoder     Encoder
+     */
+    private static void register(MQTTMessage.MessageType messageType, BaseEncoder encoder) {
+        ENCODERS[messageType.byteValue()] = encoder;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        // PUBLISH Payload is not copied into the output buffer, it's shared by composite buffer
+        if (msg instanceof PublishMessage) {
+            PublishMessage message = (PublishMessage) msg;
+            ByteBuf header = ctx.alloc().ioBuffer();
+            try {
+                ByteBuf out = PUBLISH_ENCODER.encodeZeroCopy(ctx, message, header);
+                // Released with the encoded message once written
+                header = null;
+                ctx.write(out, promise);
+            } catch (IllegalStateException e) {
+                logger.info("{} format incorrect, message dropped:{}", message.getMessageType(), ExceptionUtils.getMessage(e));
+                ctx.write(Unpooled.EMPTY_BUFFER, promise);
+            } catch (EncoderException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new EncoderException(e);
+            } finally {
+                if (header != null) {
+                    header.release();
+                }
+                // The encoded message holds its own reference of the shared Payload
+                message.release();
+            }
+        } else {
+            super.write(ctx, msg, promise);
+        }
     }
 
     @Override
     @SuppressWarnings("unchecked")
     protected void encode(ChannelHandlerContext ctx, MQTTMessage msg, ByteBuf out) throws Exception {
         // Encoder
-        BaseEncoder encoder = encoderMap.get(msg.getMessageType());
+        BaseEncoder encoder = ENCODERS[msg.getMessageType().byteValue()];
 
         // Encode
         try {
@@ -6,11 +6,76 @@ import org.chii2.mqtt.common.message.MQTTMessage;
 import org.chii2.mqtt.common.message.PublishMessage;
 import org.chii2.mqtt.common.utils.MQTTUtils;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 /**
  * PUBLISH Message Decoder
  */
 public class PublishDecoder extends BaseDecoder<PublishMessage> {
 
+    /**
+     * Decode only the headers of a large PUBLISH Message, the Payload will be decoded in chunks
+     * Reader index is reset if the message is not large enough or the headers are not fully received.
+     * If the headers are incorrect, nothing is added to the output and the rest of the message should be skipped.
+     *
+     * @param in        Input ByteBuf
+     * @param threshold Remaining Length above which the message is chunked
+     * @param out       Output
+     * @return Length of the rest of the message, -1 if not decoded
+     */
+    public int decodeHeader(ByteBuf in, int threshold, List<Object> out) {
+        // Reset index
+        in.resetReaderIndex();
+
+        // Message
+        PublishMessage message = createMessage();
+
+        // Fixed Header
+        if (!decodeFixedHeader(message, in) || message.getRemainingLength() <= threshold) {
+            in.resetReaderIndex();
+            return -1;
+        }
+
+        // Topic Name length
+        if (in.readableBytes() < 2) {
+            in.resetReaderIndex();
+            return -1;
+        }
+        int headerLength = 2 + in.getUnsignedShort(in.readerIndex());
+        if (message.getQosLevel() == MQTTMessage.QoSLevel.LEAST_ONCE ||
+                message.getQosLevel() == MQTTMessage.QoSLevel.EXACTLY_ONCE) {
+            headerLength = headerLength + 2;
+        }
+        if (headerLength > message.getRemainingLength()) {
+            return message.getRemainingLength();
+        }
+
+        // Full Variable Header received to continue
+        if (in.readableBytes() < headerLength) {
+            in.resetReaderIndex();
+            return -1;
+        }
+
+        // Variable Header
+        decodeVariableHeader(message, in.readSlice(headerLength));
+
+        // Payload follows in chunks
+        message.setContent(ByteBuffer.allocate(0));
+        message.setChunked(true);
+
+        // Validate
+        try {
+            message.validate();
+        } catch (IllegalStateException e) {
+            return message.getRemainingLength() - headerLength;
+        }
+
+        // Output
+        out.add(message);
+        return message.getRemainingLength() - headerLength;
+    }
+
     @Override
     protected PublishMessage createMessage() {
         return new PublishMessage();
@@ -1,6 +1,8 @@
 package org.chii2.mqtt.common.codec;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
 import org.chii2.mqtt.common.message.MQTTMessage;
 import org.chii2.mqtt.common.message.PublishMessage;
 import org.chii2.mqtt.common.utils.MQTTUtils;
@@ -10,10 +12,39 @@ import org.chii2.mqtt.common.utils.MQTTUtils;
  */
 public class PublishEncoder extends BaseEncoder<PublishMessage> {
 
+    /**
+     * Encode the message without copying the Payload
+     * Fixed Header and Variable Header are written to the header buffer, then the Payload is appended
+     * as a retained duplicate of the shared Payload in a composite buffer, so multiple messages can share
+     * the same Payload.
+     *
+     * @param ctx     ChannelHandlerContext
+     * @param message MQTT Message
+     * @param header  Buffer for Fixed Header and Variable Header
+     * @return Encoded message
+     */
+    public ByteBuf encodeZeroCopy(ChannelHandlerContext ctx, PublishMessage message, ByteBuf header) {
+        // Validate
+        message.validate();
+
+        // Write Fixed Header
+        message.encodeFixedHeader(header);
+
+        // Write Variable Header
+        encodeVariableHeader(message, header);
+
+        // Append Payload
+        if (message.hasContent()) {
+            return Unpooled.wrappedBuffer(header, message.retainedPayload());
+        } else {
+            return header;
+        }
+    }
+
     @Override
     protected void encodeVariableHeader(PublishMessage message, ByteBuf out) {
         // Write Variable Header
-        out.writeBytes(MQTTUtils.encodeString("Topic Name", message.getTopicName()));
+        MQTTUtils.encodeString("Topic Name", message.getTopicName(), out);
         if (message.getQosLevel() == MQTTMessage.QoSLevel.LEAST_ONCE ||
                 message.getQosLevel() == MQTTMessage.QoSLevel.EXACTLY_ONCE) {
             out.writeShort(message.getMessageID());
@@ -24,7 +55,7 @@ public class PublishEncoder extends BaseEncoder<PublishMessage> {
     protected void encodePayload(PublishMessage message, ByteBuf out) {
         // Write Payload
         if (message.hasContent()) {
-            out.writeBytes(message.getContent());
+            out.writeBytes(message.getContent().duplicate());
         }
     }
 }
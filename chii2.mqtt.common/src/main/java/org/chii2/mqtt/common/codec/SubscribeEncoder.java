@@ -21,7 +21,7 @@ public class SubscribeEncoder extends BaseEncoder<SubscribeMessage> {
         // Write Payload
         // Topics
         for (SubscribeMessage.Topic topic : message.getTopics()) {
-            out.writeBytes(MQTTUtils.encodeString("Topic Name", topic.getTopicName()));
+            MQTTUtils.encodeString("Topic Name", topic.getTopicName(), out);
             out.writeByte(topic.getQosLevel().byteValue());
         }
     }
@@ -21,7 +21,7 @@ public class UnsubscribeEncoder extends BaseEncoder<UnsubscribeMessage> {
         // Write Payload
         // Topics
         for (String topic : message.getTopicNames()) {
-            out.writeBytes(MQTTUtils.encodeString("Topic Name", topic));
+            MQTTUtils.encodeString("Topic Name", topic, out);
         }
     }
 }
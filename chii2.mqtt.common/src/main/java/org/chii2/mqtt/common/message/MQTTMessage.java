@@ -129,11 +129,20 @@ public abstract class MQTTMessage {
      */
     public ByteBuf getFixedHeader() {
         ByteBuf fixedHeader = Unpooled.buffer(2);
-        fixedHeader.writeByte(getFixedHeaderByte1());
-        fixedHeader.writeBytes(MQTTUtils.encodeRemainingLength(remainingLength));
+        encodeFixedHeader(fixedHeader);
         return fixedHeader;
     }
 
+    /**
+     * Write Message Fixed Header directly into the output
+     *
+     * @param out Output
+     */
+    public void encodeFixedHeader(ByteBuf out) {
+        out.writeByte(getFixedHeaderByte1());
+        MQTTUtils.encodeRemainingLength(remainingLength, out);
+    }
+
     /**
      * Calculate Remaining Length based on Variable Header Length + Payload Length
      *
@@ -0,0 +1,26 @@
+package org.chii2.mqtt.common.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * Part of the Payload of a chunked PUBLISH Message
+ * <p/>
+ * Large PUBLISH messages are not buffered as a whole, the decoder emits the PUBLISH Message
+ * with headers only, followed by the Payload in chunks as they arrive from the network.
+ * The receiver must release each chunk after consumed.
+ */
+public class PublishChunk extends DefaultByteBufHolder {
+
+    // Last chunk of the Payload
+    private final boolean last;
+
+    public PublishChunk(ByteBuf data, boolean last) {
+        super(data);
+        this.last = last;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+}
@@ -1,5 +1,7 @@
 package org.chii2.mqtt.common.message;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.chii2.mqtt.common.utils.MQTTUtils;
 
 import java.nio.ByteBuffer;
@@ -25,6 +27,10 @@ public class PublishMessage extends MQTTMessage {
     protected int messageID;
     // Payload
     protected ByteBuffer content;
+    // Payload as reference counted ByteBuf, optional, content is a view of it
+    protected ByteBuf payload;
+    // Payload not decoded with the message, follows in PublishChunk messages
+    protected boolean chunked;
 
     /**
      * INTERNAL USE ONLY
@@ -57,6 +63,8 @@ public class PublishMessage extends MQTTMessage {
         this.topicName = publishMessage.topicName;
         this.messageID = publishMessage.messageID;
         this.content = publishMessage.content;
+        this.payload = publishMessage.payload;
+        this.chunked = publishMessage.chunked;
         this.remainingLength = publishMessage.remainingLength;
     }
 
@@ -64,13 +72,28 @@ public class PublishMessage extends MQTTMessage {
     protected int calculateRemainingLength() {
         int length = 0;
         length = length + 2 + topicName.getBytes().length;
-        length = length + 2;
+        // Message ID, Not present if Qos level is 0
+        if (qosLevel == QoSLevel.LEAST_ONCE || qosLevel == QoSLevel.EXACTLY_ONCE) {
+            length = length + 2;
+        }
         if (hasContent()) {
             length = length + content.limit();
         }
         return length;
     }
 
+    /**
+     * Remaining Length is calculated again before written
+     * QoS Level and Payload may have been changed since the message was created or cloned.
+     *
+     * @param out Output
+     */
+    @Override
+    public void encodeFixedHeader(ByteBuf out) {
+        this.remainingLength = calculateRemainingLength();
+        super.encodeFixedHeader(out);
+    }
+
     @Override
     public void validate() {
         if (qosLevel == null || qosLevel == QoSLevel.RESERVED) {
@@ -116,6 +139,65 @@ public class PublishMessage extends MQTTMessage {
             content.flip();
         }
         this.content = content;
+        this.payload = null;
+        this.chunked = false;
+    }
+
+    /**
+     * Get Payload as ByteBuf
+     *
+     * @return Reference counted Payload, null if the content is not shared as ByteBuf
+     */
+    public ByteBuf getPayload() {
+        return payload;
+    }
+
+    /**
+     * Share the content as reference counted ByteBuf
+     * Clones share the Payload, retain it once for every clone which will be released. A clone written to
+     * the channel hands its reference to the encoder, which releases it after taking its own one.
+     */
+    public void sharePayload() {
+        this.payload = Unpooled.wrappedBuffer(content.duplicate());
+        this.content = payload.nioBuffer();
+    }
+
+    /**
+     * Get a new reference of the Payload, used to write the Payload without copy
+     * The returned ByteBuf must be released by the receiver.
+     *
+     * @return Retained duplicate of the shared Payload, or a wrapper of the content
+     */
+    public ByteBuf retainedPayload() {
+        if (payload != null) {
+            return payload.duplicate().retain();
+        } else {
+            return Unpooled.wrappedBuffer(content.duplicate());
+        }
+    }
+
+    /**
+     * Release one reference of the shared Payload, does nothing if the content is not shared
+     *
+     * @return True if the Payload has been deallocated
+     */
+    public boolean release() {
+        return payload != null && payload.release();
+    }
+
+    /**
+     * Is the Payload still to be received in {@link PublishChunk} messages
+     * Large PUBLISH messages are decoded in chunks, the message only contains the headers until
+     * the content is set.
+     *
+     * @return True if chunked
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
     }
 
     public boolean hasContent() {
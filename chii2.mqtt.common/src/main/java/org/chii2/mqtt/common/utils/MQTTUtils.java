@@ -52,11 +52,25 @@ public class MQTTUtils {
      *                          [0..268435455].
      */
     public static ByteBuf encodeRemainingLength(int value) throws EncoderException {
+        ByteBuf encoded = Unpooled.buffer(4);
+        encodeRemainingLength(value, encoded);
+        return encoded;
+    }
+
+    /**
+     * Encode the value in the format defined in specification as variable length
+     * array, directly into the output.
+     *
+     * @param value Remaining Length
+     * @param out   Output
+     * @throws EncoderException if the value is not in the specification bounds
+     *                          [0..268435455].
+     */
+    public static void encodeRemainingLength(int value, ByteBuf out) throws EncoderException {
         if (value > MAX_LENGTH_LIMIT || value < 0) {
             throw new EncoderException("Remaining Length should in range 0.." + MAX_LENGTH_LIMIT + " found " + value);
         }
 
-        ByteBuf encoded = Unpooled.buffer(4);
         byte digit;
         do {
             digit = (byte) (value % 128);
@@ -65,9 +79,8 @@ public class MQTTUtils {
             if (value > 0) {
                 digit = (byte) (digit | 0x80);
             }
-            encoded.writeByte(digit);
+            out.writeByte(digit);
         } while (value > 0);
-        return encoded;
     }
 
     /**
@@ -94,6 +107,19 @@ public class MQTTUtils {
      */
     public static ByteBuf encodeString(String name, String value) {
         ByteBuf out = Unpooled.buffer(2);
+        encodeString(name, value, out);
+        return out;
+    }
+
+    /**
+     * Write a string directly into the output, first the two bytes of length
+     * and then the UTF-8 bytes of the string.
+     *
+     * @param name  Field name, used in error message
+     * @param value String value
+     * @param out   Output
+     */
+    public static void encodeString(String name, String value, ByteBuf out) {
         byte[] raw;
         try {
             raw = value.getBytes("UTF-8");
@@ -104,7 +130,6 @@ public class MQTTUtils {
         }
         out.writeShort(raw.length);
         out.writeBytes(raw);
-        return out;
     }
 
     /**
@@ -2,11 +2,13 @@ package org.chii2.mqtt.common.codec;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
 import org.chii2.mqtt.common.message.*;
 import org.testng.annotations.Test;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -110,6 +112,111 @@ public class EncodeDecodeTest {
         assert "A very long content. Blah blah blah blah blah!".equals(new String(result.array(), "UTF-8"));
     }
 
+    @Test
+    public void publishZeroCopyTest() throws UnsupportedEncodingException {
+        // Two messages share the same Payload
+        ByteBuffer content = ByteBuffer.allocate(100);
+        content.put("A very long content. Blah blah blah blah blah!".getBytes("UTF-8"));
+        PublishMessage message1 = new PublishMessage(false, MQTTMessage.QoSLevel.LEAST_ONCE, false, "/Chii2/Client", 78, content);
+        PublishMessage message2 = new PublishMessage(message1);
+        message2.setMessageID(79);
+        // Encode
+        PublishEncoder encoder = new PublishEncoder();
+        ByteBuf buf1 = encoder.encodeZeroCopy(null, message1, Unpooled.buffer());
+        ByteBuf buf2 = encoder.encodeZeroCopy(null, message2, Unpooled.buffer());
+        // Decode
+        List<Object> output = new ArrayList<>();
+        PublishDecoder decoder = new PublishDecoder();
+        decoder.decode(null, buf2, output);
+        assert output.size() == 1;
+        PublishMessage publishMessage = (PublishMessage) output.get(0);
+        assert publishMessage.getMessageID() == 79;
+        ByteBuffer result = publishMessage.getContent();
+        assert "A very long content. Blah blah blah blah blah!".equals(new String(result.array(), "UTF-8"));
+        // Content is not consumed by the writes
+        assert message1.getContent().position() == 0;
+        buf1.release();
+        buf2.release();
+    }
+
+    @Test
+    public void publishSharedPayloadTest() throws UnsupportedEncodingException {
+        // Two messages share the same Payload, each holds a reference
+        ByteBuffer content = ByteBuffer.allocate(100);
+        content.put("A very long content. Blah blah blah blah blah!".getBytes("UTF-8"));
+        PublishMessage shared = new PublishMessage(false, MQTTMessage.QoSLevel.LEAST_ONCE, false, "/Chii2/Client", 78, content);
+        shared.sharePayload();
+        shared.getPayload().retain();
+        PublishMessage message1 = new PublishMessage(shared);
+        PublishMessage message2 = new PublishMessage(shared);
+        message2.setMessageID(79);
+        // Written messages hand over their references, the Payload is released after the last write
+        EmbeddedChannel channel = new EmbeddedChannel(new MQTTEncoder());
+        channel.writeOutbound(message1);
+        assert shared.getPayload().refCnt() == 1;
+        channel.writeOutbound(message2);
+        assert shared.getPayload().refCnt() == 0;
+        ByteBuf buf1 = (ByteBuf) channel.readOutbound();
+        ByteBuf buf2 = (ByteBuf) channel.readOutbound();
+        // Decode
+        List<Object> output = new ArrayList<>();
+        PublishDecoder decoder = new PublishDecoder();
+        decoder.decode(null, buf2, output);
+        PublishMessage publishMessage = (PublishMessage) output.get(0);
+        assert publishMessage.getMessageID() == 79;
+        assert "A very long content. Blah blah blah blah blah!".equals(new String(publishMessage.getContent().array(), "UTF-8"));
+        buf1.release();
+        buf2.release();
+    }
+
+    @Test
+    public void publishChunkTest() throws Exception {
+        // Encode a large message followed by a small message
+        ByteBuf buf = Unpooled.buffer();
+        ByteBuffer content = ByteBuffer.allocate(100);
+        content.put("A very long content. Blah blah blah blah blah!".getBytes("UTF-8"));
+        PublishEncoder encoder = new PublishEncoder();
+        encoder.encode(null, new PublishMessage(false, MQTTMessage.QoSLevel.LEAST_ONCE, false, "/Chii2/Client", 80, content), buf);
+        ByteBuffer small = ByteBuffer.allocate(10);
+        small.put("Small".getBytes("UTF-8"));
+        encoder.encode(null, new PublishMessage(false, MQTTMessage.QoSLevel.MOST_ONCE, false, "/Chii2/Client", 0, small), buf);
+        // Decode, data arrives in pieces
+        List<Object> output = new ArrayList<>();
+        MQTTDecoder decoder = new MQTTDecoder(50);
+        ByteBuf in = Unpooled.buffer();
+        // Headers not fully received
+        in.writeBytes(buf, 10);
+        decoder.decode(null, in, output);
+        assert output.isEmpty();
+        // Headers and part of the Payload
+        in.writeBytes(buf, 20);
+        decoder.decode(null, in, output);
+        assert output.size() == 1;
+        PublishMessage publishMessage = (PublishMessage) output.get(0);
+        assert publishMessage.isChunked();
+        assert publishMessage.getMessageID() == 80;
+        assert publishMessage.getTopicName().equals("/Chii2/Client");
+        decoder.decode(null, in, output);
+        assert output.size() == 2;
+        // Rest of the Payload and the small message
+        in.writeBytes(buf);
+        decoder.decode(null, in, output);
+        decoder.decode(null, in, output);
+        assert output.size() == 4;
+        PublishChunk chunk1 = (PublishChunk) output.get(1);
+        PublishChunk chunk2 = (PublishChunk) output.get(2);
+        assert !chunk1.isLast();
+        assert chunk2.isLast();
+        ByteBuf payload = Unpooled.wrappedBuffer(chunk1.content(), chunk2.content());
+        assert "A very long content. Blah blah blah blah blah!".equals(payload.toString(Charset.forName("UTF-8")));
+        payload.release();
+        // Small message is not chunked and stops at its own end
+        publishMessage = (PublishMessage) output.get(3);
+        assert !publishMessage.isChunked();
+        assert "Small".equals(new String(publishMessage.getContent().array(), "UTF-8"));
+        assert !in.isReadable();
+    }
+
     @Test
     public void subscribeTest() {
         // Encode
@@ -1,6 +1,7 @@
 package org.chii2.mqtt.common.utils;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.EncoderException;
 import org.testng.annotations.Test;
 
@@ -75,6 +76,17 @@ public class MQTTUtilsTest {
         assert bytebuf.readByte() == 0b1010000;
     }
 
+    @Test
+    public void encodeIntoBufferTest() {
+        // Fields are appended to the same output
+        ByteBuf bytebuf = Unpooled.buffer();
+        MQTTUtils.encodeRemainingLength(8000, bytebuf);
+        MQTTUtils.encodeString("Test", "OTWP", bytebuf);
+        assert bytebuf.readableBytes() == 8;
+        assert MQTTUtils.decodeRemainingLength(bytebuf) == 8000;
+        assert MQTTUtils.decodeString("Test", bytebuf).equals("OTWP");
+    }
+
     @Test
     public void topicValidTest() {
         assert MQTTUtils.isTopicWildcardValid("finance");
@@ -20,6 +20,13 @@ public class OSGiServer {
     // The Logger
     private final Logger logger = LoggerFactory.getLogger(OSGiServer.class);
 
+    /**
+     * Injected Server Configuration
+     */
+    public void setBrokerConfiguration(MQTTServerConfiguration brokerConfiguration) {
+        this.brokerConfiguration = brokerConfiguration;
+    }
+
     /**
      * Injected Storage Service
      */
@@ -32,9 +39,11 @@ public class OSGiServer {
      */
     public void init() {
         logger.info("Chii2 MQTT Server Init.");
-        // Init MQTT Server Configuration
-        brokerConfiguration = new MQTTServerConfiguration();
-        brokerConfiguration.setServerName("Chii2 MQTT Server");
+        // Init MQTT Server Configuration if not injected
+        if (brokerConfiguration == null) {
+            brokerConfiguration = new MQTTServerConfiguration();
+            brokerConfiguration.setServerName("Chii2 MQTT Server");
+        }
         // Init MQTT Server
         broker = new MQTTServer(brokerConfiguration, brokerStorage);
         broker.start();
@@ -7,18 +7,26 @@ import org.chii2.mqtt.common.message.MQTTMessage;
 import org.chii2.mqtt.common.message.PublishMessage;
 import org.chii2.mqtt.common.utils.MQTTUtils;
 import org.chii2.mqtt.server.MQTTServerUtils;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.StorageMutation;
 import org.chii2.mqtt.server.storage.StorageService;
 import org.chii2.mqtt.server.storage.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * MQTT Server Storage based on JDBC & SQL
@@ -65,8 +73,13 @@ public class StorageServiceImpl implements StorageService {
 
     @Override
     public int getNextMessageID() {
-        // Next Message ID
-        int nextID = 0;
+        return reserveMessageIDs(1);
+    }
+
+    @Override
+    public int reserveMessageIDs(int count) {
+        // First reserved Message ID
+        int firstID = 0;
         // SQL
         String selectSQL = "SELECT * FROM MESSAGE_ID mi WHERE mi.UID = ?";
         PreparedStatement select = null;
@@ -84,39 +97,54 @@ public class StorageServiceImpl implements StorageService {
 
             // Calculate next id
             if (!rs.next()) {
-                nextID = getNextMessageID(nextID);
+                firstID = getNextMessageID(0);
                 rs.moveToInsertRow();
                 rs.updateString("UID", "id");
-                rs.updateInt("NUMBER", nextID);
+                rs.updateInt("NUMBER", MessageIDAllocator.wrap(count));
                 rs.insertRow();
                 rs.moveToCurrentRow();
             } else {
-                nextID = getNextMessageID(rs.getInt("NUMBER"));
-                rs.updateInt("NUMBER", nextID);
+                int number = rs.getInt("NUMBER");
+                firstID = getNextMessageID(number);
+                rs.updateInt("NUMBER", MessageIDAllocator.wrap(number + count));
                 rs.updateRow();
             }
             connection.commit();
         } catch (SQLException e) {
-            logger.error("Error when get next Message ID: {}", ExceptionUtils.getMessage(e));
+            try {
+                DbUtils.rollback(connection);
+            } catch (SQLException ignore) {
+            }
+            // Never hand out an invalid Message ID, let the caller fail
+            throw new IllegalStateException("Error when reserve Message IDs: " + ExceptionUtils.getMessage(e), e);
         } finally {
             DbUtils.closeQuietly(rs);
             DbUtils.closeQuietly(select);
             DbUtils.closeQuietly(connection);
         }
-        return nextID;
+        return firstID;
     }
 
     @Override
     public void clean(String clientID) {
-        // Query Runner
-        QueryRunner runner = new QueryRunner(dataSource);
+        Connection connection = null;
         try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            QueryRunner runner = new QueryRunner();
             // Delete Subscription
-            runner.update("DELETE FROM SUBSCRIPTION WHERE SUBSCRIBERID = ?", clientID);
+            runner.update(connection, "DELETE FROM SUBSCRIPTION WHERE SUBSCRIBERID = ?", clientID);
             // Delete In-Flight Messages
-            runner.update("DELETE FROM INFLIGHT WHERE SUBSCRIBERID = ?", clientID);
+            deleteInFlights(connection, "if.SUBSCRIBERID = ?", new Object[][]{{clientID}});
+            connection.commit();
         } catch (SQLException e) {
+            try {
+                DbUtils.rollback(connection);
+            } catch (SQLException ignore) {
+            }
             logger.error("Error when clear saved information with client {}: {}", clientID, ExceptionUtils.getMessage(e));
+        } finally {
+            DbUtils.closeQuietly(connection);
         }
     }
 
@@ -134,14 +162,14 @@ public class StorageServiceImpl implements StorageService {
             update = connection.prepareStatement(updateSQL);
             update.setInt(1, publishMessage.getMessageID());
             update.setInt(2, publishMessage.getQosLevel().byteValue());
-            update.setBytes(3, MQTTServerUtils.ByteBufferToByteArray(publishMessage.getContent()));
+            update.setBinaryStream(3, MQTTServerUtils.ByteBufferToInputStream(publishMessage.getContent()), publishMessage.getContent().limit());
             update.setString(4, publishMessage.getTopicName());
             if (update.executeUpdate() <= 0) {
                 insert = connection.prepareStatement(insertSQL);
                 insert.setString(1, publishMessage.getTopicName());
                 insert.setInt(2, publishMessage.getMessageID());
                 insert.setInt(3, publishMessage.getQosLevel().byteValue());
-                insert.setBytes(4, MQTTServerUtils.ByteBufferToByteArray(publishMessage.getContent()));
+                insert.setBinaryStream(4, MQTTServerUtils.ByteBufferToInputStream(publishMessage.getContent()), publishMessage.getContent().limit());
                 insert.executeUpdate();
             }
             connection.commit();
@@ -154,50 +182,69 @@ public class StorageServiceImpl implements StorageService {
         }
     }
 
+    @Override
+    public PublishMessage getRetain(String topic) {
+        // Result
+        PublishMessage message = null;
+        // SQL
+        String selectSQL = "SELECT * FROM RETAIN r WHERE r.TOPIC = ?";
+        PreparedStatement select = null;
+        Connection connection = null;
+        ResultSet rs = null;
+        try {
+            connection = dataSource.getConnection();
+            select = connection.prepareStatement(selectSQL);
+            select.setString(1, topic);
+            rs = select.executeQuery();
+            if (rs.next()) {
+                message = new PublishMessage(
+                        true,
+                        MQTTMessage.QoSLevel.values()[rs.getInt("QOS")],
+                        false,
+                        rs.getString("TOPIC"),
+                        rs.getInt("MESSAGEID"),
+                        MQTTServerUtils.ByteArrayToByteBuffer(rs.getBytes("CONTENT")));
+            }
+        } catch (SQLException e) {
+            logger.error("Error when get retain Message with topic {}: {}", topic, ExceptionUtils.getMessage(e));
+        } finally {
+            DbUtils.closeQuietly(rs);
+            DbUtils.closeQuietly(select);
+            DbUtils.closeQuietly(connection);
+        }
+        return message;
+    }
+
     @Override
     public List<PublishMessage> getRetainWildcard(String topic) {
         // Result
         List<PublishMessage> messages = new ArrayList<>();
         // SQL
-        String selectTopicsSQL = "SELECT DISTINCT TOPIC FROM RETAIN";
-        PreparedStatement selectTopics = null;
-        String selectSQL = "SELECT * FROM RETAIN r WHERE r.TOPIC = ?";
+        String selectSQL = "SELECT * FROM RETAIN";
         PreparedStatement select = null;
         Connection connection = null;
         ResultSet rs = null;
         try {
             connection = dataSource.getConnection();
-            connection.setAutoCommit(false);
-            // Get distinct topics from retain
-            List<String> retainTopics = new ArrayList<>();
-            selectTopics = connection.prepareStatement(selectTopicsSQL);
-            rs = selectTopics.executeQuery();
+            // Get retain messages match given topic in one query
+            select = connection.prepareStatement(selectSQL);
+            rs = select.executeQuery();
             while (rs.next()) {
-                retainTopics.add(rs.getString("TOPIC"));
-            }
-            // Get retain messages match given topic
-            for (String retainTopic : retainTopics) {
+                String retainTopic = rs.getString("TOPIC");
                 if (MQTTUtils.isTopicMatch(topic, retainTopic, false)) {
-                    select = connection.prepareStatement(selectSQL);
-                    select.setString(1, retainTopic);
-                    rs = select.executeQuery();
-                    if (rs.next()) {
-                        messages.add(new PublishMessage(
-                                true,
-                                MQTTMessage.QoSLevel.values()[rs.getInt("QOS")],
-                                false,
-                                rs.getString("TOPIC"),
-                                rs.getInt("MESSAGEID"),
-                                MQTTServerUtils.ByteArrayToByteBuffer(rs.getBytes("CONTENT"))));
-                    }
+                    messages.add(new PublishMessage(
+                            true,
+                            MQTTMessage.QoSLevel.values()[rs.getInt("QOS")],
+                            false,
+                            retainTopic,
+                            rs.getInt("MESSAGEID"),
+                            MQTTServerUtils.ByteArrayToByteBuffer(rs.getBytes("CONTENT"))));
                 }
             }
-            connection.commit();
         } catch (SQLException e) {
             logger.error("Error when get retain Message with topic {}: {}", topic, ExceptionUtils.getMessage(e));
         } finally {
             DbUtils.closeQuietly(rs);
-            DbUtils.closeQuietly(selectTopics);
             DbUtils.closeQuietly(select);
             DbUtils.closeQuietly(connection);
         }
@@ -217,39 +264,49 @@ public class StorageServiceImpl implements StorageService {
 
     @Override
     public void putInFlight(String subscriberID, PublishMessage publishMessage) {
+        putInFlights(Collections.singletonList(subscriberID), publishMessage, publishMessage.getMessageID());
+    }
+
+    @Override
+    public void putInFlights(List<String> subscriberIDs, PublishMessage publishMessage, int messageID) {
+        if (subscriberIDs.isEmpty()) {
+            return;
+        }
         // SQL
-        String updateSQL = "UPDATE INFLIGHT SET SUBSCRIBERID = ?, MESSAGEID = ?, RETAIN = ?, QOS = ?, TOPIC = ?, CONTENT = ? WHERE UID = ?";
-        PreparedStatement update = null;
-        String insertSQL = "INSERT INTO INFLIGHT(UID, SUBSCRIBERID, MESSAGEID, RETAIN, QOS, TOPIC, CONTENT) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        String insertSQL = "INSERT INTO INFLIGHT(UID, SUBSCRIBERID, MESSAGEID, RETAIN, QOS, TOPIC, PAYLOADID) VALUES (?, ?, ?, ?, ?, ?, ?)";
         PreparedStatement insert = null;
         Connection connection = null;
         try {
             connection = dataSource.getConnection();
             connection.setAutoCommit(false);
-            update = connection.prepareStatement(updateSQL);
-            update.setString(1, subscriberID);
-            update.setInt(2, publishMessage.getMessageID());
-            update.setBoolean(3, publishMessage.isRetain());
-            update.setInt(4, publishMessage.getQosLevel().byteValue());
-            update.setString(5, publishMessage.getTopicName());
-            update.setBytes(6, MQTTServerUtils.ByteBufferToByteArray(publishMessage.getContent()));
-            update.setString(7, MQTTServerUtils.generateUID(subscriberID, String.valueOf(publishMessage.getMessageID())));
-            if (update.executeUpdate() <= 0) {
-                insert = connection.prepareStatement(insertSQL);
-                insert.setString(1, MQTTServerUtils.generateUID(subscriberID, String.valueOf(publishMessage.getMessageID())));
-                insert.setString(2, subscriberID);
-                insert.setInt(3, publishMessage.getMessageID());
+            // Message ID may wrap around, remove the old in-flight Messages first
+            Object[][] uids = new Object[subscriberIDs.size()][];
+            for (int i = 0; i < subscriberIDs.size(); i++) {
+                uids[i] = new Object[]{MQTTServerUtils.generateUID(subscriberIDs.get(i), String.valueOf(messageID))};
+            }
+            deleteInFlights(connection, "if.UID = ?", uids);
+            // Payload is stored only once, referenced by all the subscribers
+            long payloadID = insertPayload(connection, publishMessage.getContent(), subscriberIDs.size());
+            insert = connection.prepareStatement(insertSQL);
+            for (int i = 0; i < subscriberIDs.size(); i++) {
+                insert.setString(1, (String) uids[i][0]);
+                insert.setString(2, subscriberIDs.get(i));
+                insert.setInt(3, messageID);
                 insert.setBoolean(4, publishMessage.isRetain());
                 insert.setInt(5, publishMessage.getQosLevel().byteValue());
                 insert.setString(6, publishMessage.getTopicName());
-                insert.setBytes(7, MQTTServerUtils.ByteBufferToByteArray(publishMessage.getContent()));
-                insert.executeUpdate();
+                insert.setLong(7, payloadID);
+                insert.addBatch();
             }
+            insert.executeBatch();
             connection.commit();
         } catch (SQLException e) {
-            logger.error("Error when put in-flight Message with Subscriber ID {} and Message ID {}: {}", subscriberID, publishMessage.getMessageID(), ExceptionUtils.getMessage(e));
+            try {
+                DbUtils.rollback(connection);
+            } catch (SQLException ignore) {
+            }
+            logger.error("Error when put in-flight Message with {} Subscribers and Message ID {}: {}", subscriberIDs.size(), messageID, ExceptionUtils.getMessage(e));
         } finally {
-            DbUtils.closeQuietly(update);
             DbUtils.closeQuietly(insert);
             DbUtils.closeQuietly(connection);
         }
@@ -260,7 +317,7 @@ public class StorageServiceImpl implements StorageService {
         // Result
         List<PublishMessage> messages = new ArrayList<>();
         // SQL
-        String selectSQL = "SELECT * FROM INFLIGHT if WHERE if.SUBSCRIBERID = ?";
+        String selectSQL = "SELECT if.*, p.CONTENT FROM INFLIGHT if INNER JOIN PAYLOAD p ON if.PAYLOADID = p.ID WHERE if.SUBSCRIBERID = ?";
         PreparedStatement select = null;
         Connection connection = null;
         ResultSet rs = null;
@@ -290,12 +347,46 @@ public class StorageServiceImpl implements StorageService {
         return messages;
     }
 
+    @Override
+    public Map<String, List<Integer>> getAllInFlightIDs() {
+        // Result
+        Map<String, List<Integer>> result = new HashMap<>();
+        // SQL
+        String selectSQL = "SELECT if.SUBSCRIBERID, if.MESSAGEID FROM INFLIGHT if";
+        PreparedStatement select = null;
+        Connection connection = null;
+        ResultSet rs = null;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            select = connection.prepareStatement(selectSQL);
+            rs = select.executeQuery();
+            while (rs.next()) {
+                String subscriberID = rs.getString("SUBSCRIBERID");
+                List<Integer> messageIDs = result.get(subscriberID);
+                if (messageIDs == null) {
+                    messageIDs = new ArrayList<>();
+                    result.put(subscriberID, messageIDs);
+                }
+                messageIDs.add(rs.getInt("MESSAGEID"));
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            logger.error("Error when get all in-flight Message IDs: {}", ExceptionUtils.getMessage(e));
+        } finally {
+            DbUtils.closeQuietly(rs);
+            DbUtils.closeQuietly(select);
+            DbUtils.closeQuietly(connection);
+        }
+        return result;
+    }
+
     @Override
     public PublishMessage getInFlight(String subscriberID, int messageID) {
         // Result
         PublishMessage message = null;
         // SQL
-        String selectSQL = "SELECT * FROM INFLIGHT if WHERE if.UID = ?";
+        String selectSQL = "SELECT if.*, p.CONTENT FROM INFLIGHT if INNER JOIN PAYLOAD p ON if.PAYLOADID = p.ID WHERE if.UID = ?";
         PreparedStatement select = null;
         Connection connection = null;
         ResultSet rs = null;
@@ -327,23 +418,39 @@ public class StorageServiceImpl implements StorageService {
 
     @Override
     public void removeInFlight(String subscriberID, int messageID) {
-        // Query Runner
-        QueryRunner runner = new QueryRunner(dataSource);
+        Connection connection = null;
         try {
-            runner.update("DELETE FROM INFLIGHT WHERE UID = ?", MQTTServerUtils.generateUID(subscriberID, String.valueOf(messageID)));
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            deleteInFlights(connection, "if.UID = ?", new Object[][]{{MQTTServerUtils.generateUID(subscriberID, String.valueOf(messageID))}});
+            connection.commit();
         } catch (SQLException e) {
+            try {
+                DbUtils.rollback(connection);
+            } catch (SQLException ignore) {
+            }
             logger.error("Error when remove in-flight Message with Subscriber ID {} and Message ID {}: {}", subscriberID, messageID, ExceptionUtils.getMessage(e));
+        } finally {
+            DbUtils.closeQuietly(connection);
         }
     }
 
     @Override
     public void removeInFLightQoS0() {
-        // Query Runner
-        QueryRunner runner = new QueryRunner(dataSource);
+        Connection connection = null;
         try {
-            runner.update("DELETE FROM INFLIGHT WHERE QOS = 0");
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            deleteInFlights(connection, "if.QOS = 0", new Object[][]{{}});
+            connection.commit();
         } catch (SQLException e) {
+            try {
+                DbUtils.rollback(connection);
+            } catch (SQLException ignore) {
+            }
             logger.error("Error when remove in-flight Messages with QoS Level 0: {}", ExceptionUtils.getMessage(e));
+        } finally {
+            DbUtils.closeQuietly(connection);
         }
     }
 
@@ -569,6 +676,200 @@ public class StorageServiceImpl implements StorageService {
         return subscriptions;
     }
 
+    @Override
+    public List<Subscription> getAllSubscriptions() {
+        // Result
+        List<Subscription> subscriptions = new ArrayList<>();
+        // SQL
+        String selectSQL = "SELECT * FROM SUBSCRIPTION";
+        PreparedStatement select = null;
+        Connection connection = null;
+        ResultSet rs = null;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            select = connection.prepareStatement(selectSQL);
+            rs = select.executeQuery();
+            while (rs.next()) {
+                subscriptions.add(new Subscription(
+                        rs.getString("TOPIC"),
+                        rs.getString("SUBSCRIBERID"),
+                        rs.getInt("QOS")));
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            logger.error("Error when get all subscriptions: {}", ExceptionUtils.getMessage(e));
+        } finally {
+            DbUtils.closeQuietly(rs);
+            DbUtils.closeQuietly(select);
+            DbUtils.closeQuietly(connection);
+        }
+        return subscriptions;
+    }
+
+    @Override
+    public void applyBatch(List<StorageMutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        // SQL
+        // Mutations are coalesced, so every touched row is deleted first then the new rows inserted
+        PreparedStatement insertInFlight = null;
+        PreparedStatement deleteQoS2 = null;
+        PreparedStatement insertQoS2 = null;
+        PreparedStatement deleteSubscription = null;
+        PreparedStatement insertSubscription = null;
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            insertInFlight = connection.prepareStatement("INSERT INTO INFLIGHT(UID, SUBSCRIBERID, MESSAGEID, RETAIN, QOS, TOPIC, PAYLOADID) VALUES (?, ?, ?, ?, ?, ?, ?)");
+            deleteQoS2 = connection.prepareStatement("DELETE FROM QOS2 WHERE UID = ?");
+            insertQoS2 = connection.prepareStatement("INSERT INTO QOS2(UID, PUBLISHERID, MESSAGEID) VALUES (?, ?, ?)");
+            deleteSubscription = connection.prepareStatement("DELETE FROM SUBSCRIPTION WHERE UID = ?");
+            insertSubscription = connection.prepareStatement("INSERT INTO SUBSCRIPTION(UID, TOPIC, SUBSCRIBERID, QOS) VALUES (?, ?, ?, ?)");
+            // In-Flight rows to be deleted
+            List<Object[]> inFlightUIDs = new ArrayList<>();
+            // In-Flight rows to be inserted
+            List<StorageMutation> inFlightPuts = new ArrayList<>();
+            // Fan-out mutations share the same message, count the references to store each payload only once
+            Map<PublishMessage, Integer> references = new IdentityHashMap<>();
+            for (StorageMutation mutation : mutations) {
+                String clientID = mutation.getClientID();
+                PublishMessage publishMessage = mutation.getPublishMessage();
+                switch (mutation.getType()) {
+                    case PUT_INFLIGHT:
+                        inFlightPuts.add(mutation);
+                        Integer count = references.get(publishMessage);
+                        references.put(publishMessage, count == null ? 1 : count + 1);
+                        // Fall through, delete the exist row before insert
+                    case REMOVE_INFLIGHT:
+                        inFlightUIDs.add(new Object[]{MQTTServerUtils.generateUID(clientID, String.valueOf(mutation.getMessageID()))});
+                        break;
+                    case PUT_QOS2:
+                        insertQoS2.setString(1, MQTTServerUtils.generateUID(clientID, String.valueOf(mutation.getMessageID())));
+                        insertQoS2.setString(2, clientID);
+                        insertQoS2.setInt(3, mutation.getMessageID());
+                        insertQoS2.addBatch();
+                        // Fall through, delete the exist row before insert
+                    case REMOVE_QOS2:
+                        deleteQoS2.setString(1, MQTTServerUtils.generateUID(clientID, String.valueOf(mutation.getMessageID())));
+                        deleteQoS2.addBatch();
+                        break;
+                    case PUT_SUBSCRIPTION:
+                        insertSubscription.setString(1, MQTTServerUtils.generateUID(clientID, mutation.getTopic()));
+                        insertSubscription.setString(2, mutation.getTopic());
+                        insertSubscription.setString(3, clientID);
+                        insertSubscription.setInt(4, mutation.getSubscription().getQosLevel());
+                        insertSubscription.addBatch();
+                        // Fall through, delete the exist row before insert
+                    case REMOVE_SUBSCRIPTION:
+                        deleteSubscription.setString(1, MQTTServerUtils.generateUID(clientID, mutation.getTopic()));
+                        deleteSubscription.addBatch();
+                        break;
+                }
+            }
+            if (!inFlightUIDs.isEmpty()) {
+                deleteInFlights(connection, "if.UID = ?", inFlightUIDs.toArray(new Object[inFlightUIDs.size()][]));
+            }
+            Map<PublishMessage, Long> payloads = new IdentityHashMap<>();
+            for (Map.Entry<PublishMessage, Integer> reference : references.entrySet()) {
+                payloads.put(reference.getKey(), insertPayload(connection, reference.getKey().getContent(), reference.getValue()));
+            }
+            for (StorageMutation mutation : inFlightPuts) {
+                PublishMessage publishMessage = mutation.getPublishMessage();
+                insertInFlight.setString(1, MQTTServerUtils.generateUID(mutation.getClientID(), String.valueOf(mutation.getMessageID())));
+                insertInFlight.setString(2, mutation.getClientID());
+                insertInFlight.setInt(3, publishMessage.getMessageID());
+                insertInFlight.setBoolean(4, publishMessage.isRetain());
+                insertInFlight.setInt(5, publishMessage.getQosLevel().byteValue());
+                insertInFlight.setString(6, publishMessage.getTopicName());
+                insertInFlight.setLong(7, payloads.get(publishMessage));
+                insertInFlight.addBatch();
+            }
+            deleteQoS2.executeBatch();
+            deleteSubscription.executeBatch();
+            insertInFlight.executeBatch();
+            insertQoS2.executeBatch();
+            insertSubscription.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            try {
+                DbUtils.rollback(connection);
+            } catch (SQLException ignore) {
+            }
+            logger.error("Error when apply {} changes in batch: {}", mutations.size(), ExceptionUtils.getMessage(e));
+        } finally {
+            DbUtils.closeQuietly(insertInFlight);
+            DbUtils.closeQuietly(deleteQoS2);
+            DbUtils.closeQuietly(insertQoS2);
+            DbUtils.closeQuietly(deleteSubscription);
+            DbUtils.closeQuietly(insertSubscription);
+            DbUtils.closeQuietly(connection);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do, every change is committed immediately
+    }
+
+    /**
+     * Store the payload with given reference count
+     *
+     * @param connection Connection in transaction
+     * @param content    Payload
+     * @param refCount   Number of In-Flight rows reference to the payload
+     * @return Payload ID
+     * @throws SQLException
+     */
+    protected long insertPayload(Connection connection, ByteBuffer content, int refCount) throws SQLException {
+        // SQL
+        String insertSQL = "INSERT INTO PAYLOAD(REFCOUNT, CONTENT) VALUES (?, ?)";
+        PreparedStatement insert = null;
+        ResultSet rs = null;
+        try {
+            insert = connection.prepareStatement(insertSQL, Statement.RETURN_GENERATED_KEYS);
+            insert.setInt(1, refCount);
+            insert.setBinaryStream(2, MQTTServerUtils.ByteBufferToInputStream(content), content.limit());
+            insert.executeUpdate();
+            rs = insert.getGeneratedKeys();
+            if (!rs.next()) {
+                throw new SQLException("No generated Payload ID.");
+            }
+            return rs.getLong(1);
+        } finally {
+            DbUtils.closeQuietly(rs);
+            DbUtils.closeQuietly(insert);
+        }
+    }
+
+    /**
+     * Delete In-Flight rows match the condition and release their payloads
+     * The payload is deleted when no In-Flight row reference to it.
+     *
+     * @param connection Connection in transaction
+     * @param condition  SQL condition on INFLIGHT table with alias "if"
+     * @param params     Parameters of the condition, one row per execution
+     * @throws SQLException
+     */
+    protected void deleteInFlights(Connection connection, String condition, Object[][] params) throws SQLException {
+        // The condition is used twice in the update
+        Object[][] doubleParams = new Object[params.length][];
+        for (int i = 0; i < params.length; i++) {
+            doubleParams[i] = new Object[params[i].length * 2];
+            System.arraycopy(params[i], 0, doubleParams[i], 0, params[i].length);
+            System.arraycopy(params[i], 0, doubleParams[i], params[i].length, params[i].length);
+        }
+        QueryRunner runner = new QueryRunner();
+        runner.batch(connection, "UPDATE PAYLOAD SET REFCOUNT = REFCOUNT - " +
+                "(SELECT COUNT(*) FROM INFLIGHT if WHERE if.PAYLOADID = PAYLOAD.ID AND " + condition + ") " +
+                "WHERE ID IN (SELECT if.PAYLOADID FROM INFLIGHT if WHERE " + condition + ")", doubleParams);
+        runner.batch(connection, "DELETE FROM PAYLOAD WHERE REFCOUNT <= 0 " +
+                "AND ID IN (SELECT if.PAYLOADID FROM INFLIGHT if WHERE " + condition + ")", params);
+        runner.batch(connection, "DELETE FROM INFLIGHT if WHERE " + condition, params);
+    }
+
     /**
      * Generate next Message ID, Range [1, 65535]
      *
@@ -605,6 +906,9 @@ public class StorageServiceImpl implements StorageService {
                 case "INFLIGHT":
                     rows = runner.update("DELETE FROM INFLIGHT");
                     break;
+                case "PAYLOAD":
+                    rows = runner.update("DELETE FROM PAYLOAD");
+                    break;
                 case "QOS2":
                     rows = runner.update("DELETE FROM QOS2");
                     break;
@@ -14,7 +14,7 @@ import java.sql.*;
 public class StorageUntils {
 
     // Database Version
-    public static final String DATABASE_VERSION = "1.0.0";
+    public static final String DATABASE_VERSION = "1.1.0";
     // The Logger
     private static final Logger logger = LoggerFactory.getLogger(StorageUntils.class);
 
@@ -27,6 +27,8 @@ public class StorageUntils {
             "        PRIMARY KEY (UID)" +
             "    )";
     public static final String INSERT_VERSION = "INSERT INTO VERSION(UID, VERSION) VALUES ('CHII2_MQTT_SERVER', ?)";
+    public static final String SELECT_VERSION = "SELECT VERSION FROM VERSION WHERE UID = 'CHII2_MQTT_SERVER'";
+    public static final String UPDATE_VERSION = "UPDATE VERSION SET VERSION = ? WHERE UID = 'CHII2_MQTT_SERVER'";
     public static final String CREATE_TABLE_MESSAGE_ID = "CREATE TABLE" +
             "    APP.MESSAGE_ID" +
             "    (" +
@@ -52,9 +54,17 @@ public class StorageUntils {
             "        RETAIN BOOLEAN NOT NULL," +
             "        QOS INTEGER NOT NULL," +
             "        TOPIC VARCHAR(32672) NOT NULL," +
-            "        CONTENT BLOB NOT NULL," +
+            "        PAYLOADID BIGINT NOT NULL," +
             "        PRIMARY KEY (UID)" +
             "    )";
+    public static final String CREATE_TABLE_PAYLOAD = "CREATE TABLE" +
+            "    APP.PAYLOAD" +
+            "    (" +
+            "        ID BIGINT NOT NULL GENERATED ALWAYS AS IDENTITY," +
+            "        REFCOUNT INTEGER NOT NULL," +
+            "        CONTENT BLOB NOT NULL," +
+            "        PRIMARY KEY (ID)" +
+            "    )";
     public static final String CREATE_TABLE_QOS2 = "CREATE TABLE" +
             "    APP.QOS2" +
             "    (" +
@@ -94,14 +104,17 @@ public class StorageUntils {
                     ResultSet.CONCUR_UPDATABLE);
             exist.setString(1, "VERSION");
             rs = exist.executeQuery();
-            // TODO: Check version and alter table if necessary
-            if (!rs.next()) {
+            if (rs.next()) {
+                // Check version and alter tables if necessary
+                upgradeTables(connection);
+            } else {
                 // Create new tables
                 create = connection.createStatement();
                 create.addBatch(CREATE_TABLE_VERSION);
                 create.addBatch(CREATE_TABLE_MESSAGE_ID);
                 create.addBatch(CREATE_TABLE_RETAIN);
                 create.addBatch(CREATE_TABLE_INFLIGHT);
+                create.addBatch(CREATE_TABLE_PAYLOAD);
                 create.addBatch(CREATE_TABLE_QOS2);
                 create.addBatch(CREATE_TABLE_SUBSCRIPTION);
                 create.executeBatch();
@@ -125,4 +138,72 @@ public class StorageUntils {
             DbUtils.closeQuietly(connection);
         }
     }
+
+    /**
+     * Upgrade tables created by old version
+     * 1.0.0 -> 1.1.0: In-Flight content moved to PAYLOAD table
+     *
+     * @param connection Connection in transaction
+     * @throws SQLException
+     */
+    protected static void upgradeTables(Connection connection) throws SQLException {
+        PreparedStatement select = null;
+        PreparedStatement insert = null;
+        PreparedStatement update = null;
+        PreparedStatement setVersion = null;
+        Statement alter = null;
+        ResultSet rs = null;
+        try {
+            // Current version
+            String version = null;
+            select = connection.prepareStatement(SELECT_VERSION);
+            rs = select.executeQuery();
+            if (rs.next()) {
+                version = rs.getString("VERSION");
+            }
+            DbUtils.closeQuietly(rs);
+            DbUtils.closeQuietly(select);
+
+            if ("1.0.0".equals(version)) {
+                logger.info("Upgrade tables from version {} to {}.", version, DATABASE_VERSION);
+                alter = connection.createStatement();
+                alter.executeUpdate(CREATE_TABLE_PAYLOAD);
+                alter.executeUpdate("ALTER TABLE INFLIGHT ADD COLUMN PAYLOADID BIGINT");
+                // Move the content of each In-Flight Message to PAYLOAD table
+                select = connection.prepareStatement("SELECT UID, CONTENT FROM INFLIGHT");
+                insert = connection.prepareStatement("INSERT INTO PAYLOAD(REFCOUNT, CONTENT) VALUES (1, ?)", Statement.RETURN_GENERATED_KEYS);
+                update = connection.prepareStatement("UPDATE INFLIGHT SET PAYLOADID = ? WHERE UID = ?");
+                rs = select.executeQuery();
+                while (rs.next()) {
+                    insert.setBytes(1, rs.getBytes("CONTENT"));
+                    insert.executeUpdate();
+                    ResultSet keys = insert.getGeneratedKeys();
+                    try {
+                        keys.next();
+                        update.setLong(1, keys.getLong(1));
+                    } finally {
+                        DbUtils.closeQuietly(keys);
+                    }
+                    update.setString(2, rs.getString("UID"));
+                    update.executeUpdate();
+                }
+                DbUtils.closeQuietly(rs);
+                DbUtils.closeQuietly(select);
+                alter.executeUpdate("ALTER TABLE INFLIGHT ALTER COLUMN PAYLOADID NOT NULL");
+                alter.executeUpdate("ALTER TABLE INFLIGHT DROP COLUMN CONTENT");
+                version = "1.1.0";
+            }
+
+            setVersion = connection.prepareStatement(UPDATE_VERSION);
+            setVersion.setString(1, version);
+            setVersion.executeUpdate();
+        } finally {
+            DbUtils.closeQuietly(rs);
+            DbUtils.closeQuietly(select);
+            DbUtils.closeQuietly(insert);
+            DbUtils.closeQuietly(update);
+            DbUtils.closeQuietly(setVersion);
+            DbUtils.closeQuietly(alter);
+        }
+    }
 }
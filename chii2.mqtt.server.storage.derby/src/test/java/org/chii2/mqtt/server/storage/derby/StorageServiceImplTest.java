@@ -1,9 +1,12 @@
 package org.chii2.mqtt.server.storage.derby;
 
+import org.apache.commons.dbutils.QueryRunner;
 import org.apache.derby.jdbc.EmbeddedConnectionPoolDataSource;
 import org.apache.derby.jdbc.EmbeddedDataSource;
 import org.chii2.mqtt.common.message.MQTTMessage;
 import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.MQTTServerUtils;
+import org.chii2.mqtt.server.storage.StorageMutation;
 import org.chii2.mqtt.server.storage.Subscription;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -11,6 +14,8 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -34,6 +39,7 @@ public class StorageServiceImplTest {
         storage.clearTable("MESSAGE_ID");
         storage.clearTable("RETAIN");
         storage.clearTable("INFLIGHT");
+        storage.clearTable("PAYLOAD");
         storage.clearTable("QOS2");
         storage.clearTable("SUBSCRIPTION");
     }
@@ -43,6 +49,8 @@ public class StorageServiceImplTest {
         assert storage.getNextMessageID() == 1;
         assert storage.getNextMessageID() == 2;
         assert storage.getNextMessageID() == 3;
+        assert storage.reserveMessageIDs(1000) == 4;
+        assert storage.getNextMessageID() == 1004;
     }
 
     @Test
@@ -81,10 +89,12 @@ public class StorageServiceImplTest {
         assert storage.containsSubscription(clientID1, "/SmartHome/Server");
         assert storage.containsSubscription(clientID1, "/SmartHome/Client");
         assert storage.getInFlights(clientID1).size() == 2;
+        assert storage.getAllInFlightIDs().get(clientID1).size() == 2;
         storage.clean(clientID1);
         assert !storage.containsSubscription(clientID1, "/SmartHome/Server");
         assert !storage.containsSubscription(clientID1, "/SmartHome/Client");
         assert storage.getInFlights(clientID1).size() == 0;
+        assert !storage.getAllInFlightIDs().containsKey(clientID1);
     }
 
     @Test
@@ -125,8 +135,10 @@ public class StorageServiceImplTest {
         assert result.getContent().limit() == 5;
         assert result.getContent().get(3) == 7;
         assert storage.getRetainWildcard("/SmartHome/Server/#").size() == 2;
+        assert storage.getRetain("/SmartHome/Server").getMessageID() == 2020;
         storage.removeRetain("/SmartHome/Server");
         assert storage.getRetainWildcard("/SmartHome/Server/#").size() == 1;
+        assert storage.getRetain("/SmartHome/Server") == null;
     }
 
     @Test
@@ -186,6 +198,39 @@ public class StorageServiceImplTest {
         assert results.size() == 0;
     }
 
+    @Test
+    public void inFlightsTest() {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put((byte) 1);
+        buffer.put((byte) 3);
+        buffer.put((byte) 5);
+        buffer.put((byte) 7);
+        buffer.put((byte) 9);
+        buffer.flip();
+        String clientID1 = "Chii2-C8-60-00-E2-1D-6A";
+        String clientID2 = "Chii2-C8-60-00-E2-1D-6B";
+        PublishMessage message = new PublishMessage(
+                false,
+                MQTTMessage.QoSLevel.LEAST_ONCE,
+                false,
+                "/SmartHome/Server",
+                0,
+                buffer
+        );
+        storage.putInFlights(Arrays.asList(clientID1, clientID2), message, 3333);
+        PublishMessage result = storage.getInFlight(clientID1, 3333);
+        assert result != null;
+        assert result.getMessageID() == 3333;
+        assert result.getQosLevel() == MQTTMessage.QoSLevel.LEAST_ONCE;
+        assert result.getContent().get(3) == 7;
+        assert storage.containsInFlight(clientID2, 3333);
+        // Message ID wraps around
+        storage.putInFlights(Arrays.asList(clientID1), message, 3333);
+        assert storage.getInFlights(clientID1).size() == 1;
+        storage.removeInFlight(clientID1, 3333);
+        storage.removeInFlight(clientID2, 3333);
+    }
+
     @Test
     public void qos2Test() {
         ByteBuffer buffer = ByteBuffer.allocate(100);
@@ -222,6 +267,7 @@ public class StorageServiceImplTest {
         storage.putSubscription(subscription1);
         storage.putSubscription(subscription2);
         storage.putSubscription(subscription3);
+        assert storage.getAllSubscriptions().size() == 3;
         assert storage.containsSubscription(clientID1, "/SmartHome/Server");
         assert storage.containsSubscription(clientID2, "/SmartHome/Server");
         assert storage.containsSubscription(clientID1, "/SmartHome/Client");
@@ -240,13 +286,114 @@ public class StorageServiceImplTest {
         assert storage.containsSubscription(clientID1, "/SmartHome/Client");
     }
 
+    @Test
+    public void batchTest() {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put((byte) 1);
+        buffer.put((byte) 3);
+        buffer.put((byte) 5);
+        buffer.put((byte) 7);
+        buffer.put((byte) 9);
+        buffer.flip();
+        String clientID = "Chii2-C8-60-00-E2-1D-5D";
+        PublishMessage message1 = new PublishMessage(
+                false,
+                MQTTMessage.QoSLevel.LEAST_ONCE,
+                false,
+                "/SmartHome/Server",
+                1111,
+                buffer
+        );
+        PublishMessage message2 = new PublishMessage(
+                false,
+                MQTTMessage.QoSLevel.EXACTLY_ONCE,
+                false,
+                "/SmartHome/Server",
+                2222,
+                buffer
+        );
+        storage.putInFlight(clientID, message1);
+        storage.putQoS2(clientID, message1);
+
+        List<StorageMutation> mutations = new ArrayList<>();
+        mutations.add(StorageMutation.removeInFlight(clientID, 1111));
+        mutations.add(StorageMutation.putInFlight(clientID, message2));
+        mutations.add(StorageMutation.removeQoS2(clientID, 1111));
+        mutations.add(StorageMutation.putQoS2(clientID, message2));
+        mutations.add(StorageMutation.putSubscription(new Subscription("/SmartHome/#", clientID, 1)));
+        storage.applyBatch(mutations);
+        assert !storage.containsInFlight(clientID, 1111);
+        assert storage.getInFlight(clientID, 2222).getQosLevel() == MQTTMessage.QoSLevel.EXACTLY_ONCE;
+        assert !storage.containsQoS2(clientID, 1111);
+        assert storage.containsQoS2(clientID, 2222);
+        assert storage.containsSubscription(clientID, "/SmartHome/#");
+
+        // Put exist rows again
+        mutations.clear();
+        mutations.add(StorageMutation.putInFlight(clientID, message2));
+        mutations.add(StorageMutation.putSubscription(new Subscription("/SmartHome/#", clientID, 2)));
+        storage.applyBatch(mutations);
+        assert storage.getInFlights(clientID).size() == 1;
+        assert storage.getSubscriptions("/SmartHome/Server").get(0).getQosLevel() == 2;
+
+        storage.clean(clientID);
+        storage.removeQoS2(clientID, 2222);
+    }
+
+    @Test
+    public void upgradeTest() throws Exception {
+        // Database created by version 1.0.0
+        File directory = new File(System.getProperty("java.io.tmpdir") +
+                File.separator + "chii2" +
+                File.separator + "mqtt" +
+                File.separator + "legacy");
+        delete(directory);
+        EmbeddedDataSource dataSource = new EmbeddedConnectionPoolDataSource();
+        dataSource.setDatabaseName(directory.getPath());
+        dataSource.setCreateDatabase("create");
+        QueryRunner runner = new QueryRunner(dataSource);
+        runner.update("CREATE TABLE APP.VERSION (UID VARCHAR(255) NOT NULL, VERSION VARCHAR(255) NOT NULL, PRIMARY KEY (UID))");
+        runner.update("INSERT INTO VERSION(UID, VERSION) VALUES ('CHII2_MQTT_SERVER', '1.0.0')");
+        runner.update("CREATE TABLE APP.INFLIGHT (UID VARCHAR(255) NOT NULL, SUBSCRIBERID VARCHAR(255) NOT NULL, MESSAGEID INTEGER NOT NULL, " +
+                "RETAIN BOOLEAN NOT NULL, QOS INTEGER NOT NULL, TOPIC VARCHAR(32672) NOT NULL, CONTENT BLOB NOT NULL, PRIMARY KEY (UID))");
+        runner.update("INSERT INTO INFLIGHT(UID, SUBSCRIBERID, MESSAGEID, RETAIN, QOS, TOPIC, CONTENT) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                MQTTServerUtils.generateUID("Chii2-Legacy", "1111"), "Chii2-Legacy", 1111, false, 1, "/SmartHome/Server", new byte[]{1, 3, 5, 7, 9});
+        runner.update("INSERT INTO INFLIGHT(UID, SUBSCRIBERID, MESSAGEID, RETAIN, QOS, TOPIC, CONTENT) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                MQTTServerUtils.generateUID("Chii2-Legacy", "2222"), "Chii2-Legacy", 2222, false, 1, "/SmartHome/Server", new byte[]{2, 4, 6, 8});
+
+        StorageServiceImpl legacy = new StorageServiceImpl();
+        legacy.setDataSource(dataSource);
+        legacy.start();
+        PublishMessage result = legacy.getInFlight("Chii2-Legacy", 1111);
+        assert result != null;
+        assert result.getContent().limit() == 5;
+        assert result.getContent().get(3) == 7;
+        assert legacy.getInFlights("Chii2-Legacy").size() == 2;
+        // Payloads are released with the In-Flight Messages
+        legacy.removeInFlight("Chii2-Legacy", 1111);
+        legacy.removeInFlight("Chii2-Legacy", 2222);
+        assert legacy.clearTable("PAYLOAD") == 0;
+        legacy.stop();
+    }
+
     @AfterClass
     public void after() {
         storage.clearTable("MESSAGE_ID");
         storage.clearTable("RETAIN");
         storage.clearTable("INFLIGHT");
+        storage.clearTable("PAYLOAD");
         storage.clearTable("QOS2");
         storage.clearTable("SUBSCRIPTION");
         storage.stop();
     }
+
+    private void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
 }
@@ -0,0 +1,40 @@
+package org.chii2.mqtt.server.storage.journal;
+
+/**
+ * Location of a record in the Journal, used by the in-memory index
+ */
+public class JournalLocation {
+
+    private final JournalSegment segment;
+
+    private final int offset;
+
+    private final int size;
+
+    public JournalLocation(JournalSegment segment, int offset, int size) {
+        this.segment = segment;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * Read the record from the segment
+     *
+     * @return Record
+     */
+    public JournalRecord read() {
+        return segment.read(offset, false);
+    }
+
+    public JournalSegment getSegment() {
+        return segment;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,274 @@
+package org.chii2.mqtt.server.storage.journal;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.storage.Subscription;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Journal Record
+ * <p/>
+ * On disk format:
+ * Header: Body Length (4 bytes) + Body CRC32 (4 bytes)
+ * Body:   Type (1 byte) + Client ID + Topic + Message ID (4 bytes) + QoS (1 byte) + Retain (1 byte) + Content
+ * Strings and Content are written as length (4 bytes, -1 for null) followed by the bytes.
+ * <p/>
+ * Records of type *_REMOVE and CLEAN are tombstones, they mark previous records as deleted.
+ */
+public class JournalRecord {
+
+    // Record Types
+    public static final byte MESSAGE_ID = 1;
+    public static final byte RETAIN = 2;
+    public static final byte RETAIN_REMOVE = 3;
+    public static final byte INFLIGHT = 4;
+    public static final byte INFLIGHT_REMOVE = 5;
+    public static final byte QOS2 = 6;
+    public static final byte QOS2_REMOVE = 7;
+    public static final byte SUBSCRIPTION = 8;
+    public static final byte SUBSCRIPTION_REMOVE = 9;
+    public static final byte CLEAN = 10;
+
+    // Header Length
+    public static final int HEADER_LENGTH = 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte type;
+    // Client ID (Subscriber ID or Publisher ID)
+    private String clientID;
+    private String topic;
+    private int messageID;
+    private int qos;
+    private boolean retain;
+    private ByteBuffer content;
+
+    public JournalRecord(byte type, String clientID, String topic, int messageID, int qos, boolean retain, ByteBuffer content) {
+        this.type = type;
+        this.clientID = clientID;
+        this.topic = topic;
+        this.messageID = messageID;
+        this.qos = qos;
+        this.retain = retain;
+        this.content = content;
+    }
+
+    public static JournalRecord messageID(int messageID) {
+        return new JournalRecord(MESSAGE_ID, null, null, messageID, 0, false, null);
+    }
+
+    public static JournalRecord retain(PublishMessage message) {
+        return new JournalRecord(RETAIN, null, message.getTopicName(), message.getMessageID(), message.getQosLevel().byteValue(), true, message.getContent());
+    }
+
+    public static JournalRecord retainRemove(String topic) {
+        return new JournalRecord(RETAIN_REMOVE, null, topic, 0, 0, false, null);
+    }
+
+    public static JournalRecord inFlight(String subscriberID, PublishMessage message) {
+        return new JournalRecord(INFLIGHT, subscriberID, message.getTopicName(), message.getMessageID(), message.getQosLevel().byteValue(), message.isRetain(), message.getContent());
+    }
+
+    public static JournalRecord inFlightRemove(String subscriberID, int messageID) {
+        return new JournalRecord(INFLIGHT_REMOVE, subscriberID, null, messageID, 0, false, null);
+    }
+
+    public static JournalRecord qos2(String publisherID, int messageID) {
+        return new JournalRecord(QOS2, publisherID, null, messageID, 0, false, null);
+    }
+
+    public static JournalRecord qos2Remove(String publisherID, int messageID) {
+        return new JournalRecord(QOS2_REMOVE, publisherID, null, messageID, 0, false, null);
+    }
+
+    public static JournalRecord subscription(Subscription subscription) {
+        return new JournalRecord(SUBSCRIPTION, subscription.getSubscriberID(), subscription.getTopic(), 0, subscription.getQosLevel(), false, null);
+    }
+
+    public static JournalRecord subscriptionRemove(String subscriberID, String topic) {
+        return new JournalRecord(SUBSCRIPTION_REMOVE, subscriberID, topic, 0, 0, false, null);
+    }
+
+    public static JournalRecord clean(String clientID) {
+        return new JournalRecord(CLEAN, clientID, null, 0, 0, false, null);
+    }
+
+    /**
+     * Encode the record (header included)
+     *
+     * @return ByteBuffer ready to be read
+     */
+    public ByteBuffer encode() {
+        byte[] clientIDBytes = clientID == null ? null : clientID.getBytes(UTF8);
+        byte[] topicBytes = topic == null ? null : topic.getBytes(UTF8);
+        ByteBuffer contentBuffer = content == null ? null : content.duplicate();
+        if (contentBuffer != null) {
+            contentBuffer.rewind();
+        }
+        int bodyLength = 1 + lengthOf(clientIDBytes) + lengthOf(topicBytes) + 4 + 1 + 1 + 4 + (contentBuffer == null ? 0 : contentBuffer.remaining());
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        buffer.position(HEADER_LENGTH);
+        buffer.put(type);
+        putBytes(buffer, clientIDBytes);
+        putBytes(buffer, topicBytes);
+        buffer.putInt(messageID);
+        buffer.put((byte) qos);
+        buffer.put((byte) (retain ? 1 : 0));
+        if (contentBuffer == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(contentBuffer.remaining());
+            buffer.put(contentBuffer);
+        }
+        buffer.putInt(0, bodyLength);
+        buffer.putInt(4, checksum(buffer, HEADER_LENGTH, bodyLength));
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Decode the record from buffer at given offset
+     * The content is a read only view of the buffer, not a copy.
+     *
+     * @param buffer Buffer
+     * @param offset Offset of the record header
+     * @param verify Whether verify the checksum
+     * @return Record, or null if there is no complete valid record at the offset
+     */
+    public static JournalRecord decode(ByteBuffer buffer, int offset, boolean verify) {
+        int bodyLength = size(buffer, offset) - HEADER_LENGTH;
+        if (bodyLength <= 0) {
+            return null;
+        }
+        if (verify && buffer.getInt(offset + 4) != checksum(buffer, offset + HEADER_LENGTH, bodyLength)) {
+            return null;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.limit(offset + HEADER_LENGTH + bodyLength);
+        body.position(offset + HEADER_LENGTH);
+        byte type = body.get();
+        String clientID = getString(body);
+        String topic = getString(body);
+        int messageID = body.getInt();
+        int qos = body.get();
+        boolean retain = body.get() == 1;
+        ByteBuffer content = null;
+        int contentLength = body.getInt();
+        if (contentLength >= 0) {
+            content = body.slice().asReadOnlyBuffer();
+            content.limit(contentLength);
+        }
+        return new JournalRecord(type, clientID, topic, messageID, qos, retain, content);
+    }
+
+    /**
+     * Size of the record (header included) at given offset
+     *
+     * @param buffer Buffer
+     * @param offset Offset of the record header
+     * @return Record size, or 0 if there is no record at the offset
+     */
+    public static int size(ByteBuffer buffer, int offset) {
+        if (offset + HEADER_LENGTH > buffer.capacity()) {
+            return 0;
+        }
+        int bodyLength = buffer.getInt(offset);
+        if (bodyLength <= 0 || offset + HEADER_LENGTH + bodyLength > buffer.capacity()) {
+            return 0;
+        }
+        return HEADER_LENGTH + bodyLength;
+    }
+
+    /**
+     * Convert to PUBLISH Message
+     *
+     * @return PUBLISH Message
+     */
+    public PublishMessage toPublishMessage() {
+        return new PublishMessage(
+                retain,
+                MQTTMessage.QoSLevel.values()[qos],
+                false,
+                topic,
+                messageID,
+                content == null ? null : content.duplicate());
+    }
+
+    /**
+     * Convert to Subscription
+     *
+     * @return Subscription
+     */
+    public Subscription toSubscription() {
+        return new Subscription(topic, clientID, qos);
+    }
+
+    private static int lengthOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + offset, length);
+        } else {
+            byte[] bytes = new byte[length];
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset);
+            duplicate.get(bytes);
+            crc.update(bytes);
+        }
+        return (int) crc.getValue();
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getMessageID() {
+        return messageID;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    public boolean isRetain() {
+        return retain;
+    }
+
+    public ByteBuffer getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,174 @@
+package org.chii2.mqtt.server.storage.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Journal Segment
+ * A fixed size file mapped into memory, records are appended sequentially.
+ * Appending is NOT thread safe and must be guarded by the caller, reading is thread safe.
+ */
+public class JournalSegment {
+
+    // Segment file name suffix
+    public static final String SUFFIX = ".journal";
+
+    // Segment ID, increase monotonically
+    private final long id;
+    // Segment file
+    private final File file;
+    // File channel
+    private final FileChannel channel;
+    // Mapped buffer
+    private final MappedByteBuffer buffer;
+    // Write position
+    private volatile int position;
+    // Bytes of the records still referenced by the index
+    private volatile long liveBytes;
+
+    private JournalSegment(long id, File file, int size) throws IOException {
+        this.id = id;
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Create a new segment file
+     *
+     * @param directory Journal directory
+     * @param id        Segment ID
+     * @param size      Segment size in bytes
+     * @return Segment
+     * @throws IOException
+     */
+    public static JournalSegment create(File directory, long id, int size) throws IOException {
+        return new JournalSegment(id, new File(directory, String.format("%016d%s", id, SUFFIX)), size);
+    }
+
+    /**
+     * Open an exist segment file
+     *
+     * @param file Segment file
+     * @return Segment
+     * @throws IOException
+     */
+    public static JournalSegment open(File file) throws IOException {
+        String name = file.getName();
+        long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        return new JournalSegment(id, file, (int) file.length());
+    }
+
+    /**
+     * Append the record to the segment
+     *
+     * @param record Encoded record
+     * @return Offset of the record, or -1 if not enough space
+     */
+    public int append(ByteBuffer record) {
+        int offset = position;
+        if (offset + record.remaining() > buffer.capacity()) {
+            return -1;
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(record);
+        position = target.position();
+        return offset;
+    }
+
+    /**
+     * Read the record at given offset
+     *
+     * @param offset Record offset
+     * @param verify Whether verify the checksum
+     * @return Record, or null if there is no valid record at the offset
+     */
+    public JournalRecord read(int offset, boolean verify) {
+        return JournalRecord.decode(buffer, offset, verify);
+    }
+
+    /**
+     * Size of the record at given offset
+     *
+     * @param offset Record offset
+     * @return Record size, or 0 if there is no record at the offset
+     */
+    public int size(int offset) {
+        return JournalRecord.size(buffer, offset);
+    }
+
+    /**
+     * Copy of the raw record bytes at given offset
+     *
+     * @param offset Record offset
+     * @param size   Record size
+     * @return Raw record ready to be appended
+     */
+    public ByteBuffer raw(int offset, int size) {
+        ByteBuffer raw = buffer.duplicate();
+        raw.limit(offset + size);
+        raw.position(offset);
+        return raw.slice();
+    }
+
+    /**
+     * Force the changes to the disk
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Close the segment
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Close and delete the segment file
+     *
+     * @return True if deleted
+     * @throws IOException
+     */
+    public boolean delete() throws IOException {
+        close();
+        return file.delete();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    public void addLiveBytes(long bytes) {
+        this.liveBytes += bytes;
+    }
+}
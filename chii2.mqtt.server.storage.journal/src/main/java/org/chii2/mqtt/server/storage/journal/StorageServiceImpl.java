@@ -0,0 +1,678 @@
+package org.chii2.mqtt.server.storage.journal;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.common.utils.MQTTUtils;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.StorageMutation;
+import org.chii2.mqtt.server.storage.StorageService;
+import org.chii2.mqtt.server.storage.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT Server Storage based on an append-only Journal
+ * <p/>
+ * Every change is appended sequentially to memory mapped Journal Segments, removals are appended as tombstones.
+ * An in-memory index maps each key to the location of its latest record, so reads never scan the Journal.
+ * The index is rebuilt by replaying the Journal when started.
+ * <p/>
+ * Old Segments which mostly contain deleted records are compacted in background:
+ * the live records are copied to the active Segment and the old Segment file is deleted.
+ * Only the oldest Segment is compacted, so tombstones in it can be safely dropped.
+ */
+public class StorageServiceImpl implements StorageService {
+
+    // Journal directory
+    private String directory = "data/mqtt/server/journal";
+    // Segment size in bytes
+    private int segmentSize = 64 * 1024 * 1024;
+    // Interval to force the active Segment to disk in milliseconds
+    private long forceInterval = 1000;
+    // Interval to check compaction in milliseconds
+    private long compactionInterval = 10000;
+    // Compact the oldest Segment when live bytes ratio is below this value
+    private double compactionRatio = 0.5;
+
+    // Journal directory
+    private File journalDirectory;
+    // Segments ordered by ID, guarded by this
+    private final List<JournalSegment> segments = new ArrayList<>();
+    // Active Segment, records are appended to it
+    private JournalSegment active;
+    // Scheduler for force and compaction
+    private ScheduledExecutorService scheduler;
+
+    // Last Message ID
+    private int messageID = 0;
+    private JournalLocation messageIDLocation;
+    // Topic <---> Retain Message
+    private final ConcurrentMap<String, JournalLocation> retains = new ConcurrentHashMap<>();
+    // Subscriber ID <---> Message ID <---> In-Flight Message
+    private final ConcurrentMap<String, ConcurrentMap<Integer, JournalLocation>> inFlights = new ConcurrentHashMap<>();
+    // Publisher ID <---> Message ID <---> QoS2 Message
+    private final ConcurrentMap<String, ConcurrentMap<Integer, JournalLocation>> qos2 = new ConcurrentHashMap<>();
+    // Subscriber ID <---> Topic <---> Subscription
+    private final ConcurrentMap<String, ConcurrentMap<String, JournalLocation>> subscriptions = new ConcurrentHashMap<>();
+
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(StorageServiceImpl.class);
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public void setForceInterval(long forceInterval) {
+        this.forceInterval = forceInterval;
+    }
+
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    public void setCompactionRatio(double compactionRatio) {
+        this.compactionRatio = compactionRatio;
+    }
+
+    /**
+     * OSGi life cycle init
+     */
+    public void init() {
+        logger.info("MQTT Server Journal Storage Init.");
+    }
+
+    /**
+     * OSGi life cycle destroy
+     */
+    public void destroy() {
+        logger.info("MQTT Server Journal Storage Destroy.");
+    }
+
+    @Override
+    public synchronized void start() {
+        journalDirectory = new File(directory);
+        if (!journalDirectory.exists() && !journalDirectory.mkdirs()) {
+            logger.error("Error when create journal directory {}.", directory);
+            return;
+        }
+        try {
+            // Replay exist Segments
+            File[] files = journalDirectory.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(JournalSegment.SUFFIX);
+                }
+            });
+            Arrays.sort(files);
+            for (File file : files) {
+                JournalSegment segment = JournalSegment.open(file);
+                replay(segment);
+                segments.add(segment);
+            }
+            // Create the first Segment
+            if (segments.isEmpty()) {
+                segments.add(JournalSegment.create(journalDirectory, 1, segmentSize));
+            }
+            active = segments.get(segments.size() - 1);
+            logger.info("Journal Storage replayed {} segments from {}.", segments.size(), directory);
+        } catch (IOException e) {
+            logger.error("Error when open journal in {}: {}", directory, ExceptionUtils.getMessage(e));
+            return;
+        }
+        // Background tasks
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        if (forceInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    force();
+                }
+            }, forceInterval, forceInterval, TimeUnit.MILLISECONDS);
+        }
+        if (compactionInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(compactionInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignore) {
+            }
+            scheduler = null;
+        }
+        synchronized (this) {
+            for (JournalSegment segment : segments) {
+                try {
+                    segment.force();
+                    segment.close();
+                } catch (IOException e) {
+                    logger.error("Error when close journal segment {}: {}", segment.getFile(), ExceptionUtils.getMessage(e));
+                }
+            }
+            segments.clear();
+            active = null;
+            messageID = 0;
+            messageIDLocation = null;
+            retains.clear();
+            inFlights.clear();
+            qos2.clear();
+            subscriptions.clear();
+        }
+    }
+
+    @Override
+    public synchronized int getNextMessageID() {
+        messageID = getNextMessageID(messageID);
+        try {
+            write(JournalRecord.messageID(messageID));
+        } catch (IOException e) {
+            logger.error("Error when get next Message ID: {}", ExceptionUtils.getMessage(e));
+        }
+        return messageID;
+    }
+
+    @Override
+    public synchronized int reserveMessageIDs(int count) {
+        int first = getNextMessageID(messageID);
+        messageID = MessageIDAllocator.wrap(messageID + count);
+        try {
+            write(JournalRecord.messageID(messageID));
+        } catch (IOException e) {
+            logger.error("Error when reserve Message IDs: {}", ExceptionUtils.getMessage(e));
+        }
+        return first;
+    }
+
+    @Override
+    public synchronized void clean(String clientID) {
+        try {
+            write(JournalRecord.clean(clientID));
+        } catch (IOException e) {
+            logger.error("Error when clear saved information with client {}: {}", clientID, ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public synchronized void putRetain(PublishMessage publishMessage) {
+        try {
+            write(JournalRecord.retain(publishMessage));
+        } catch (IOException e) {
+            logger.error("Error when put retain Message with topic {}: {}", publishMessage.getTopicName(), ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public PublishMessage getRetain(String topic) {
+        JournalLocation location = retains.get(topic);
+        return location == null ? null : location.read().toPublishMessage();
+    }
+
+    @Override
+    public List<PublishMessage> getRetainWildcard(String topic) {
+        List<PublishMessage> messages = new ArrayList<>();
+        for (Map.Entry<String, JournalLocation> entry : retains.entrySet()) {
+            if (MQTTUtils.isTopicMatch(topic, entry.getKey(), false)) {
+                messages.add(entry.getValue().read().toPublishMessage());
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void removeRetain(String topic) {
+        if (!retains.containsKey(topic)) {
+            return;
+        }
+        try {
+            write(JournalRecord.retainRemove(topic));
+        } catch (IOException e) {
+            logger.error("Error when remove retain Message with topic {}: {}", topic, ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public synchronized void putInFlight(String subscriberID, PublishMessage publishMessage) {
+        try {
+            write(JournalRecord.inFlight(subscriberID, publishMessage));
+        } catch (IOException e) {
+            logger.error("Error when put in-flight Message with Subscriber ID {} and Message ID {}: {}", subscriberID, publishMessage.getMessageID(), ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public synchronized void putInFlights(List<String> subscriberIDs, PublishMessage publishMessage, int messageID) {
+        PublishMessage inFlightMessage = new PublishMessage(publishMessage);
+        inFlightMessage.setMessageID(messageID);
+        for (String subscriberID : subscriberIDs) {
+            putInFlight(subscriberID, inFlightMessage);
+        }
+    }
+
+    @Override
+    public List<PublishMessage> getInFlights(String subscriberID) {
+        List<PublishMessage> messages = new ArrayList<>();
+        Map<Integer, JournalLocation> map = inFlights.get(subscriberID);
+        if (map != null) {
+            for (JournalLocation location : map.values()) {
+                messages.add(location.read().toPublishMessage());
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<String, List<Integer>> getAllInFlightIDs() {
+        Map<String, List<Integer>> result = new HashMap<>();
+        for (Map.Entry<String, ConcurrentMap<Integer, JournalLocation>> entry : inFlights.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                result.put(entry.getKey(), new ArrayList<>(entry.getValue().keySet()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public PublishMessage getInFlight(String subscriberID, int messageID) {
+        JournalLocation location = get(inFlights, subscriberID, messageID);
+        return location == null ? null : location.read().toPublishMessage();
+    }
+
+    @Override
+    public synchronized void removeInFlight(String subscriberID, int messageID) {
+        if (get(inFlights, subscriberID, messageID) == null) {
+            return;
+        }
+        try {
+            write(JournalRecord.inFlightRemove(subscriberID, messageID));
+        } catch (IOException e) {
+            logger.error("Error when remove in-flight Message with Subscriber ID {} and Message ID {}: {}", subscriberID, messageID, ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public synchronized void removeInFLightQoS0() {
+        try {
+            for (Map.Entry<String, ConcurrentMap<Integer, JournalLocation>> entry : inFlights.entrySet()) {
+                for (JournalLocation location : new ArrayList<>(entry.getValue().values())) {
+                    JournalRecord record = location.read();
+                    if (record.getQos() == MQTTMessage.QoSLevel.MOST_ONCE.byteValue()) {
+                        write(JournalRecord.inFlightRemove(entry.getKey(), record.getMessageID()));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error when remove in-flight Messages with QoS Level 0: {}", ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public boolean containsInFlight(String subscriberID, int messageID) {
+        return get(inFlights, subscriberID, messageID) != null;
+    }
+
+    @Override
+    public synchronized void putQoS2(String publisherID, PublishMessage publishMessage) {
+        try {
+            write(JournalRecord.qos2(publisherID, publishMessage.getMessageID()));
+        } catch (IOException e) {
+            logger.error("Error when put QoS Level 2 Message with Publisher ID {} and Message ID {}: {}", publisherID, publishMessage.getMessageID(), ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public boolean containsQoS2(String publisherID, int messageID) {
+        return get(qos2, publisherID, messageID) != null;
+    }
+
+    @Override
+    public synchronized void removeQoS2(String publisherID, int messageID) {
+        if (get(qos2, publisherID, messageID) == null) {
+            return;
+        }
+        try {
+            write(JournalRecord.qos2Remove(publisherID, messageID));
+        } catch (IOException e) {
+            logger.error("Error when remove QOS Level 2 Message with Publisher ID {} and Message ID {}: {}", publisherID, messageID, ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public synchronized void putSubscription(Subscription subscription) {
+        try {
+            write(JournalRecord.subscription(subscription));
+        } catch (IOException e) {
+            logger.error("Error when put Subscription with Topic {} and Subscriber ID {}: {}", subscription.getTopic(), subscription.getSubscriberID(), ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public boolean containsSubscription(String subscriberID, String topic) {
+        return get(subscriptions, subscriberID, topic) != null;
+    }
+
+    @Override
+    public synchronized void removeSubscription(String subscriberID, String topic) {
+        if (get(subscriptions, subscriberID, topic) == null) {
+            return;
+        }
+        try {
+            write(JournalRecord.subscriptionRemove(subscriberID, topic));
+        } catch (IOException e) {
+            logger.error("Error when remove Subscription with Topic {} and Subscriber ID {}: {}", topic, subscriberID, ExceptionUtils.getMessage(e));
+        }
+    }
+
+    @Override
+    public List<Subscription> getSubscriptions(String topic) {
+        List<Subscription> result = new ArrayList<>();
+        for (Subscription subscription : getAllSubscriptions()) {
+            if (MQTTUtils.isTopicMatch(subscription.getTopic(), topic, false)) {
+                result.add(new Subscription(topic, subscription.getSubscriberID(), subscription.getQosLevel()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Subscription> getAllSubscriptions() {
+        List<Subscription> result = new ArrayList<>();
+        for (Map<String, JournalLocation> map : subscriptions.values()) {
+            for (JournalLocation location : map.values()) {
+                result.add(location.read().toSubscription());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void applyBatch(List<StorageMutation> mutations) {
+        for (StorageMutation mutation : mutations) {
+            mutation.applyTo(this);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do, the active Segment is forced periodically
+    }
+
+    /**
+     * Force the active Segment to disk
+     */
+    protected void force() {
+        JournalSegment segment;
+        synchronized (this) {
+            segment = active;
+        }
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Compact the oldest Segments while their live bytes ratio is below the threshold
+     */
+    protected void compact() {
+        while (true) {
+            JournalSegment oldest;
+            synchronized (this) {
+                if (segments.size() < 2) {
+                    return;
+                }
+                oldest = segments.get(0);
+                if (oldest.getLiveBytes() > oldest.getPosition() * compactionRatio) {
+                    return;
+                }
+            }
+            try {
+                compact(oldest);
+            } catch (IOException e) {
+                logger.error("Error when compact journal segment {}: {}", oldest.getFile(), ExceptionUtils.getMessage(e));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copy the live records of the Segment to the active Segment, then delete the Segment
+     * The lock is held per record, so normal operations are not blocked for the whole compaction.
+     *
+     * @param segment The oldest Segment
+     * @throws IOException
+     */
+    protected void compact(JournalSegment segment) throws IOException {
+        int offset = 0;
+        int size;
+        while ((size = segment.size(offset)) > 0) {
+            synchronized (this) {
+                JournalRecord record = segment.read(offset, false);
+                JournalLocation current = locate(record);
+                if (current != null && current.getSegment() == segment && current.getOffset() == offset) {
+                    apply(record, append(segment.raw(offset, size)));
+                }
+            }
+            offset += size;
+        }
+        synchronized (this) {
+            segments.remove(segment);
+            if (!segment.delete()) {
+                logger.warn("Journal segment {} compacted but can't be deleted.", segment.getFile());
+            }
+        }
+    }
+
+    /**
+     * Replay the records in the Segment to rebuild the index
+     * Stops at the first incomplete or corrupted record.
+     *
+     * @param segment Segment
+     */
+    protected void replay(JournalSegment segment) {
+        int offset = 0;
+        int size;
+        while ((size = segment.size(offset)) > 0) {
+            JournalRecord record = segment.read(offset, true);
+            if (record == null) {
+                logger.warn("Journal segment {} corrupted at {}, the remaining records are discarded.", segment.getFile(), offset);
+                break;
+            }
+            apply(record, new JournalLocation(segment, offset, size));
+            offset += size;
+        }
+        segment.setPosition(offset);
+    }
+
+    /**
+     * Append the record to the Journal and update the index
+     * Must be called with lock held.
+     *
+     * @param record Record
+     * @throws IOException
+     */
+    protected void write(JournalRecord record) throws IOException {
+        apply(record, append(record.encode()));
+    }
+
+    /**
+     * Append encoded record to the active Segment, roll to a new Segment if not enough space
+     * Must be called with lock held.
+     *
+     * @param encoded Encoded record
+     * @return Location of the record
+     * @throws IOException
+     */
+    protected JournalLocation append(ByteBuffer encoded) throws IOException {
+        if (active == null) {
+            throw new IOException("Journal is not started.");
+        }
+        int size = encoded.remaining();
+        int offset = active.append(encoded);
+        if (offset < 0) {
+            active.force();
+            active = JournalSegment.create(journalDirectory, active.getId() + 1, Math.max(segmentSize, size));
+            segments.add(active);
+            offset = active.append(encoded);
+        }
+        return new JournalLocation(active, offset, size);
+    }
+
+    /**
+     * Apply the record to the index
+     * Must be called with lock held.
+     *
+     * @param record   Record
+     * @param location Location of the record
+     */
+    protected void apply(JournalRecord record, JournalLocation location) {
+        String clientID = record.getClientID();
+        switch (record.getType()) {
+            case JournalRecord.MESSAGE_ID:
+                messageID = record.getMessageID();
+                release(messageIDLocation);
+                messageIDLocation = location;
+                location.getSegment().addLiveBytes(location.getSize());
+                break;
+            case JournalRecord.RETAIN:
+                install(retains, record.getTopic(), location);
+                break;
+            case JournalRecord.RETAIN_REMOVE:
+                release(retains.remove(record.getTopic()));
+                break;
+            case JournalRecord.INFLIGHT:
+                install(mapOf(inFlights, clientID), record.getMessageID(), location);
+                break;
+            case JournalRecord.INFLIGHT_REMOVE:
+                release(remove(inFlights, clientID, record.getMessageID()));
+                break;
+            case JournalRecord.QOS2:
+                install(mapOf(qos2, clientID), record.getMessageID(), location);
+                break;
+            case JournalRecord.QOS2_REMOVE:
+                release(remove(qos2, clientID, record.getMessageID()));
+                break;
+            case JournalRecord.SUBSCRIPTION:
+                install(mapOf(subscriptions, clientID), record.getTopic(), location);
+                break;
+            case JournalRecord.SUBSCRIPTION_REMOVE:
+                release(remove(subscriptions, clientID, record.getTopic()));
+                break;
+            case JournalRecord.CLEAN:
+                releaseAll(inFlights.remove(clientID));
+                releaseAll(subscriptions.remove(clientID));
+                break;
+        }
+    }
+
+    /**
+     * Find the current index location of the record's key
+     *
+     * @param record Record
+     * @return Current location, null if the record is a tombstone or the key not exist
+     */
+    protected JournalLocation locate(JournalRecord record) {
+        switch (record.getType()) {
+            case JournalRecord.MESSAGE_ID:
+                return messageIDLocation;
+            case JournalRecord.RETAIN:
+                return retains.get(record.getTopic());
+            case JournalRecord.INFLIGHT:
+                return get(inFlights, record.getClientID(), record.getMessageID());
+            case JournalRecord.QOS2:
+                return get(qos2, record.getClientID(), record.getMessageID());
+            case JournalRecord.SUBSCRIPTION:
+                return get(subscriptions, record.getClientID(), record.getTopic());
+            default:
+                return null;
+        }
+    }
+
+    private <K> void install(ConcurrentMap<K, JournalLocation> map, K key, JournalLocation location) {
+        release(map.put(key, location));
+        location.getSegment().addLiveBytes(location.getSize());
+    }
+
+    private void release(JournalLocation location) {
+        if (location != null) {
+            location.getSegment().addLiveBytes(-location.getSize());
+        }
+    }
+
+    private void releaseAll(Map<?, JournalLocation> map) {
+        if (map != null) {
+            for (JournalLocation location : map.values()) {
+                release(location);
+            }
+        }
+    }
+
+    private static <K> ConcurrentMap<K, JournalLocation> mapOf(ConcurrentMap<String, ConcurrentMap<K, JournalLocation>> index, String clientID) {
+        ConcurrentMap<K, JournalLocation> map = index.get(clientID);
+        if (map == null) {
+            map = new ConcurrentHashMap<>();
+            index.put(clientID, map);
+        }
+        return map;
+    }
+
+    private static <K> JournalLocation get(ConcurrentMap<String, ConcurrentMap<K, JournalLocation>> index, String clientID, K key) {
+        Map<K, JournalLocation> map = index.get(clientID);
+        return map == null ? null : map.get(key);
+    }
+
+    private static <K> JournalLocation remove(ConcurrentMap<String, ConcurrentMap<K, JournalLocation>> index, String clientID, K key) {
+        Map<K, JournalLocation> map = index.get(clientID);
+        return map == null ? null : map.remove(key);
+    }
+
+    /**
+     * Generate next Message ID, Range [1, 65535]
+     *
+     * @param number Number
+     * @return Next Message ID
+     */
+    protected int getNextMessageID(int number) {
+        if (number == 65535) {
+            return 1;
+        } else {
+            return number + 1;
+        }
+    }
+
+    /**
+     * Number of Segments, for test
+     *
+     * @return Number of Segments
+     */
+    protected synchronized int getSegmentCount() {
+        return segments.size();
+    }
+}
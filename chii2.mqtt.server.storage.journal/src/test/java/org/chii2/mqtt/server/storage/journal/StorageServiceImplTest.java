@@ -0,0 +1,238 @@
+package org.chii2.mqtt.server.storage.journal;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.storage.Subscription;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Storage Service Test
+ */
+public class StorageServiceImplTest {
+
+    StorageServiceImpl storage;
+
+    @BeforeClass
+    public void before() {
+        delete(tempDirectory("test"));
+        storage = createStorage(tempDirectory("test"), 64 * 1024);
+    }
+
+    @Test
+    public void messageIDTest() {
+        assert storage.getNextMessageID() == 1;
+        assert storage.getNextMessageID() == 2;
+        assert storage.getNextMessageID() == 3;
+    }
+
+    @Test
+    public void cleanTest() {
+        String clientID1 = "Chii2-C8-60-00-E2-1D-5A";
+        storage.putSubscription(new Subscription("/SmartHome/Server", clientID1, 2));
+        storage.putSubscription(new Subscription("/SmartHome/Client", clientID1, 1));
+        storage.putInFlight(clientID1, createMessage(MQTTMessage.QoSLevel.MOST_ONCE, 1111));
+        storage.putInFlight(clientID1, createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 2222));
+
+        assert storage.containsSubscription(clientID1, "/SmartHome/Server");
+        assert storage.containsSubscription(clientID1, "/SmartHome/Client");
+        assert storage.getInFlights(clientID1).size() == 2;
+        assert storage.getAllInFlightIDs().get(clientID1).size() == 2;
+        storage.clean(clientID1);
+        assert !storage.containsSubscription(clientID1, "/SmartHome/Server");
+        assert !storage.containsSubscription(clientID1, "/SmartHome/Client");
+        assert storage.getInFlights(clientID1).size() == 0;
+        assert !storage.getAllInFlightIDs().containsKey(clientID1);
+    }
+
+    @Test
+    public void retainTest() {
+        PublishMessage message1 = createMessage(MQTTMessage.QoSLevel.MOST_ONCE, 2020);
+        PublishMessage message2 = createMessage(MQTTMessage.QoSLevel.MOST_ONCE, 2020);
+        message2.setTopicName("/SmartHome/Server/MyServer1");
+
+        storage.putRetain(message1);
+        storage.putRetain(message2);
+        PublishMessage result = storage.getRetainWildcard("/SmartHome/Server").get(0);
+        assert result != null;
+        assert result.getMessageID() == 2020;
+        assert result.getQosLevel() == MQTTMessage.QoSLevel.MOST_ONCE;
+        assert result.getTopicName().equals("/SmartHome/Server");
+        assert result.isRetain();
+        assert !result.isDupFlag();
+        assert result.getContent().limit() == 5;
+        assert result.getContent().get(3) == 7;
+        assert storage.getRetainWildcard("/SmartHome/Server/#").size() == 2;
+        storage.removeRetain("/SmartHome/Server");
+        assert storage.getRetainWildcard("/SmartHome/Server/#").size() == 1;
+        storage.removeRetain("/SmartHome/Server/MyServer1");
+    }
+
+    @Test
+    public void inFlightTest() {
+        String clientID1 = "Chii2-C8-60-00-E2-1D-5C";
+        String clientID2 = "Chii2-C8-60-00-E2-1D";
+        PublishMessage message1 = createMessage(MQTTMessage.QoSLevel.MOST_ONCE, 1111);
+        PublishMessage message2 = createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 2222);
+
+        storage.putInFlight(clientID1, message1);
+        storage.putInFlight(clientID1, message2);
+        storage.putInFlight(clientID2, message2);
+
+        PublishMessage result = storage.getInFlight(clientID1, 1111);
+        assert result != null;
+        assert result.getMessageID() == 1111;
+        assert result.getQosLevel() == MQTTMessage.QoSLevel.MOST_ONCE;
+        assert result.getTopicName().equals("/SmartHome/Server");
+        assert result.getContent().limit() == 5;
+        assert result.getContent().get(3) == 7;
+        List<PublishMessage> results = storage.getInFlights(clientID1);
+        assert results.size() == 2;
+        assert storage.containsInFlight(clientID2, 2222);
+        storage.removeInFLightQoS0();
+        assert !storage.containsInFlight(clientID1, 1111);
+        assert storage.containsInFlight(clientID1, 2222);
+        storage.removeInFlight(clientID1, 2222);
+        assert storage.getInFlights(clientID1).size() == 0;
+        assert storage.containsInFlight(clientID2, 2222);
+        storage.removeInFlight(clientID2, 2222);
+    }
+
+    @Test
+    public void qos2Test() {
+        String clientID = "Chii2-C8-60-00-E2-1D-5C";
+        storage.putQoS2(clientID, createMessage(MQTTMessage.QoSLevel.EXACTLY_ONCE, 1111));
+        assert storage.containsQoS2(clientID, 1111);
+        storage.removeQoS2(clientID, 2222);
+        storage.removeQoS2(clientID, 1111);
+        assert !storage.containsQoS2(clientID, 1111);
+    }
+
+    @Test
+    public void subscriptionTest() {
+        String clientID1 = "Chii2-C8-60-00-E2-1D-5B";
+        String clientID2 = "Chii2-C8-60-00-E2-1B";
+        storage.putSubscription(new Subscription("/SmartHome/Server", clientID1, 2));
+        storage.putSubscription(new Subscription("/SmartHome/+", clientID1, 1));
+        storage.putSubscription(new Subscription("/SmartHome/Server", clientID2, 1));
+        assert storage.containsSubscription(clientID1, "/SmartHome/+");
+        assert !storage.containsSubscription(clientID2, "/SmartHome/+");
+        assert storage.getSubscriptions("/SmartHome/Server").size() == 3;
+        assert storage.getSubscriptions("/SmartHome/Client").size() == 1;
+        storage.removeSubscription(clientID2, "/SmartHome/Server");
+        assert !storage.containsSubscription(clientID2, "/SmartHome/Server");
+        assert storage.getSubscriptions("/SmartHome/Server").size() == 2;
+        storage.clean(clientID1);
+    }
+
+    @Test
+    public void replayTest() {
+        File directory = tempDirectory("replay");
+        delete(directory);
+        StorageServiceImpl source = createStorage(directory, 64 * 1024);
+        source.getNextMessageID();
+        source.putRetain(createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 3333));
+        source.putInFlight("Chii2-Replay", createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 4444));
+        source.putInFlight("Chii2-Replay", createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 4445));
+        source.removeInFlight("Chii2-Replay", 4445);
+        source.putQoS2("Chii2-Replay", createMessage(MQTTMessage.QoSLevel.EXACTLY_ONCE, 5555));
+        source.putSubscription(new Subscription("/SmartHome/#", "Chii2-Replay", 1));
+        source.putSubscription(new Subscription("/SmartHome/+", "Chii2-Replay", 1));
+        source.removeSubscription("Chii2-Replay", "/SmartHome/+");
+        source.stop();
+
+        StorageServiceImpl target = createStorage(directory, 64 * 1024);
+        assert target.getNextMessageID() == 2;
+        assert target.getRetainWildcard("/SmartHome/#").size() == 1;
+        assert target.getInFlight("Chii2-Replay", 4444).getContent().get(3) == 7;
+        assert !target.containsInFlight("Chii2-Replay", 4445);
+        assert target.containsQoS2("Chii2-Replay", 5555);
+        assert target.containsSubscription("Chii2-Replay", "/SmartHome/#");
+        assert !target.containsSubscription("Chii2-Replay", "/SmartHome/+");
+        target.stop();
+        delete(directory);
+    }
+
+    @Test
+    public void compactionTest() {
+        File directory = tempDirectory("compaction");
+        delete(directory);
+        StorageServiceImpl source = createStorage(directory, 1024);
+        source.putSubscription(new Subscription("/SmartHome/#", "Chii2-Compaction", 1));
+        for (int i = 1; i <= 100; i++) {
+            source.putInFlight("Chii2-Compaction", createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, i));
+            source.removeInFlight("Chii2-Compaction", i);
+        }
+        source.putInFlight("Chii2-Compaction", createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 4444));
+        assert source.getSegmentCount() > 2;
+        source.compact();
+        assert source.getSegmentCount() <= 2;
+        assert source.containsSubscription("Chii2-Compaction", "/SmartHome/#");
+        assert source.getInFlight("Chii2-Compaction", 4444).getContent().get(3) == 7;
+        source.stop();
+
+        StorageServiceImpl target = createStorage(directory, 1024);
+        assert target.getSegmentCount() <= 2;
+        assert target.containsSubscription("Chii2-Compaction", "/SmartHome/#");
+        assert target.getInFlights("Chii2-Compaction").size() == 1;
+        target.stop();
+        delete(directory);
+    }
+
+    @AfterClass
+    public void after() {
+        storage.stop();
+        delete(tempDirectory("test"));
+    }
+
+    private StorageServiceImpl createStorage(File directory, int segmentSize) {
+        StorageServiceImpl storage = new StorageServiceImpl();
+        storage.setDirectory(directory.getPath());
+        storage.setSegmentSize(segmentSize);
+        storage.setForceInterval(0);
+        storage.setCompactionInterval(0);
+        storage.start();
+        return storage;
+    }
+
+    private File tempDirectory(String name) {
+        return new File(System.getProperty("java.io.tmpdir") +
+                File.separator + "chii2" +
+                File.separator + "mqtt" +
+                File.separator + "journal" +
+                File.separator + name);
+    }
+
+    private void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private PublishMessage createMessage(MQTTMessage.QoSLevel qos, int messageID) {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put((byte) 1);
+        buffer.put((byte) 3);
+        buffer.put((byte) 5);
+        buffer.put((byte) 7);
+        buffer.put((byte) 9);
+        buffer.flip();
+        return new PublishMessage(
+                true,
+                qos,
+                false,
+                "/SmartHome/Server",
+                messageID,
+                buffer
+        );
+    }
+}
@@ -0,0 +1,428 @@
+package org.chii2.mqtt.server.storage.memory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.common.utils.MQTTUtils;
+import org.chii2.mqtt.server.MQTTServerUtils;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.StorageMutation;
+import org.chii2.mqtt.server.storage.StorageService;
+import org.chii2.mqtt.server.storage.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT Server Storage based on in-memory concurrent maps
+ * State is kept in memory only, optionally saved to a local snapshot file periodically
+ * and restored when started. Anything changed after the last snapshot is lost on crash.
+ */
+public class StorageServiceImpl implements StorageService {
+
+    // Snapshot file, snapshot disabled if not provided
+    private String snapshotFile;
+    // Snapshot interval in milliseconds, only snapshot on stop if not positive
+    private long snapshotInterval;
+    // Snapshot scheduler
+    private ScheduledExecutorService scheduler;
+
+    // Last Message ID
+    private int messageID = 0;
+    // Topic <---> Retain Message
+    private final ConcurrentMap<String, StoredMessage> retains = new ConcurrentHashMap<>();
+    // Subscriber ID <---> Message ID <---> In-Flight Message
+    private final ConcurrentMap<String, ConcurrentMap<Integer, StoredMessage>> inFlights = new ConcurrentHashMap<>();
+    // Publisher ID <---> QoS2 Message IDs
+    private final ConcurrentMap<String, Set<Integer>> qos2 = new ConcurrentHashMap<>();
+    // Subscriber ID <---> Topic <---> Subscription
+    private final ConcurrentMap<String, ConcurrentMap<String, Subscription>> subscriptions = new ConcurrentHashMap<>();
+
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(StorageServiceImpl.class);
+
+    /**
+     * Injected Snapshot File
+     *
+     * @param snapshotFile Snapshot File Path
+     */
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Injected Snapshot Interval
+     *
+     * @param snapshotInterval Snapshot Interval in milliseconds
+     */
+    public void setSnapshotInterval(long snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * OSGi life cycle init
+     */
+    public void init() {
+        logger.info("MQTT Server Memory Storage Init.");
+    }
+
+    /**
+     * OSGi life cycle destroy
+     */
+    public void destroy() {
+        logger.info("MQTT Server Memory Storage Destroy.");
+    }
+
+    @Override
+    public void start() {
+        if (StringUtils.isBlank(snapshotFile)) {
+            return;
+        }
+        // Restore from snapshot
+        StorageSnapshot snapshot = StorageSnapshot.load(new File(snapshotFile));
+        if (snapshot != null) {
+            restore(snapshot);
+            logger.info("Memory Storage restored from snapshot {}.", snapshotFile);
+        }
+        // Periodically snapshot
+        if (snapshotInterval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    snapshot();
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        if (StringUtils.isNotBlank(snapshotFile)) {
+            snapshot();
+        }
+    }
+
+    @Override
+    public synchronized int getNextMessageID() {
+        messageID = getNextMessageID(messageID);
+        return messageID;
+    }
+
+    @Override
+    public synchronized int reserveMessageIDs(int count) {
+        int first = getNextMessageID(messageID);
+        messageID = MessageIDAllocator.wrap(messageID + count);
+        return first;
+    }
+
+    @Override
+    public void clean(String clientID) {
+        subscriptions.remove(clientID);
+        inFlights.remove(clientID);
+    }
+
+    @Override
+    public void putRetain(PublishMessage publishMessage) {
+        retains.put(publishMessage.getTopicName(), new StoredMessage(publishMessage));
+    }
+
+    @Override
+    public PublishMessage getRetain(String topic) {
+        StoredMessage retain = retains.get(topic);
+        return retain == null ? null : retain.toPublishMessage();
+    }
+
+    @Override
+    public List<PublishMessage> getRetainWildcard(String topic) {
+        List<PublishMessage> messages = new ArrayList<>();
+        for (StoredMessage retain : retains.values()) {
+            if (MQTTUtils.isTopicMatch(topic, retain.getTopicName(), false)) {
+                messages.add(retain.toPublishMessage());
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public void removeRetain(String topic) {
+        retains.remove(topic);
+    }
+
+    @Override
+    public void putInFlight(String subscriberID, PublishMessage publishMessage) {
+        getInFlightMap(subscriberID).put(publishMessage.getMessageID(), new StoredMessage(publishMessage));
+    }
+
+    @Override
+    public void putInFlights(List<String> subscriberIDs, PublishMessage publishMessage, int messageID) {
+        // All the subscribers share the same stored message
+        StoredMessage inFlight = new StoredMessage(
+                publishMessage.isRetain(),
+                publishMessage.getQosLevel().byteValue(),
+                publishMessage.getTopicName(),
+                messageID,
+                MQTTServerUtils.ByteBufferToByteArray(publishMessage.getContent()));
+        for (String subscriberID : subscriberIDs) {
+            getInFlightMap(subscriberID).put(messageID, inFlight);
+        }
+    }
+
+    @Override
+    public List<PublishMessage> getInFlights(String subscriberID) {
+        List<PublishMessage> messages = new ArrayList<>();
+        Map<Integer, StoredMessage> map = inFlights.get(subscriberID);
+        if (map != null) {
+            for (StoredMessage inFlight : map.values()) {
+                messages.add(inFlight.toPublishMessage());
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<String, List<Integer>> getAllInFlightIDs() {
+        Map<String, List<Integer>> result = new HashMap<>();
+        for (Map.Entry<String, ConcurrentMap<Integer, StoredMessage>> entry : inFlights.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                result.put(entry.getKey(), new ArrayList<>(entry.getValue().keySet()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public PublishMessage getInFlight(String subscriberID, int messageID) {
+        Map<Integer, StoredMessage> map = inFlights.get(subscriberID);
+        if (map != null) {
+            StoredMessage inFlight = map.get(messageID);
+            if (inFlight != null) {
+                return inFlight.toPublishMessage();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void removeInFlight(String subscriberID, int messageID) {
+        Map<Integer, StoredMessage> map = inFlights.get(subscriberID);
+        if (map != null) {
+            map.remove(messageID);
+        }
+    }
+
+    @Override
+    public void removeInFLightQoS0() {
+        for (Map<Integer, StoredMessage> map : inFlights.values()) {
+            Iterator<StoredMessage> iterator = map.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getQosLevel() == MQTTMessage.QoSLevel.MOST_ONCE.byteValue()) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean containsInFlight(String subscriberID, int messageID) {
+        Map<Integer, StoredMessage> map = inFlights.get(subscriberID);
+        return map != null && map.containsKey(messageID);
+    }
+
+    @Override
+    public void putQoS2(String publisherID, PublishMessage publishMessage) {
+        Set<Integer> set = qos2.get(publisherID);
+        if (set == null) {
+            Set<Integer> newSet = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            set = qos2.putIfAbsent(publisherID, newSet);
+            if (set == null) {
+                set = newSet;
+            }
+        }
+        set.add(publishMessage.getMessageID());
+    }
+
+    @Override
+    public boolean containsQoS2(String publisherID, int messageID) {
+        Set<Integer> set = qos2.get(publisherID);
+        return set != null && set.contains(messageID);
+    }
+
+    @Override
+    public void removeQoS2(String publisherID, int messageID) {
+        Set<Integer> set = qos2.get(publisherID);
+        if (set != null) {
+            set.remove(messageID);
+        }
+    }
+
+    @Override
+    public void putSubscription(Subscription subscription) {
+        ConcurrentMap<String, Subscription> map = subscriptions.get(subscription.getSubscriberID());
+        if (map == null) {
+            ConcurrentMap<String, Subscription> newMap = new ConcurrentHashMap<>();
+            map = subscriptions.putIfAbsent(subscription.getSubscriberID(), newMap);
+            if (map == null) {
+                map = newMap;
+            }
+        }
+        map.put(subscription.getTopic(), subscription);
+    }
+
+    @Override
+    public boolean containsSubscription(String subscriberID, String topic) {
+        Map<String, Subscription> map = subscriptions.get(subscriberID);
+        return map != null && map.containsKey(topic);
+    }
+
+    @Override
+    public void removeSubscription(String subscriberID, String topic) {
+        Map<String, Subscription> map = subscriptions.get(subscriberID);
+        if (map != null) {
+            map.remove(topic);
+        }
+    }
+
+    @Override
+    public List<Subscription> getSubscriptions(String topic) {
+        List<Subscription> result = new ArrayList<>();
+        for (Map<String, Subscription> map : subscriptions.values()) {
+            for (Subscription subscription : map.values()) {
+                if (MQTTUtils.isTopicMatch(subscription.getTopic(), topic, false)) {
+                    result.add(new Subscription(topic, subscription.getSubscriberID(), subscription.getQosLevel()));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Subscription> getAllSubscriptions() {
+        List<Subscription> result = new ArrayList<>();
+        for (Map<String, Subscription> map : subscriptions.values()) {
+            result.addAll(map.values());
+        }
+        return result;
+    }
+
+    @Override
+    public void applyBatch(List<StorageMutation> mutations) {
+        for (StorageMutation mutation : mutations) {
+            mutation.applyTo(this);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do, snapshot is taken periodically
+    }
+
+    /**
+     * Get or create the in-flight Message map for given subscriber
+     *
+     * @param subscriberID Subscriber ID
+     * @return Message ID <---> In-Flight Message
+     */
+    protected ConcurrentMap<Integer, StoredMessage> getInFlightMap(String subscriberID) {
+        ConcurrentMap<Integer, StoredMessage> map = inFlights.get(subscriberID);
+        if (map == null) {
+            ConcurrentMap<Integer, StoredMessage> newMap = new ConcurrentHashMap<>();
+            map = inFlights.putIfAbsent(subscriberID, newMap);
+            if (map == null) {
+                map = newMap;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Generate next Message ID, Range [1, 65535]
+     *
+     * @param number Number
+     * @return Next Message ID
+     */
+    protected int getNextMessageID(int number) {
+        if (number == 65535) {
+            return 1;
+        } else {
+            return number + 1;
+        }
+    }
+
+    /**
+     * Save current state to the snapshot file
+     *
+     * @return True if saved successfully
+     */
+    protected boolean snapshot() {
+        StorageSnapshot snapshot = new StorageSnapshot();
+        synchronized (this) {
+            snapshot.messageID = messageID;
+        }
+        snapshot.retains.putAll(retains);
+        for (Map.Entry<String, ConcurrentMap<Integer, StoredMessage>> entry : inFlights.entrySet()) {
+            snapshot.inFlights.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        for (Map.Entry<String, Set<Integer>> entry : qos2.entrySet()) {
+            snapshot.qos2.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        for (Map.Entry<String, ConcurrentMap<String, Subscription>> entry : subscriptions.entrySet()) {
+            snapshot.subscriptions.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return snapshot.save(new File(snapshotFile));
+    }
+
+    /**
+     * Restore state from the snapshot
+     *
+     * @param snapshot Snapshot
+     */
+    protected void restore(StorageSnapshot snapshot) {
+        synchronized (this) {
+            messageID = snapshot.messageID;
+        }
+        retains.putAll(snapshot.retains);
+        for (Map.Entry<String, Map<Integer, StoredMessage>> entry : snapshot.inFlights.entrySet()) {
+            getInFlightMap(entry.getKey()).putAll(entry.getValue());
+        }
+        for (Map.Entry<String, Set<Integer>> entry : snapshot.qos2.entrySet()) {
+            Set<Integer> set = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            set.addAll(entry.getValue());
+            qos2.put(entry.getKey(), set);
+        }
+        for (Map.Entry<String, Map<String, Subscription>> entry : snapshot.subscriptions.entrySet()) {
+            subscriptions.put(entry.getKey(), new ConcurrentHashMap<>(entry.getValue()));
+        }
+    }
+
+    /**
+     * Clear all the data
+     */
+    protected void clear() {
+        synchronized (this) {
+            messageID = 0;
+        }
+        retains.clear();
+        inFlights.clear();
+        qos2.clear();
+        subscriptions.clear();
+    }
+}
@@ -0,0 +1,89 @@
+package org.chii2.mqtt.server.storage.memory;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.chii2.mqtt.server.storage.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Point-in-time copy of the Memory Storage, saved to/loaded from a local file
+ */
+public class StorageSnapshot implements Serializable {
+
+    // The Logger
+    private static final Logger logger = LoggerFactory.getLogger(StorageSnapshot.class);
+
+    // Last Message ID
+    int messageID;
+    // Topic <---> Retain Message
+    final Map<String, StoredMessage> retains = new HashMap<>();
+    // Subscriber ID <---> Message ID <---> In-Flight Message
+    final Map<String, Map<Integer, StoredMessage>> inFlights = new HashMap<>();
+    // Publisher ID <---> QoS2 Message IDs
+    final Map<String, Set<Integer>> qos2 = new HashMap<>();
+    // Subscriber ID <---> Topic <---> Subscription
+    final Map<String, Map<String, Subscription>> subscriptions = new HashMap<>();
+
+    /**
+     * Save the snapshot to file
+     * Snapshot is written to a temporary file first, then moved to the target file,
+     * so a crash during saving never corrupts the previous snapshot.
+     *
+     * @param file Snapshot file
+     * @return True if saved successfully
+     */
+    public boolean save(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            logger.error("Error when create snapshot directory {}.", parent);
+            return false;
+        }
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeObject(this);
+        } catch (IOException e) {
+            logger.error("Error when write snapshot to {}: {}", temp, ExceptionUtils.getMessage(e));
+            return false;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Error when move snapshot to {}: {}", file, ExceptionUtils.getMessage(e));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Load the snapshot from file
+     *
+     * @param file Snapshot file
+     * @return Snapshot, or null if file not exist or can't be read
+     */
+    public static StorageSnapshot load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (StorageSnapshot) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.error("Error when read snapshot from {}: {}", file, ExceptionUtils.getMessage(e));
+            return null;
+        }
+    }
+}
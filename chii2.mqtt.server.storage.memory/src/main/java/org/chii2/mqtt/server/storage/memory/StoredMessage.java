@@ -0,0 +1,82 @@
+package org.chii2.mqtt.server.storage.memory;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.MQTTServerUtils;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * PUBLISH Message in Storage
+ * The content is kept as byte[] so it can be shared and serialized.
+ */
+public class StoredMessage implements Serializable {
+
+    private final boolean retain;
+
+    private final int qosLevel;
+
+    private final String topicName;
+
+    private final int messageID;
+
+    private final byte[] content;
+
+    public StoredMessage(boolean retain, int qosLevel, String topicName, int messageID, byte[] content) {
+        this.retain = retain;
+        this.qosLevel = qosLevel;
+        this.topicName = topicName;
+        this.messageID = messageID;
+        this.content = content;
+    }
+
+    /**
+     * Create from PUBLISH Message, the content will be copied
+     *
+     * @param publishMessage PUBLISH Message
+     */
+    public StoredMessage(PublishMessage publishMessage) {
+        this(publishMessage.isRetain(),
+                publishMessage.getQosLevel().byteValue(),
+                publishMessage.getTopicName(),
+                publishMessage.getMessageID(),
+                MQTTServerUtils.ByteBufferToByteArray(publishMessage.getContent()));
+    }
+
+    /**
+     * Convert to PUBLISH Message
+     * The content is wrapped, not copied.
+     *
+     * @return PUBLISH Message
+     */
+    public PublishMessage toPublishMessage() {
+        return new PublishMessage(
+                retain,
+                MQTTMessage.QoSLevel.values()[qosLevel],
+                false,
+                topicName,
+                messageID,
+                ByteBuffer.wrap(content));
+    }
+
+    public boolean isRetain() {
+        return retain;
+    }
+
+    public int getQosLevel() {
+        return qosLevel;
+    }
+
+    public String getTopicName() {
+        return topicName;
+    }
+
+    public int getMessageID() {
+        return messageID;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,203 @@
+package org.chii2.mqtt.server.storage.memory;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.storage.Subscription;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Storage Service Test
+ */
+public class StorageServiceImplTest {
+
+    StorageServiceImpl storage;
+
+    @BeforeClass
+    public void before() {
+        storage = new StorageServiceImpl();
+        storage.start();
+    }
+
+    @Test
+    public void messageIDTest() {
+        assert storage.getNextMessageID() == 1;
+        assert storage.getNextMessageID() == 2;
+        assert storage.getNextMessageID() == 3;
+    }
+
+    @Test
+    public void cleanTest() {
+        String clientID1 = "Chii2-C8-60-00-E2-1D-5A";
+        storage.putSubscription(new Subscription("/SmartHome/Server", clientID1, 2));
+        storage.putSubscription(new Subscription("/SmartHome/Client", clientID1, 1));
+        storage.putInFlight(clientID1, createMessage(MQTTMessage.QoSLevel.MOST_ONCE, 1111));
+        storage.putInFlight(clientID1, createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 2222));
+
+        assert storage.containsSubscription(clientID1, "/SmartHome/Server");
+        assert storage.containsSubscription(clientID1, "/SmartHome/Client");
+        assert storage.getInFlights(clientID1).size() == 2;
+        assert storage.getAllInFlightIDs().get(clientID1).size() == 2;
+        storage.clean(clientID1);
+        assert !storage.containsSubscription(clientID1, "/SmartHome/Server");
+        assert !storage.containsSubscription(clientID1, "/SmartHome/Client");
+        assert storage.getInFlights(clientID1).size() == 0;
+        assert !storage.getAllInFlightIDs().containsKey(clientID1);
+    }
+
+    @Test
+    public void retainTest() {
+        PublishMessage message1 = createMessage(MQTTMessage.QoSLevel.MOST_ONCE, 2020);
+        PublishMessage message2 = createMessage(MQTTMessage.QoSLevel.MOST_ONCE, 2020);
+        message2.setTopicName("/SmartHome/Server/MyServer1");
+
+        storage.putRetain(message1);
+        storage.putRetain(message2);
+        PublishMessage result = storage.getRetainWildcard("/SmartHome/Server").get(0);
+        assert result != null;
+        assert result.getMessageID() == 2020;
+        assert result.getQosLevel() == MQTTMessage.QoSLevel.MOST_ONCE;
+        assert result.getTopicName().equals("/SmartHome/Server");
+        assert result.isRetain();
+        assert !result.isDupFlag();
+        assert result.getContent().limit() == 5;
+        assert result.getContent().get(3) == 7;
+        assert storage.getRetainWildcard("/SmartHome/Server/#").size() == 2;
+        storage.removeRetain("/SmartHome/Server");
+        assert storage.getRetainWildcard("/SmartHome/Server/#").size() == 1;
+        storage.removeRetain("/SmartHome/Server/MyServer1");
+    }
+
+    @Test
+    public void inFlightTest() {
+        String clientID1 = "Chii2-C8-60-00-E2-1D-5C";
+        String clientID2 = "Chii2-C8-60-00-E2-1D";
+        PublishMessage message1 = createMessage(MQTTMessage.QoSLevel.MOST_ONCE, 1111);
+        PublishMessage message2 = createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 2222);
+
+        storage.putInFlight(clientID1, message1);
+        storage.putInFlight(clientID1, message2);
+        storage.putInFlight(clientID2, message2);
+
+        PublishMessage result = storage.getInFlight(clientID1, 1111);
+        assert result != null;
+        assert result.getMessageID() == 1111;
+        assert result.getQosLevel() == MQTTMessage.QoSLevel.MOST_ONCE;
+        assert result.getTopicName().equals("/SmartHome/Server");
+        assert result.getContent().limit() == 5;
+        assert result.getContent().get(3) == 7;
+        List<PublishMessage> results = storage.getInFlights(clientID1);
+        assert results.size() == 2;
+        assert storage.containsInFlight(clientID2, 2222);
+        storage.removeInFLightQoS0();
+        assert !storage.containsInFlight(clientID1, 1111);
+        assert storage.containsInFlight(clientID1, 2222);
+        storage.removeInFlight(clientID1, 2222);
+        assert storage.getInFlights(clientID1).size() == 0;
+        assert storage.containsInFlight(clientID2, 2222);
+        storage.removeInFlight(clientID2, 2222);
+    }
+
+    @Test
+    public void inFlightsTest() {
+        String clientID1 = "Chii2-C8-60-00-E2-1D-6A";
+        String clientID2 = "Chii2-C8-60-00-E2-1D-6B";
+        storage.putInFlights(Arrays.asList(clientID1, clientID2), createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 0), 3333);
+        PublishMessage result = storage.getInFlight(clientID1, 3333);
+        assert result != null;
+        assert result.getMessageID() == 3333;
+        assert result.getContent().get(3) == 7;
+        // Content is shared, not copied
+        assert result.getContent().array() == storage.getInFlight(clientID2, 3333).getContent().array();
+        storage.removeInFlight(clientID1, 3333);
+        storage.removeInFlight(clientID2, 3333);
+    }
+
+    @Test
+    public void qos2Test() {
+        String clientID = "Chii2-C8-60-00-E2-1D-5C";
+        storage.putQoS2(clientID, createMessage(MQTTMessage.QoSLevel.EXACTLY_ONCE, 1111));
+        assert storage.containsQoS2(clientID, 1111);
+        storage.removeQoS2(clientID, 2222);
+        storage.removeQoS2(clientID, 1111);
+        assert !storage.containsQoS2(clientID, 1111);
+    }
+
+    @Test
+    public void subscriptionTest() {
+        String clientID1 = "Chii2-C8-60-00-E2-1D-5B";
+        String clientID2 = "Chii2-C8-60-00-E2-1B";
+        storage.putSubscription(new Subscription("/SmartHome/Server", clientID1, 2));
+        storage.putSubscription(new Subscription("/SmartHome/+", clientID1, 1));
+        storage.putSubscription(new Subscription("/SmartHome/Server", clientID2, 1));
+        assert storage.containsSubscription(clientID1, "/SmartHome/+");
+        assert !storage.containsSubscription(clientID2, "/SmartHome/+");
+        assert storage.getSubscriptions("/SmartHome/Server").size() == 3;
+        assert storage.getSubscriptions("/SmartHome/Client").size() == 1;
+        storage.removeSubscription(clientID2, "/SmartHome/Server");
+        assert !storage.containsSubscription(clientID2, "/SmartHome/Server");
+        assert storage.getSubscriptions("/SmartHome/Server").size() == 2;
+        storage.clean(clientID1);
+    }
+
+    @Test
+    public void snapshotTest() {
+        File file = new File(System.getProperty("java.io.tmpdir") +
+                File.separator + "chii2" +
+                File.separator + "mqtt" +
+                File.separator + "memory.snapshot");
+        file.delete();
+        StorageServiceImpl source = new StorageServiceImpl();
+        source.setSnapshotFile(file.getPath());
+        source.start();
+        source.getNextMessageID();
+        source.putRetain(createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 3333));
+        source.putInFlight("Chii2-Snapshot", createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 4444));
+        source.putQoS2("Chii2-Snapshot", createMessage(MQTTMessage.QoSLevel.EXACTLY_ONCE, 5555));
+        source.putSubscription(new Subscription("/SmartHome/#", "Chii2-Snapshot", 1));
+        source.stop();
+        assert file.exists();
+
+        StorageServiceImpl target = new StorageServiceImpl();
+        target.setSnapshotFile(file.getPath());
+        target.start();
+        assert target.getNextMessageID() == 2;
+        assert target.getRetainWildcard("/SmartHome/#").size() == 1;
+        assert target.getInFlight("Chii2-Snapshot", 4444).getContent().get(3) == 7;
+        assert target.containsQoS2("Chii2-Snapshot", 5555);
+        assert target.containsSubscription("Chii2-Snapshot", "/SmartHome/#");
+        target.clear();
+        target.stop();
+        file.delete();
+    }
+
+    @AfterClass
+    public void after() {
+        storage.clear();
+        storage.stop();
+    }
+
+    private PublishMessage createMessage(MQTTMessage.QoSLevel qos, int messageID) {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put((byte) 1);
+        buffer.put((byte) 3);
+        buffer.put((byte) 5);
+        buffer.put((byte) 7);
+        buffer.put((byte) 9);
+        buffer.flip();
+        return new PublishMessage(
+                true,
+                qos,
+                false,
+                "/SmartHome/Server",
+                messageID,
+                buffer
+        );
+    }
+}
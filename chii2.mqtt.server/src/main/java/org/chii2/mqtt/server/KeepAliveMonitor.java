@@ -0,0 +1,94 @@
+package org.chii2.mqtt.server;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import org.chii2.mqtt.server.storage.ClientSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep Alive Monitor
+ * Closes the connection if nothing received from the client within one and a half times the Keep Alive period.
+ * <p/>
+ * All the sessions share one hashed timer wheel. Received frames only update the session's volatile
+ * timestamp, the session's check is rescheduled to the expected expiry time when it fires.
+ */
+public class KeepAliveMonitor {
+
+    // Timer wheel tick duration in milliseconds
+    private static final long TICK_DURATION = 1000;
+    // Timer wheel size
+    private static final int TICKS_PER_WHEEL = 512;
+
+    // Timer Wheel
+    private final HashedWheelTimer timer = new HashedWheelTimer(TICK_DURATION, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(KeepAliveMonitor.class);
+
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * Start to monitor the session, sessions with Keep Alive 0 are never expired
+     *
+     * @param session Client Session
+     */
+    public void watch(ClientSession session) {
+        if (session.getKeepAlive() > 0) {
+            schedule(session, getTimeout(session));
+        }
+    }
+
+    /**
+     * Check the session, close the connection if expired
+     *
+     * @param session Client Session
+     * @param now     Current time in milliseconds
+     * @return Delay in milliseconds before next check, -1 if no longer monitored
+     */
+    protected long check(ClientSession session, long now) {
+        // Closed or taken over, nothing to do
+        if (!session.isActive()) {
+            return -1;
+        }
+        long remaining = session.getLastActivity() + getTimeout(session) - now;
+        if (remaining > 0) {
+            return remaining;
+        }
+        logger.info("{} keep alive timeout, close the connection.", session.getClientID());
+        session.getContext().close();
+        return -1;
+    }
+
+    /**
+     * Schedule the session's check after delay
+     *
+     * @param session Client Session
+     * @param delay   Delay in milliseconds
+     */
+    protected void schedule(final ClientSession session, long delay) {
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                long next = check(session, System.currentTimeMillis());
+                if (next >= 0) {
+                    schedule(session, next);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keep Alive timeout of the session, one and a half times the Keep Alive period
+     *
+     * @param session Client Session
+     * @return Timeout in milliseconds
+     */
+    protected long getTimeout(ClientSession session) {
+        return session.getKeepAlive() * 1500L;
+    }
+}
@@ -1,31 +1,67 @@
 package org.chii2.mqtt.server;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.chii2.mqtt.common.codec.MQTTDecoder;
 import org.chii2.mqtt.common.codec.MQTTEncoder;
 import org.chii2.mqtt.server.disruptor.InboundDisruptor;
 import org.chii2.mqtt.server.disruptor.OutboundDisruptor;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.RetainIndex;
+import org.chii2.mqtt.server.storage.SessionRegistry;
 import org.chii2.mqtt.server.storage.StorageService;
+import org.chii2.mqtt.server.storage.SubscriptionTrie;
+import org.chii2.mqtt.server.storage.WriteBehindStorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
 /**
  * MQTT Message Server
  */
 public class MQTTServer {
 
+    // Netty default write buffer low water mark
+    private static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    // JMX name of the server metrics
+    private static final String METRICS_OBJECT_NAME = "org.chii2.mqtt:type=MQTTServerMetrics,name=";
+
     // Configuration
     private final MQTTServerConfiguration configuration;
     // Storage
     private final StorageService storage;
+    // Subscription Index
+    private final SubscriptionTrie subscriptions = new SubscriptionTrie();
+    // Message ID Allocator
+    private final MessageIDAllocator messageIDs;
+    // Retain Message Index
+    private final RetainIndex retains;
+    // Client Session Registry
+    private final SessionRegistry sessions = new SessionRegistry();
+    // Keep Alive Monitor
+    private final KeepAliveMonitor keepAlives = new KeepAliveMonitor();
+    // Server Metrics
+    private final MQTTServerMetrics metrics = new MQTTServerMetrics();
     // The Logger
     private final Logger logger = LoggerFactory.getLogger(MQTTServer.class);
 
@@ -33,12 +69,33 @@ public class MQTTServer {
     private InboundDisruptor inboundDisruptor;
     private OutboundDisruptor outboundDisruptor;
     // Configure the Netty server.
-    private final EventLoopGroup bossGroup = new NioEventLoopGroup();
-    private final EventLoopGroup workerGroup = new NioEventLoopGroup();
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    // Payload Spool executors, file operations never run on the event loops
+    private final EventExecutorGroup spoolGroup;
+    private final Class<? extends ServerChannel> serverChannelClass;
 
     public MQTTServer(MQTTServerConfiguration configuration, StorageService storage) {
         this.configuration = configuration;
-        this.storage = storage;
+        // Queue storage changes and apply them in batches
+        if (configuration.isWriteBehind()) {
+            this.storage = new WriteBehindStorageService(storage, configuration.getWriteBehindFlushSize(), configuration.getWriteBehindFlushInterval());
+        } else {
+            this.storage = storage;
+        }
+        this.messageIDs = new MessageIDAllocator(this.storage, configuration.getMessageIDBlockSize());
+        this.retains = new RetainIndex(this.storage, configuration.getRetainCacheSize());
+        // Native epoll transport if available
+        if (configuration.getTransport() == MQTTServerConfiguration.Transport.EPOLL && isEpollAvailable()) {
+            this.bossGroup = new EpollEventLoopGroup(configuration.getBossThreads());
+            this.workerGroup = new EpollEventLoopGroup(configuration.getWorkerThreads());
+            this.serverChannelClass = EpollServerSocketChannel.class;
+        } else {
+            this.bossGroup = new NioEventLoopGroup(configuration.getBossThreads());
+            this.workerGroup = new NioEventLoopGroup(configuration.getWorkerThreads());
+            this.serverChannelClass = NioServerSocketChannel.class;
+        }
+        this.spoolGroup = new DefaultEventExecutorGroup(configuration.getSpoolThreads());
     }
 
     /**
@@ -49,30 +106,70 @@ public class MQTTServer {
             // Init Storage
             storage.start();
             storage.removeInFLightQoS0();
+            // Rebuild outstanding Message IDs
+            Map<String, List<Integer>> inFlightIDs = storage.getAllInFlightIDs();
+            messageIDs.rebuild(inFlightIDs);
+            // Rebuild Subscription Index
+            subscriptions.rebuild(storage.getAllSubscriptions());
+            // Rebuild Retain Message Index
+            retains.rebuild(storage.getRetainWildcard("#"));
             // Init Disruptor
-            outboundDisruptor = new OutboundDisruptor(configuration, storage);
+            outboundDisruptor = new OutboundDisruptor(configuration, storage, subscriptions, messageIDs, sessions, metrics);
+            outboundDisruptor.rebuild(inFlightIDs);
             outboundDisruptor.start();
-            inboundDisruptor = new InboundDisruptor(configuration, storage, outboundDisruptor);
+            inboundDisruptor = new InboundDisruptor(configuration, storage, subscriptions, retains, messageIDs, outboundDisruptor, sessions, keepAlives, metrics);
             inboundDisruptor.start();
+            // Prepare the spool directory once, instead of checking it for every large message
+            File spoolDirectory = new File(configuration.getSpoolDirectory());
+            if (!spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+                throw new IOException("Can not create spool directory " + spoolDirectory);
+            }
             // Using single handler and attachments to store stateful information
-            final MQTTServerHandler mqttServerHandler = new MQTTServerHandler(inboundDisruptor);
+            final MQTTServerHandler mqttServerHandler = new MQTTServerHandler(inboundDisruptor, outboundDisruptor, sessions, spoolGroup, spoolDirectory);
+            // Encoder is stateless, shared by all the channels
+            final MQTTEncoder mqttEncoder = new MQTTEncoder();
             // Init Netty server
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(serverChannelClass)
+                    // Pooled buffers, avoid allocating new buffer for every message
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .option(ChannelOption.SO_BACKLOG, configuration.getSoBacklog())
+                    .childOption(ChannelOption.TCP_NODELAY, configuration.isTcpNoDelay())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel ch) throws Exception {
                             ch.pipeline().addLast(
-                                    new MQTTEncoder(),
-                                    new MQTTDecoder(),
+                                    mqttEncoder,
+                                    new MQTTDecoder(configuration.getChunkThreshold()),
                                     mqttServerHandler);
                         }
                     });
 
+            // Write buffer water marks, slow subscriber can't grow its outbound buffer without bound, see OutboundProcessor
+            // Low water mark must not be higher than high water mark at any time, Netty defaults are 32K and 64K
+            if (configuration.getWriteBufferHighWaterMark() >= DEFAULT_LOW_WATER_MARK) {
+                b.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, configuration.getWriteBufferHighWaterMark());
+                b.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, configuration.getWriteBufferLowWaterMark());
+            } else {
+                b.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, configuration.getWriteBufferLowWaterMark());
+                b.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, configuration.getWriteBufferHighWaterMark());
+            }
+            // Socket buffers, OS default if not set
+            if (configuration.getSoRcvBuf() > 0) {
+                b.childOption(ChannelOption.SO_RCVBUF, configuration.getSoRcvBuf());
+            }
+            if (configuration.getSoSndBuf() > 0) {
+                b.childOption(ChannelOption.SO_SNDBUF, configuration.getSoSndBuf());
+            }
+
+            // Expose the metrics through JMX
+            registerMetrics();
+
             // Start the server.
             ChannelFuture f = b.bind(configuration.getPort()).sync();
-            logger.info("{} has successfully started.", configuration.getServerName());
+            logger.info("{} has successfully started with {} transport.", configuration.getServerName(), serverChannelClass.getSimpleName());
             // Server socket closed listener.
             f.channel().closeFuture().addListener(new ChannelFutureListener() {
                 @Override
@@ -89,13 +186,68 @@ public class MQTTServer {
      * Stop the MQTT Message Server
      */
     public void stop() {
-        // Shutdown the Disruptor
+        // Shutdown all event loops to terminate all threads, closed connections may still push Will Messages
+        bossGroup.shutdownGracefully().syncUninterruptibly();
+        workerGroup.shutdownGracefully().syncUninterruptibly();
+        // Pending spool tasks may still push completed messages
+        spoolGroup.shutdownGracefully().syncUninterruptibly();
+        keepAlives.stop();
+        // Shutdown the Disruptor, pending events are processed first
         inboundDisruptor.stop();
         outboundDisruptor.stop();
-        // Shutdown all event loops to terminate all threads.
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
         // Shutdown Storage
         storage.stop();
+        unregisterMetrics();
+        logger.info("{} messages {}.", configuration.getServerName(), metrics);
+    }
+
+    /**
+     * Get the Server Metrics
+     *
+     * @return Server Metrics
+     */
+    public MQTTServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Register the Server Metrics to the platform MBean server
+     */
+    protected void registerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(METRICS_OBJECT_NAME + ObjectName.quote(configuration.getServerName())));
+        } catch (Exception e) {
+            logger.warn("Error when register {} metrics to JMX: {}", configuration.getServerName(), ExceptionUtils.getMessage(e));
+        }
+    }
+
+    /**
+     * Unregister the Server Metrics from the platform MBean server
+     */
+    protected void unregisterMetrics() {
+        try {
+            ObjectName name = new ObjectName(METRICS_OBJECT_NAME + ObjectName.quote(configuration.getServerName()));
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            logger.warn("Error when unregister {} metrics from JMX: {}", configuration.getServerName(), ExceptionUtils.getMessage(e));
+        }
+    }
+
+    /**
+     * Is the native epoll transport available on this platform
+     *
+     * @return True if available
+     */
+    protected boolean isEpollAvailable() {
+        try {
+            // Native library is loaded with the class
+            Class.forName("io.netty.channel.epoll.Native");
+            return true;
+        } catch (Throwable e) {
+            logger.warn("Native epoll transport not available, fallback to NIO: {}", ExceptionUtils.getMessage(e));
+            return false;
+        }
     }
 }
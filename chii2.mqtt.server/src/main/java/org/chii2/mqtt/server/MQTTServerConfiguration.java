@@ -4,6 +4,7 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.*;
 
@@ -16,6 +17,24 @@ public class MQTTServerConfiguration {
     private int port = 1883;
     // TCP/IP port 8883 is reserved with IANA for use with MQTT over SSL.
     private int sslPort = 8883;
+    // Network transport, fallback to NIO if not available
+    private Transport transport = Transport.EPOLL;
+    // Boss (acceptor) event loop threads count
+    private int bossThreads = 1;
+    // Worker event loop threads count, 0 for Netty default (2 * cores)
+    private int workerThreads = 0;
+    // Disable Nagle's algorithm, send small MQTT messages immediately
+    private boolean tcpNoDelay = true;
+    // Max pending connections queue length
+    private int soBacklog = 1024;
+    // Socket receive buffer size in bytes, 0 for OS default
+    private int soRcvBuf = 0;
+    // Socket send buffer size in bytes, 0 for OS default
+    private int soSndBuf = 0;
+    // Channel becomes unwritable when outbound buffer exceeds this, in bytes
+    private int writeBufferHighWaterMark = 64 * 1024;
+    // Channel becomes writable again when outbound buffer drops below this, in bytes
+    private int writeBufferLowWaterMark = 32 * 1024;
     // Server ID
     private final String serverID;
     // Server Name
@@ -26,8 +45,34 @@ public class MQTTServerConfiguration {
     private int maxRetryTimes = 5;
     // Inbound Disruptor Ring Buffer Size
     private int inboundRingBuffer = 1024;
+    // Inbound Processor threads count, events are sharded by Client ID
+    private int inboundShards = Runtime.getRuntime().availableProcessors();
     // Outbound Disruptor Ring Buffer Size
     private int outboundRingBuffer = 1024;
+    // Queue storage changes and apply them in batches
+    private boolean writeBehind = true;
+    // Max pending storage changes before flush
+    private int writeBehindFlushSize = 1000;
+    // Interval to flush pending storage changes in millisecond
+    private long writeBehindFlushInterval = 100;
+    // Flush a channel when bytes written in one batch reach this, channels are always flushed at the end of batch
+    private int flushThreshold = 16 * 1024;
+    // Max sent but not acknowledged QoS 1|2 messages per subscriber
+    private int maxInFlight = 100;
+    // Max stored messages per subscriber, online or offline
+    private int maxQueued = 10000;
+    // What to do when a subscriber's queue is full
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    // Number of Message IDs reserved from storage at a time
+    private int messageIDBlockSize = 1000;
+    // Max total payload size of cached retain messages in bytes
+    private long retainCacheSize = 16 * 1024 * 1024;
+    // PUBLISH Message larger than this is received in chunks and spooled to file, in bytes
+    private int chunkThreshold = 1024 * 1024;
+    // Threads writing the spooled Payload to file, off the event loops
+    private int spoolThreads = 1;
+    // Directory of the spooled Payload files, created when the server started
+    private String spoolDirectory = System.getProperty("java.io.tmpdir") + File.separator + "chii2-mqtt-spool";
 
     // The Logger
     private final Logger logger = LoggerFactory.getLogger(MQTTServerConfiguration.class);
@@ -83,6 +128,78 @@ public class MQTTServerConfiguration {
         this.sslPort = sslPort;
     }
 
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public int getSoBacklog() {
+        return soBacklog;
+    }
+
+    public void setSoBacklog(int soBacklog) {
+        this.soBacklog = soBacklog;
+    }
+
+    public int getSoRcvBuf() {
+        return soRcvBuf;
+    }
+
+    public void setSoRcvBuf(int soRcvBuf) {
+        this.soRcvBuf = soRcvBuf;
+    }
+
+    public int getSoSndBuf() {
+        return soSndBuf;
+    }
+
+    public void setSoSndBuf(int soSndBuf) {
+        this.soSndBuf = soSndBuf;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
     public String getServerID() {
         return serverID;
     }
@@ -119,6 +236,14 @@ public class MQTTServerConfiguration {
         this.inboundRingBuffer = inboundRingBuffer;
     }
 
+    public int getInboundShards() {
+        return inboundShards;
+    }
+
+    public void setInboundShards(int inboundShards) {
+        this.inboundShards = inboundShards;
+    }
+
     public int getOutboundRingBuffer() {
         return outboundRingBuffer;
     }
@@ -126,4 +251,122 @@ public class MQTTServerConfiguration {
     public void setOutboundRingBuffer(int outboundRingBuffer) {
         this.outboundRingBuffer = outboundRingBuffer;
     }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public int getWriteBehindFlushSize() {
+        return writeBehindFlushSize;
+    }
+
+    public void setWriteBehindFlushSize(int writeBehindFlushSize) {
+        this.writeBehindFlushSize = writeBehindFlushSize;
+    }
+
+    public long getWriteBehindFlushInterval() {
+        return writeBehindFlushInterval;
+    }
+
+    public void setWriteBehindFlushInterval(long writeBehindFlushInterval) {
+        this.writeBehindFlushInterval = writeBehindFlushInterval;
+    }
+
+    public int getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    public void setFlushThreshold(int flushThreshold) {
+        this.flushThreshold = flushThreshold;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public int getMessageIDBlockSize() {
+        return messageIDBlockSize;
+    }
+
+    public void setMessageIDBlockSize(int messageIDBlockSize) {
+        this.messageIDBlockSize = messageIDBlockSize;
+    }
+
+    public long getRetainCacheSize() {
+        return retainCacheSize;
+    }
+
+    public void setRetainCacheSize(long retainCacheSize) {
+        this.retainCacheSize = retainCacheSize;
+    }
+
+    public int getChunkThreshold() {
+        return chunkThreshold;
+    }
+
+    public void setChunkThreshold(int chunkThreshold) {
+        this.chunkThreshold = chunkThreshold;
+    }
+
+    public int getSpoolThreads() {
+        return spoolThreads;
+    }
+
+    public void setSpoolThreads(int spoolThreads) {
+        this.spoolThreads = spoolThreads;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * Network Transport
+     */
+    public enum Transport {
+        // Java NIO, available on all platforms
+        NIO,
+        // Linux native epoll, edge-triggered
+        EPOLL
+    }
+
+    /**
+     * What to do when a subscriber's queue is full
+     */
+    public enum OverflowPolicy {
+        // Drop the oldest stored message to make room for the new one
+        DROP_OLDEST,
+        // Drop the new message
+        DROP_NEWEST,
+        // Drop the new message and disconnect the subscriber
+        DISCONNECT
+    }
 }
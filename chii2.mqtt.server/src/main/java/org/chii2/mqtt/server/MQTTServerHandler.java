@@ -1,61 +1,248 @@
 package org.chii2.mqtt.server;
 
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.chii2.mqtt.common.message.ConnectMessage;
+import org.chii2.mqtt.common.message.DisconnectMessage;
 import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishChunk;
+import org.chii2.mqtt.common.message.PublishMessage;
 import org.chii2.mqtt.server.disruptor.InboundDisruptor;
 import org.chii2.mqtt.server.disruptor.InboundMQTTEventTranslator;
-import org.chii2.mqtt.server.storage.ChannelRepository;
+import org.chii2.mqtt.server.disruptor.OutboundDisruptor;
+import org.chii2.mqtt.server.storage.ClientSession;
+import org.chii2.mqtt.server.storage.SessionRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Netty Server Handler
+ * Stateless, states are stored in the channel attachments, one instance is shared by all the channels.
  */
+@ChannelHandler.Sharable
 public class MQTTServerHandler extends ChannelInboundHandlerAdapter {
 
     // ChannelHandlerContext Attachment
-    protected static final AttributeKey<Boolean> AUTH = AttributeKey.valueOf("AUTH");
+    protected static final AttributeKey<ClientSession> SESSION = AttributeKey.valueOf("SESSION");
     protected static final AttributeKey<String> CLIENT_ID = AttributeKey.valueOf("CLIENT_ID");
+    protected static final AttributeKey<PayloadSpool> SPOOL = AttributeKey.valueOf("SPOOL");
     // Inbound Disruptor
     InboundDisruptor disruptor;
+    // Outbound Disruptor
+    OutboundDisruptor outboundDisruptor;
+    // Client Session Registry
+    SessionRegistry sessions;
+    // Executors run the Payload Spool file operations
+    EventExecutorGroup spoolExecutors;
+    // Spool Directory
+    File spoolDirectory;
+
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(MQTTServerHandler.class);
 
-    public MQTTServerHandler(InboundDisruptor disruptor) {
+    public MQTTServerHandler(InboundDisruptor disruptor, OutboundDisruptor outboundDisruptor, SessionRegistry sessions,
+                             EventExecutorGroup spoolExecutors, File spoolDirectory) {
         this.disruptor = disruptor;
+        this.outboundDisruptor = outboundDisruptor;
+        this.sessions = sessions;
+        this.spoolExecutors = spoolExecutors;
+        this.spoolDirectory = spoolDirectory;
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object message) {
+        // Client is alive
+        ClientSession session = getSession(ctx);
+        if (session != null) {
+            session.touch();
+            // Clean disconnect, discard the Will Message before the connection closed
+            if (message instanceof DisconnectMessage) {
+                session.takeWill();
+            }
+        }
+        // Large PUBLISH Message, spool the Payload until all chunks received
+        if (message instanceof PublishChunk) {
+            spool(ctx, (PublishChunk) message);
+            return;
+        } else if (message instanceof PublishMessage && ((PublishMessage) message).isChunked()) {
+            openSpool(ctx, (PublishMessage) message);
+            return;
+        }
+        // Remember the Client ID before push, following messages of the channel are sharded by it
+        if (message instanceof ConnectMessage) {
+            setClientID(ctx, ((ConnectMessage) message).getClientID());
+        }
         // Received the MQTT Message , push to disruptor
-        disruptor.pushEvent(new InboundMQTTEventTranslator(ctx, (MQTTMessage) message));
+        push(ctx, new InboundMQTTEventTranslator(ctx, (MQTTMessage) message));
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // Outbound buffer drained below low water mark, resume sending waiting messages
+        String clientID = getClientID(ctx);
+        if (clientID != null && ctx.channel().isWritable()) {
+            outboundDisruptor.resume(clientID);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // Messages are written with the void promise, write failures also end up here
+        logger.debug("{} channel error, close the connection: {}", getClientID(ctx), ExceptionUtils.getMessage(cause));
+        ctx.close();
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        // Remove the context from ChannelRepository
-        ChannelRepository.removeClientChannel(getClientID(ctx));
+        // Remove the session from SessionRegistry, unless taken over by a new connection
+        ClientSession session = getSession(ctx);
+        boolean removed = sessions.remove(session);
+        // Connection lost without DISCONNECT or keep alive timeout, publish the Will Message
+        PublishMessage willMessage = session == null ? null : session.takeWill();
+        if (willMessage != null) {
+            push(ctx, new InboundMQTTEventTranslator(ctx, willMessage, true));
+        }
+        // Session ended, discard the state only kept for the connection
+        if (removed) {
+            push(ctx, new InboundMQTTEventTranslator(ctx, null, false, true));
+        }
+        // Discard the incomplete Payload
+        final PayloadSpool spool = ctx.attr(SPOOL).getAndRemove();
+        if (spool != null) {
+            spool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    spool.close();
+                }
+            });
+        }
     }
 
     /**
-     * Get Authorization state from ChannelHandlerContext's Attachment
+     * Push the event to disruptor
+     * If the channel's spool still has tasks, the event is pushed after them to keep the messages in order.
+     *
+     * @param ctx        ChannelHandlerContext
+     * @param translator Inbound Event Translator
+     */
+    protected void push(ChannelHandlerContext ctx, final InboundMQTTEventTranslator translator) {
+        PayloadSpool spool = ctx.attr(SPOOL).get();
+        if (spool != null && spool.isBusy()) {
+            spool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    disruptor.pushEvent(translator);
+                }
+            });
+        } else {
+            disruptor.pushEvent(translator);
+        }
+    }
+
+    /**
+     * Start to spool the Payload of the chunked PUBLISH Message
+     * The channel's spool is created on first use, all channels share the spool executors.
+     *
+     * @param ctx            ChannelHandlerContext
+     * @param publishMessage Chunked Publish Message
+     */
+    protected void openSpool(ChannelHandlerContext ctx, final PublishMessage publishMessage) {
+        Attribute<PayloadSpool> attr = ctx.attr(SPOOL);
+        PayloadSpool spool = attr.get();
+        if (spool == null) {
+            spool = new PayloadSpool(spoolDirectory, spoolExecutors.next());
+            attr.set(spool);
+        }
+        final PayloadSpool target = spool;
+        spool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    target.open(publishMessage);
+                } catch (IOException e) {
+                    logger.error("Error when create payload spool, PUBLISH Message dropped: {}", ExceptionUtils.getMessage(e));
+                    target.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Append the chunk to the spooled Payload of the channel
+     * The completed message is pushed to disruptor from the spool's executor.
+     *
+     * @param ctx   ChannelHandlerContext
+     * @param chunk Chunk of Payload, released after spooled
+     */
+    protected void spool(final ChannelHandlerContext ctx, final PublishChunk chunk) {
+        final PayloadSpool spool = ctx.attr(SPOOL).get();
+        // Channel closed, drop the rest
+        if (spool == null) {
+            chunk.release();
+            return;
+        }
+        spool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Spool not created or failed, drop the rest
+                    if (!spool.isOpen()) {
+                        return;
+                    }
+                    spool.write(chunk.content());
+                    if (chunk.isLast()) {
+                        disruptor.pushEvent(new InboundMQTTEventTranslator(ctx, spool.complete()));
+                    }
+                } catch (IOException e) {
+                    logger.error("Error when spool payload, PUBLISH Message dropped: {}", ExceptionUtils.getMessage(e));
+                    spool.close();
+                } finally {
+                    chunk.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Get Authorization state from the Client Session in ChannelHandlerContext's Attachment
      *
      * @param context ChannelHandlerContext
-     * @return Authorization State
+     * @return Authorization State, false if not connected yet
      */
     public static boolean getAuthorization(ChannelHandlerContext context) {
-        Attribute<Boolean> attr = context.attr(AUTH);
+        ClientSession session = getSession(context);
+        return session != null && session.isAuthorized();
+    }
+
+    /**
+     * Get Client Session from ChannelHandlerContext's Attachment
+     *
+     * @param context ChannelHandlerContext
+     * @return Client Session, null if not connected yet
+     */
+    public static ClientSession getSession(ChannelHandlerContext context) {
+        Attribute<ClientSession> attr = context.attr(SESSION);
         return attr.get();
     }
 
     /**
-     * Set/Save Authorization state to ChannelHandlerContext's Attachment
+     * Set/Save Client Session to ChannelHandlerContext's Attachment
      *
      * @param context ChannelHandlerContext
-     * @param auth    Authorization State
+     * @param session Client Session
      */
-    public static void setAuthorization(ChannelHandlerContext context, boolean auth) {
-        Attribute<Boolean> attr = context.attr(AUTH);
-        attr.set(auth);
+    public static void setSession(ChannelHandlerContext context, ClientSession session) {
+        Attribute<ClientSession> attr = context.attr(SESSION);
+        attr.set(session);
     }
 
     /**
@@ -0,0 +1,133 @@
+package org.chii2.mqtt.server;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * MQTT Server Metrics
+ * Aggregated message counters instead of per message logging, exposed through JMX by MQTTServer.
+ * <p/>
+ * Each event processor updates its own Counters, so the hot path never contends on a shared counter.
+ * Totals are summed over all the Counters when read.
+ */
+public class MQTTServerMetrics implements MQTTServerMetricsMBean {
+
+    // Message type count, index is the message type value
+    private static final int MESSAGE_TYPES = 16;
+
+    // Counters of all the processors
+    private final List<Counters> counters = new CopyOnWriteArrayList<>();
+    // Messages dropped by subscriber queues
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Create Counters for a new event processor
+     *
+     * @return Counters
+     */
+    public Counters newCounters() {
+        Counters c = new Counters();
+        counters.add(c);
+        return c;
+    }
+
+    /**
+     * Message dropped by subscriber queue, rarely happens so a shared counter is fine
+     */
+    public void messageDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Messages received of the type
+     *
+     * @param messageType Message Type
+     * @return Count
+     */
+    public long getReceived(MQTTMessage.MessageType messageType) {
+        long sum = 0;
+        for (Counters c : counters) {
+            sum += c.received.get(messageType.byteValue());
+        }
+        return sum;
+    }
+
+    /**
+     * Messages sent of the type
+     *
+     * @param messageType Message Type
+     * @return Count
+     */
+    public long getSent(MQTTMessage.MessageType messageType) {
+        long sum = 0;
+        for (Counters c : counters) {
+            sum += c.sent.get(messageType.byteValue());
+        }
+        return sum;
+    }
+
+    @Override
+    public long getReceivedMessages() {
+        long sum = 0;
+        for (MQTTMessage.MessageType messageType : MQTTMessage.MessageType.values()) {
+            sum += getReceived(messageType);
+        }
+        return sum;
+    }
+
+    @Override
+    public long getSentMessages() {
+        long sum = 0;
+        for (MQTTMessage.MessageType messageType : MQTTMessage.MessageType.values()) {
+            sum += getSent(messageType);
+        }
+        return sum;
+    }
+
+    @Override
+    public long getReceivedPublishMessages() {
+        return getReceived(MQTTMessage.MessageType.PUBLISH);
+    }
+
+    @Override
+    public long getSentPublishMessages() {
+        return getSent(MQTTMessage.MessageType.PUBLISH);
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "received " + getReceivedMessages() + " (" + getReceivedPublishMessages() + " PUBLISH), sent "
+                + getSentMessages() + " (" + getSentPublishMessages() + " PUBLISH), dropped " + getDroppedMessages();
+    }
+
+    /**
+     * Message counters of one event processor
+     * Only the processor thread updates them, so a plain ordered write is enough, readers may see slightly old values.
+     */
+    public static class Counters {
+
+        // Message type value <---> Received count
+        private final AtomicLongArray received = new AtomicLongArray(MESSAGE_TYPES);
+        // Message type value <---> Sent count
+        private final AtomicLongArray sent = new AtomicLongArray(MESSAGE_TYPES);
+
+        public void received(MQTTMessage.MessageType messageType) {
+            int i = messageType.byteValue();
+            received.lazySet(i, received.get(i) + 1);
+        }
+
+        public void sent(MQTTMessage.MessageType messageType) {
+            int i = messageType.byteValue();
+            sent.lazySet(i, sent.get(i) + 1);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.chii2.mqtt.server;
+
+/**
+ * MQTT Server Metrics JMX interface
+ */
+public interface MQTTServerMetricsMBean {
+
+    /**
+     * @return Messages received from clients
+     */
+    public long getReceivedMessages();
+
+    /**
+     * @return Messages sent to clients
+     */
+    public long getSentMessages();
+
+    /**
+     * @return PUBLISH Messages received from clients
+     */
+    public long getReceivedPublishMessages();
+
+    /**
+     * @return PUBLISH Messages sent to subscribers
+     */
+    public long getSentPublishMessages();
+
+    /**
+     * @return Messages dropped by subscriber queues
+     */
+    public long getDroppedMessages();
+}
@@ -1,5 +1,9 @@
 package org.chii2.mqtt.server;
 
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 import static org.chii2.mqtt.common.message.MQTTMessage.QoSLevel;
@@ -35,6 +39,19 @@ public class MQTTServerUtils {
         return bytes;
     }
 
+    /**
+     * ByteBuffer to InputStream, without copying the content
+     * Storage reads large content as a stream, the position of the ByteBuffer is not changed.
+     *
+     * @param byteBuffer ByteBuffer
+     * @return InputStream
+     */
+    public static InputStream ByteBufferToInputStream(ByteBuffer byteBuffer) {
+        ByteBuffer duplicate = byteBuffer.duplicate();
+        duplicate.rewind();
+        return new ByteBufInputStream(Unpooled.wrappedBuffer(duplicate));
+    }
+
     /**
      * byte[] to ByteBuffer
      *
@@ -0,0 +1,150 @@
+package org.chii2.mqtt.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.EventExecutor;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Payload Spool
+ * Collects the Payload of chunked PUBLISH Messages of a channel into temporary files instead of the heap.
+ * When completed, the Payload is memory mapped as the message content, pages are loaded by the OS when read.
+ * <p/>
+ * Creating, writing and mapping files may block, so the file operations are never run on the channel's
+ * event loop. They are executed in order on the spool's executor, see {@link #execute(Runnable)}.
+ * Files are created in the spool directory prepared when the server started.
+ */
+public class PayloadSpool {
+
+    // Spool Directory
+    private final File directory;
+    // Executor runs the file operations
+    private final EventExecutor executor;
+    // Tasks submitted but not finished
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // Chunked Publish Message, only accessed by the executor
+    private PublishMessage publishMessage;
+    // Temporary File, only accessed by the executor
+    private File file;
+    // File Channel, only accessed by the executor
+    private FileChannel channel;
+
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(PayloadSpool.class);
+
+    public PayloadSpool(File directory, EventExecutor executor) {
+        this.directory = directory;
+        this.executor = executor;
+    }
+
+    /**
+     * Run the task on the spool's executor, tasks are run in the submitted order
+     *
+     * @param task Task
+     */
+    public void execute(final Runnable task) {
+        pending.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Are there tasks not finished yet
+     * Only meaningful to the thread submitting the tasks, when false all the submitted tasks have been run.
+     *
+     * @return True if busy
+     */
+    public boolean isBusy() {
+        return pending.get() > 0;
+    }
+
+    /**
+     * Start to spool the Payload of the chunked message, incomplete Payload is discarded
+     * Must be called on the spool's executor.
+     *
+     * @param publishMessage Chunked Publish Message
+     * @throws IOException
+     */
+    public void open(PublishMessage publishMessage) throws IOException {
+        close();
+        this.file = File.createTempFile("chii2-mqtt-", ".payload", directory);
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.publishMessage = publishMessage;
+    }
+
+    /**
+     * Is a Payload being spooled
+     *
+     * @return True if opened
+     */
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Append the chunk to the Payload
+     * Must be called on the spool's executor.
+     *
+     * @param chunk Chunk of Payload
+     * @throws IOException
+     */
+    public void write(ByteBuf chunk) throws IOException {
+        while (chunk.isReadable()) {
+            chunk.readBytes(channel, chunk.readableBytes());
+        }
+    }
+
+    /**
+     * All chunks received, set the Payload as the message content and close the file
+     * Must be called on the spool's executor.
+     *
+     * @return Publish Message with content
+     * @throws IOException
+     */
+    public PublishMessage complete() throws IOException {
+        try {
+            publishMessage.setContent(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return publishMessage;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Close and delete the temporary file if any
+     * Mapped content is still valid after the file deleted. Must be called on the spool's executor.
+     */
+    public void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Error when close payload spool {}: {}", file, ExceptionUtils.getMessage(e));
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        publishMessage = null;
+        file = null;
+        channel = null;
+    }
+}
@@ -0,0 +1,70 @@
+package org.chii2.mqtt.server.disruptor;
+
+import io.netty.channel.ChannelHandlerContext;
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.server.MQTTServerMetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Channel Flusher used by event processors
+ * Messages are written without flush, each channel is flushed once at the end of the Disruptor batch,
+ * or earlier when the bytes written since its last flush reach the threshold.
+ * So messages to the same channel in one batch are sent with a few syscalls instead of one per message.
+ * <p/>
+ * Messages are written with the void promise, no future or listener is allocated per message.
+ * Write failures are fired as exceptionCaught to the channel pipeline, see MQTTServerHandler.
+ * <p/>
+ * Not thread safe, each processor has its own instance.
+ */
+public class ChannelFlusher {
+
+    // Flush the channel when bytes written since last flush reach this
+    private final int flushThreshold;
+    // Channel <---> Bytes written since last flush
+    private final Map<ChannelHandlerContext, Integer> pending = new HashMap<>();
+    // Message counters of the processor
+    private final MQTTServerMetrics.Counters counters;
+
+    public ChannelFlusher(int flushThreshold, MQTTServerMetrics.Counters counters) {
+        this.flushThreshold = flushThreshold;
+        this.counters = counters;
+    }
+
+    /**
+     * Write the message to the channel, flush later
+     *
+     * @param context ChannelHandlerContext
+     * @param message MQTT Message
+     */
+    public void write(ChannelHandlerContext context, MQTTMessage message) {
+        // Read before written, the message belongs to the event loop once written
+        MQTTMessage.MessageType messageType = message.getMessageType();
+        int length = message.getRemainingLength();
+        context.write(message, context.voidPromise());
+        counters.sent(messageType);
+        Integer written = pending.get(context);
+        // Fixed Header is 2 bytes for most messages
+        int bytes = (written == null ? 0 : written) + length + 2;
+        if (bytes >= flushThreshold) {
+            context.flush();
+            pending.remove(context);
+        } else {
+            pending.put(context, bytes);
+        }
+    }
+
+    /**
+     * Flush all the channels written since last flush, called at the end of the Disruptor batch
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (ChannelHandlerContext context : pending.keySet()) {
+            context.flush();
+        }
+        pending.clear();
+    }
+}
@@ -1,8 +1,14 @@
 package org.chii2.mqtt.server.disruptor;
 
 import com.lmax.disruptor.dsl.Disruptor;
+import org.chii2.mqtt.server.KeepAliveMonitor;
 import org.chii2.mqtt.server.MQTTServerConfiguration;
+import org.chii2.mqtt.server.MQTTServerMetrics;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.RetainIndex;
+import org.chii2.mqtt.server.storage.SessionRegistry;
 import org.chii2.mqtt.server.storage.StorageService;
+import org.chii2.mqtt.server.storage.SubscriptionTrie;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -14,16 +20,20 @@ import java.util.concurrent.Executors;
  */
 public class InboundDisruptor {
 
-    // Processor threads count
-    private static final int EVENT_PROCESSORS_NUM = 1;
-
     private final ExecutorService executor;
     private final Disruptor<InboundMQTTEvent> disruptor;
 
-    public InboundDisruptor(MQTTServerConfiguration configuration, StorageService storage, OutboundDisruptor outboundDisruptor) {
-        executor = Executors.newFixedThreadPool(EVENT_PROCESSORS_NUM);
+    public InboundDisruptor(MQTTServerConfiguration configuration, StorageService storage, SubscriptionTrie subscriptions, RetainIndex retains, MessageIDAllocator messageIDs, OutboundDisruptor outboundDisruptor, SessionRegistry sessions, KeepAliveMonitor keepAlives, MQTTServerMetrics metrics) {
+        // One Processor thread per shard, each only handles the events of its own clients
+        int shards = Math.max(1, configuration.getInboundShards());
+        InboundProcessor[] processors = new InboundProcessor[shards];
+        for (int i = 0; i < shards; i++) {
+            MQTTServerMetrics.Counters counters = metrics.newCounters();
+            processors[i] = new InboundProcessor(i, shards, storage, subscriptions, retains, messageIDs, outboundDisruptor, sessions, keepAlives, new ChannelFlusher(configuration.getFlushThreshold(), counters), counters);
+        }
+        executor = Executors.newFixedThreadPool(shards);
         disruptor = new Disruptor<>(InboundMQTTEvent.factory, configuration.getInboundRingBuffer(), executor);
-        disruptor.handleEventsWith(new InboundProcessor(storage, outboundDisruptor));
+        disruptor.handleEventsWith(processors);
     }
 
     public void start() {
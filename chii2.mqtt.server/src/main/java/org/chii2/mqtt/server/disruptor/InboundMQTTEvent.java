@@ -13,6 +13,12 @@ public class InboundMQTTEvent {
     private ChannelHandlerContext context;
     // MQTT Message
     private MQTTMessage mqttMessage;
+    // Shard Key, hash of the Client ID
+    private int shardKey;
+    // Is the MQTT Message the client's Will Message
+    private boolean will;
+    // Is the event the client's connection closed, without MQTT Message
+    private boolean closed;
 
     public ChannelHandlerContext getContext() {
         return context;
@@ -30,6 +36,30 @@ public class InboundMQTTEvent {
         this.mqttMessage = mqttMessage;
     }
 
+    public int getShardKey() {
+        return shardKey;
+    }
+
+    public void setShardKey(int shardKey) {
+        this.shardKey = shardKey;
+    }
+
+    public boolean isWill() {
+        return will;
+    }
+
+    public void setWill(boolean will) {
+        this.will = will;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void setClosed(boolean closed) {
+        this.closed = closed;
+    }
+
     /**
      * Event Factory used by disruptor
      */
@@ -2,7 +2,9 @@ package org.chii2.mqtt.server.disruptor;
 
 import com.lmax.disruptor.EventTranslator;
 import io.netty.channel.ChannelHandlerContext;
+import org.chii2.mqtt.common.message.ConnectMessage;
 import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.server.MQTTServerHandler;
 
 /**
  * MQTT Event Translator used by InboundDisruptor
@@ -11,15 +13,47 @@ public class InboundMQTTEventTranslator implements EventTranslator<InboundMQTTEv
 
     private ChannelHandlerContext context;
     private MQTTMessage message;
+    private int shardKey;
+    private boolean will;
+    private boolean closed;
 
     public InboundMQTTEventTranslator(ChannelHandlerContext context, MQTTMessage message) {
+        this(context, message, false);
+    }
+
+    public InboundMQTTEventTranslator(ChannelHandlerContext context, MQTTMessage message, boolean will) {
+        this(context, message, will, false);
+    }
+
+    /**
+     * Closed event has no MQTT Message, it's sharded by the Client ID of the channel
+     *
+     * @param context ChannelHandlerContext
+     * @param message MQTT Message, null if closed
+     * @param will    Is the message the client's Will Message
+     * @param closed  Is the client's connection closed
+     */
+    public InboundMQTTEventTranslator(ChannelHandlerContext context, MQTTMessage message, boolean will, boolean closed) {
         this.context = context;
         this.message = message;
+        this.will = will;
+        this.closed = closed;
+        // Messages of the same client always go to the same shard
+        String clientID;
+        if (message instanceof ConnectMessage) {
+            clientID = ((ConnectMessage) message).getClientID();
+        } else {
+            clientID = MQTTServerHandler.getClientID(context);
+        }
+        this.shardKey = clientID == null ? 0 : clientID.hashCode() & Integer.MAX_VALUE;
     }
 
     @Override
     public void translateTo(InboundMQTTEvent event, long sequence) {
         event.setContext(context);
         event.setMQTTMessage(message);
+        event.setShardKey(shardKey);
+        event.setWill(will);
+        event.setClosed(closed);
     }
 }
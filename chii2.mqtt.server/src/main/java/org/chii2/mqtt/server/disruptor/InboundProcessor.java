@@ -5,12 +5,21 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import org.chii2.mqtt.common.message.*;
-import org.chii2.mqtt.server.storage.ChannelRepository;
+import org.chii2.mqtt.server.KeepAliveMonitor;
+import org.chii2.mqtt.server.MQTTServerMetrics;
+import org.chii2.mqtt.server.storage.ClientSession;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.QoS2Index;
+import org.chii2.mqtt.server.storage.RetainIndex;
+import org.chii2.mqtt.server.storage.SessionRegistry;
 import org.chii2.mqtt.server.storage.StorageService;
 import org.chii2.mqtt.server.storage.Subscription;
+import org.chii2.mqtt.server.storage.SubscriptionTrie;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,49 +27,106 @@ import static org.chii2.mqtt.server.MQTTServerHandler.*;
 
 /**
  * MQTT Message Inbound Journal Processor
+ * Events are sharded by Client ID, each Processor handles one shard, so messages of the same
+ * client are always processed in order by the same thread.
  */
 public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
     // The Logger
     private final Logger logger = LoggerFactory.getLogger(InboundProcessor.class);
+    // Shard handled by this Processor
+    private final int shard;
+    // Total shards count
+    private final int shards;
     // Storage
     private StorageService storage;
+    // Subscription Index
+    private SubscriptionTrie subscriptions;
+    // Retain Message Index
+    private RetainIndex retains;
+    // Message ID Allocator
+    private MessageIDAllocator messageIDs;
+    // QoS2 Message Index of the publishers in this shard
+    private QoS2Index qos2;
     // Outbound Disruptor
     private OutboundDisruptor outboundDisruptor;
+    // Client Session Registry
+    private SessionRegistry sessions;
+    // Keep Alive Monitor
+    private KeepAliveMonitor keepAlives;
+    // Channel Flusher, messages are flushed at the end of batch
+    private ChannelFlusher flusher;
+    // Message counters of this Processor
+    private MQTTServerMetrics.Counters counters;
 
-    public InboundProcessor(StorageService storage, OutboundDisruptor outboundDisruptor) {
+    public InboundProcessor(int shard, int shards, StorageService storage, SubscriptionTrie subscriptions, RetainIndex retains, MessageIDAllocator messageIDs, OutboundDisruptor outboundDisruptor, SessionRegistry sessions, KeepAliveMonitor keepAlives, ChannelFlusher flusher, MQTTServerMetrics.Counters counters) {
+        this.shard = shard;
+        this.shards = shards;
         this.storage = storage;
+        this.subscriptions = subscriptions;
+        this.retains = retains;
+        this.messageIDs = messageIDs;
+        this.qos2 = new QoS2Index(storage);
         this.outboundDisruptor = outboundDisruptor;
+        this.sessions = sessions;
+        this.keepAlives = keepAlives;
+        this.flusher = flusher;
+        this.counters = counters;
     }
 
     @Override
     public void onEvent(InboundMQTTEvent event, long sequenceNumber, boolean endOfBatch) throws Exception {
         MQTTMessage message = event.getMQTTMessage();
-        if (message instanceof ConnectMessage) {
-            onConnect(event, sequenceNumber, endOfBatch);
-        } else if (message instanceof DisconnectMessage) {
-            onDisconnect(event, sequenceNumber, endOfBatch);
-        } else {
-            // Discard if NOT Authorized
-            if (!getAuthorization(event.getContext())) {
+        try {
+            // Events of other shards are handled by other Processors
+            if (event.getShardKey() % shards != shard) {
                 return;
             }
 
-            if (message instanceof PublishMessage) {
-                onPublish(event, sequenceNumber, endOfBatch);
-            } else if (message instanceof PubAckMessage) {
-                onPubAck(event, sequenceNumber, endOfBatch);
-            } else if (message instanceof PubRecMessage) {
-                onPubRec(event, sequenceNumber, endOfBatch);
-            } else if (message instanceof PubRelMessage) {
-                onPubRel(event, sequenceNumber, endOfBatch);
-            } else if (message instanceof PubCompMessage) {
-                onPubComp(event, sequenceNumber, endOfBatch);
-            } else if (message instanceof SubscribeMessage) {
-                onSubscribe(event, sequenceNumber, endOfBatch);
-            } else if (message instanceof UnsubscribeMessage) {
-                onUnsubscribe(event, sequenceNumber, endOfBatch);
-            } else if (message instanceof PingReqMessage) {
-                onPingReq(event, sequenceNumber, endOfBatch);
+            if (event.isWill()) {
+                onWill(event, sequenceNumber, endOfBatch);
+                return;
+            }
+            if (event.isClosed()) {
+                onClosed(event, sequenceNumber, endOfBatch);
+                return;
+            }
+            counters.received(message.getMessageType());
+
+            if (message instanceof ConnectMessage) {
+                onConnect(event, sequenceNumber, endOfBatch);
+            } else if (message instanceof DisconnectMessage) {
+                onDisconnect(event, sequenceNumber, endOfBatch);
+            } else {
+                // Discard if NOT Authorized
+                ClientSession session = getSession(event.getContext());
+                if (session == null || !session.isAuthorized()) {
+                    return;
+                }
+                session.messageReceived();
+
+                if (message instanceof PublishMessage) {
+                    onPublish(event, sequenceNumber, endOfBatch);
+                } else if (message instanceof PubAckMessage) {
+                    onPubAck(event, sequenceNumber, endOfBatch);
+                } else if (message instanceof PubRecMessage) {
+                    onPubRec(event, sequenceNumber, endOfBatch);
+                } else if (message instanceof PubRelMessage) {
+                    onPubRel(event, sequenceNumber, endOfBatch);
+                } else if (message instanceof PubCompMessage) {
+                    onPubComp(event, sequenceNumber, endOfBatch);
+                } else if (message instanceof SubscribeMessage) {
+                    onSubscribe(event, sequenceNumber, endOfBatch);
+                } else if (message instanceof UnsubscribeMessage) {
+                    onUnsubscribe(event, sequenceNumber, endOfBatch);
+                } else if (message instanceof PingReqMessage) {
+                    onPingReq(event, sequenceNumber, endOfBatch);
+                }
+            }
+        } finally {
+            // Group commit storage changes made in this batch, then send the responses
+            if (endOfBatch) {
+                storage.flush();
+                flusher.flush();
             }
         }
     }
@@ -114,7 +180,6 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
         }
 
         // Save state
-        setAuthorization(context, auth);
         setClientID(context, clientID);
 
         // Send Message
@@ -122,22 +187,57 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
 
         // Send In-Flight Messages
         if (auth) {
-            // Save the context to ChannelRepository
-            ChannelRepository.putClientChannel(clientID, context);
+            // Will Message is kept by the session until the connection closed, set before the session is
+            // visible to channelInactive
+            ClientSession session = new ClientSession(clientID, context, connectMessage.isCleanSession(), connectMessage.getKeepAlive(), true);
+            if (connectMessage.isWillFlag()) {
+                session.setWill(createWill(connectMessage));
+            }
+            // Save the session to the channel and SessionRegistry
+            setSession(context, session);
+            ClientSession previous = sessions.register(session);
+            if (previous != null && previous.getContext() != context) {
+                takeOver(previous);
+            }
+            // Connection closed before the session was saved, channelInactive may have missed it
+            if (!context.channel().isActive()) {
+                closed(session);
+                return;
+            }
+            // Close the connection if the client is silent for too long
+            keepAlives.watch(session);
+            qos2.connect(clientID, connectMessage.isCleanSession());
             // Clean Session
             if (connectMessage.isCleanSession()) {
-                storage.clean(clientID);
+                discard(clientID);
             }
-            // TODO: Handle Will Flag
-            // TODO: Handle Keep Alive Timer
             // Send In-Flight Messages
             List<PublishMessage> inFlightMessages = storage.getInFlights(clientID);
-            for (PublishMessage inFlightMessage : inFlightMessages) {
-                outboundDisruptor.pushEvent(new OutboundMQTTEventTranslator(clientID, false, 0, 0, inFlightMessage.getMessageID(), inFlightMessage.getQosLevel().byteValue(), MQTTMessage.MessageType.PUBLISH));
-            }
+            messageIDs.load(clientID, inFlightMessages);
+            outboundDisruptor.pushInFlights(clientID, inFlightMessages);
         }
     }
 
+    /**
+     * The client connected again with the same Client ID, the new session has been registered
+     * Close the previous connection, so its socket doesn't leak. The previous session's messages still
+     * in the disruptor are discarded, and its Will Message is not published, the client is still alive.
+     * In-Flight Messages are stored by Client ID, they are loaded and sent again to the new connection,
+     * unless the previous session was clean: its state ends with its connection and is discarded here,
+     * onClosed skips it as the Client ID is connected again.
+     *
+     * @param previous Previous Client Session
+     */
+    protected void takeOver(ClientSession previous) {
+        previous.setAuthorized(false);
+        previous.takeWill();
+        previous.getContext().close();
+        if (previous.isCleanSession()) {
+            discard(previous.getClientID());
+        }
+        logger.info("{} connected again, previous connection has been closed.", previous.getClientID());
+    }
+
     /**
      * Received MQTT PUBLISH Message from a publisher
      * The action of the recipient when it receives a message depends on the
@@ -177,15 +277,7 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
         // Retained messages should be kept over restarts of the server.
         // A server may delete a retained message if it receives a message with a zero-length
         // payload and the Retain flag set on the same topic.
-        if (publishMessage.isRetain()) {
-            if (publishMessage.hasContent()) {
-                // Save the retain message to persistent storage
-                storage.putRetain(publishMessage);
-            } else {
-                // Remove the retain message to from persistent storage
-                storage.removeRetain(publishMessage.getTopicName());
-            }
-        }
+        retain(publishMessage);
 
         if (qos == MQTTMessage.QoSLevel.MOST_ONCE) {
             // Notify OutboundDisruptor to publish message to clients.
@@ -201,15 +293,116 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
             PubRecMessage pubRecMessage = new PubRecMessage(publishMessage.getMessageID());
             sendMessage(context, pubRecMessage, publisherID);
             // Only NOT Duplicated
-            if (!publishMessage.isDupFlag() || !storage.containsQoS2(publisherID, publishMessage.getMessageID())) {
+            if (!publishMessage.isDupFlag() || !qos2.contains(publisherID, publishMessage.getMessageID())) {
                 // Save QoS2 Message
-                storage.putQoS2(publisherID, publishMessage);
+                qos2.put(publisherID, publishMessage);
                 // Notify OutboundDisruptor to publish message to clients.
                 outboundDisruptor.pushPublish(publishMessage);
             }
         }
     }
 
+    /**
+     * The client's connection closed without DISCONNECT, publish its Will Message
+     * Goes through the disruptor like other messages, so when many connections drop at once
+     * the storage changes are committed in batches.
+     *
+     * @param event          InboundMQTTEvent which contains the Will Message
+     * @param sequenceNumber Disruptor sequence number
+     * @param endOfBatch     Disruptor is end of batch
+     */
+    protected void onWill(InboundMQTTEvent event, long sequenceNumber, boolean endOfBatch) {
+        PublishMessage willMessage = (PublishMessage) event.getMQTTMessage();
+        retain(willMessage);
+        // Notify OutboundDisruptor to publish message to clients.
+        outboundDisruptor.pushPublish(willMessage);
+    }
+
+    /**
+     * The client's connection has been closed
+     * State of a clean session only lasts as long as the connection, discard it now instead of keeping it
+     * until the client connects again. Skipped if the client has connected again, the new session is
+     * registered by this Processor, so it's always seen here.
+     *
+     * @param event          InboundMQTTEvent of the closed connection
+     * @param sequenceNumber Disruptor sequence number
+     * @param endOfBatch     Disruptor is end of batch
+     */
+    protected void onClosed(InboundMQTTEvent event, long sequenceNumber, boolean endOfBatch) {
+        ClientSession session = getSession(event.getContext());
+        if (session == null || sessions.contains(session.getClientID())) {
+            return;
+        }
+        qos2.disconnect(session.getClientID(), session.isCleanSession());
+        if (session.isCleanSession()) {
+            discard(session.getClientID());
+        }
+    }
+
+    /**
+     * The connection was closed while connecting, do what channelInactive does for the session
+     * Unregister the session and publish the Will Message, the Will Message is only taken once even if
+     * channelInactive runs at the same time.
+     *
+     * @param session Client Session
+     */
+    protected void closed(ClientSession session) {
+        sessions.remove(session);
+        PublishMessage willMessage = session.takeWill();
+        if (willMessage != null) {
+            retain(willMessage);
+            outboundDisruptor.pushPublish(willMessage);
+        }
+        qos2.disconnect(session.getClientID(), session.isCleanSession());
+        if (session.isCleanSession()) {
+            discard(session.getClientID());
+        }
+        logger.info("{} connection closed while connecting.", session.getClientID());
+    }
+
+    /**
+     * Discard the state of the client's session
+     *
+     * @param clientID Client ID
+     */
+    protected void discard(String clientID) {
+        storage.clean(clientID);
+        subscriptions.removeAll(clientID);
+        messageIDs.remove(clientID);
+        outboundDisruptor.clean(clientID);
+    }
+
+    /**
+     * Save or remove the retain message if the Retain flag is set
+     *
+     * @param publishMessage Publish Message
+     */
+    protected void retain(PublishMessage publishMessage) {
+        if (publishMessage.isRetain()) {
+            if (publishMessage.hasContent()) {
+                // Save the retain message to persistent storage
+                storage.putRetain(publishMessage);
+                retains.put(publishMessage);
+            } else {
+                // Remove the retain message to from persistent storage
+                storage.removeRetain(publishMessage.getTopicName());
+                retains.remove(publishMessage.getTopicName());
+            }
+        }
+    }
+
+    /**
+     * Create the Will Message from CONNECT Message
+     *
+     * @param connectMessage Connect Message
+     * @return Will Message
+     */
+    protected PublishMessage createWill(ConnectMessage connectMessage) {
+        String willMessage = connectMessage.getWillMessage() == null ? "" : connectMessage.getWillMessage();
+        ByteBuffer content = ByteBuffer.wrap(willMessage.getBytes(Charset.forName("UTF-8")));
+        return new PublishMessage(connectMessage.isWillRetain(), connectMessage.getWillQoS(), false, connectMessage.getWillTopic(), 0, content);
+    }
+
     /**
      * Received MQTT PUBACK Message from a subscriber in response to a PUBLISH message from the server
      * Step1: QoS 1 PUBLISH Message send from Sever to Subscriber
@@ -225,6 +418,8 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
         PubAckMessage pubAckMessage = (PubAckMessage) event.getMQTTMessage();
         // Message received by subscriber, no need to resend
         storage.removeInFlight(subscriberID, pubAckMessage.getMessageID());
+        outboundDisruptor.complete(subscriberID, pubAckMessage.getMessageID());
+        messageIDs.release(subscriberID, pubAckMessage.getMessageID());
     }
 
     /**
@@ -239,16 +434,12 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
      * @param sequenceNumber Disruptor sequence number
      * @param endOfBatch     Disruptor is end of batch
      */
-    private void onPubRec(InboundMQTTEvent event, long sequenceNumber, boolean endOfBatch) {
+    protected void onPubRec(InboundMQTTEvent event, long sequenceNumber, boolean endOfBatch) {
         ChannelHandlerContext context = event.getContext();
         String subscriberID = getClientID(context);
         PubRecMessage pubRecMessage = (PubRecMessage) event.getMQTTMessage();
-        // TODO: Use OutboundDisruptor to send/resend PUBREL Message
-        // Send PUBREL Message
-        PubRelMessage pubRelMessage = new PubRelMessage(false, pubRecMessage.getMessageID());
-        sendMessage(context, pubRelMessage, subscriberID);
-        // Message received by subscriber, no need to resend
-        storage.removeInFlight(subscriberID, pubRecMessage.getMessageID());
+        // Send and resend PUBREL Message through OutboundDisruptor
+        outboundDisruptor.pushPubRel(subscriberID, pubRecMessage.getMessageID());
     }
 
     /**
@@ -273,7 +464,7 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
         PubCompMessage pubCompMessage = new PubCompMessage(pubRelMessage.getMessageID());
         sendMessage(context, pubCompMessage, publisherID);
         // Remove cached QoS2 PUBLISH Message
-        storage.removeQoS2(publisherID, pubRelMessage.getMessageID());
+        qos2.remove(publisherID, pubRelMessage.getMessageID());
     }
 
     /**
@@ -288,7 +479,11 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
      * @param endOfBatch     Disruptor is end of batch
      */
     protected void onPubComp(InboundMQTTEvent event, long sequenceNumber, boolean endOfBatch) {
-        // Nothing to do
+        ChannelHandlerContext context = event.getContext();
+        String subscriberID = getClientID(context);
+        PubCompMessage pubCompMessage = (PubCompMessage) event.getMQTTMessage();
+        // QoS 2 flow completed, stop resending PUBREL and release the Message ID through OutboundDisruptor
+        outboundDisruptor.pushPubComp(subscriberID, pubCompMessage.getMessageID());
     }
 
     /**
@@ -331,8 +526,9 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
                 Subscription subscription = new Subscription(topic.getTopicName(), subscriberID, topic.getQosLevel().byteValue());
                 // Save subscriptions
                 storage.putSubscription(subscription);
+                subscriptions.put(subscription);
                 // Notify OutboundDisruptor to publish retain message with given Topics.
-                List<PublishMessage> retainMessages = storage.getRetainWildcard(topic.getTopicName());
+                List<PublishMessage> retainMessages = retains.match(topic.getTopicName());
                 for (PublishMessage retainMessage : retainMessages) {
                     outboundDisruptor.pushRetain(subscriberID, topic.getQosLevel(), retainMessage);
                 }
@@ -359,6 +555,7 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
         // Remove subscriptions
         for (String topic : unsubscribeMessage.getTopicNames()) {
             storage.removeSubscription(subscriberID, topic);
+            subscriptions.remove(subscriberID, topic);
         }
     }
 
@@ -393,7 +590,10 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
     protected void onDisconnect(InboundMQTTEvent event, long sequenceNumber, boolean endOfBatch) {
         ChannelHandlerContext context = event.getContext();
         final String clientID = getClientID(context);
-        setAuthorization(context, false);
+        ClientSession session = getSession(context);
+        if (session != null) {
+            session.setAuthorized(false);
+        }
         // Try to close the channel
         ChannelFuture future = context.disconnect();
         future.addListener(new ChannelFutureListener() {
@@ -438,13 +638,11 @@ public class InboundProcessor implements EventHandler<InboundMQTTEvent> {
      * @param message  MQTT Message
      * @param clientID Client ID
      */
-    protected void sendMessage(ChannelHandlerContext context, final MQTTMessage message, final String clientID) {
-        ChannelFuture future = context.writeAndFlush(message);
-        future.addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                logger.info("{} Message has been sent to {}.", message.getMessageType(), clientID);
-            }
-        });
+    protected void sendMessage(ChannelHandlerContext context, MQTTMessage message, String clientID) {
+        flusher.write(context, message);
+        ClientSession session = getSession(context);
+        if (session != null) {
+            session.messageSent();
+        }
     }
 }
@@ -1,14 +1,25 @@
 package org.chii2.mqtt.server.disruptor;
 
 import com.lmax.disruptor.dsl.Disruptor;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.chii2.mqtt.common.message.MQTTMessage;
 import org.chii2.mqtt.common.message.PublishMessage;
 import org.chii2.mqtt.server.MQTTServerConfiguration;
+import org.chii2.mqtt.server.MQTTServerMetrics;
 import org.chii2.mqtt.server.MQTTServerUtils;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.SessionRegistry;
 import org.chii2.mqtt.server.storage.StorageService;
 import org.chii2.mqtt.server.storage.Subscription;
+import org.chii2.mqtt.server.storage.SubscriptionTrie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -25,15 +36,32 @@ public class OutboundDisruptor {
     private static final int EVENT_PROCESSORS_NUM = 2;
     // Storage
     private StorageService storage;
+    // Subscription Index
+    private SubscriptionTrie subscriptions;
+    // Message ID Allocator
+    private MessageIDAllocator messageIDs;
+    // Server Metrics, counts rejected Messages
+    private final MQTTServerMetrics metrics;
+    // Resend Scheduler
+    private final ResendScheduler scheduler;
+    // Subscriber Queues
+    private final SubscriberQueues queues;
     // LMX Disruptor
     private final ExecutorService executor;
     private final Disruptor<OutboundMQTTEvent> disruptor;
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(OutboundDisruptor.class);
 
-    public OutboundDisruptor(MQTTServerConfiguration configuration, StorageService storage) {
+    public OutboundDisruptor(MQTTServerConfiguration configuration, StorageService storage, SubscriptionTrie subscriptions, MessageIDAllocator messageIDs, SessionRegistry sessions, MQTTServerMetrics metrics) {
         this.storage = storage;
+        this.subscriptions = subscriptions;
+        this.messageIDs = messageIDs;
+        this.metrics = metrics;
+        scheduler = new ResendScheduler(this);
+        queues = new SubscriberQueues(configuration, storage, messageIDs, sessions, this, metrics);
         executor = Executors.newFixedThreadPool(EVENT_PROCESSORS_NUM);
         disruptor = new Disruptor<>(OutboundMQTTEvent.factory, configuration.getOutboundRingBuffer(), executor);
-        disruptor.handleEventsWith(new OutboundProcessor(storage)).then(new OutboundResendProcessor(configuration.getInterval(), configuration.getMaxRetryTimes(), storage, this));
+        disruptor.handleEventsWith(new OutboundProcessor(storage, messageIDs, sessions, queues, new QoS2States(), scheduler, new ChannelFlusher(configuration.getFlushThreshold(), metrics.newCounters()), configuration.getMaxRetryTimes())).then(new OutboundResendProcessor(configuration.getInterval(), configuration.getMaxRetryTimes(), scheduler));
     }
 
     public void start() {
@@ -41,33 +69,79 @@ public class OutboundDisruptor {
     }
 
     public void stop() {
+        scheduler.stop();
         disruptor.shutdown();
         executor.shutdown();
     }
 
+    /**
+     * Rebuild the subscriber queues from the stored Message IDs, called when the server started
+     *
+     * @param inFlightIDs Subscriber ID <---> In-Flight Message IDs
+     */
+    public void rebuild(Map<String, List<Integer>> inFlightIDs) {
+        queues.rebuild(inFlightIDs);
+    }
+
     /**
      * Push the Publish Message to all the subscribers
      *
      * @param publishMessage Publish Message
      */
     public void pushPublish(PublishMessage publishMessage) {
-        // Get subscriptions
-        List<Subscription> subscriptions = storage.getSubscriptions(publishMessage.getTopicName());
-        // New Message ID
-        int messageID = storage.getNextMessageID();
-        // Publish to every subscribers
-        for (Subscription subscription : subscriptions) {
-            // In-Flight Message use Subscription QoS Level and Server generated Message ID
+        // Get subscriptions from in-memory index
+        List<Subscription> matched = subscriptions.match(publishMessage.getTopicName());
+        if (matched.isEmpty()) {
+            return;
+        }
+        // In-Flight Message use Subscription QoS Level, group the subscribers by QoS Level
+        Map<QoSLevel, List<String>> groups = new EnumMap<>(QoSLevel.class);
+        for (Subscription subscription : matched) {
             QoSLevel qos = MQTTServerUtils.getLowerQoS(QoSLevel.values()[subscription.getQosLevel()], publishMessage.getQosLevel());
+            List<String> subscriberIDs = groups.get(qos);
+            if (subscriberIDs == null) {
+                subscriberIDs = new ArrayList<>();
+                groups.put(qos, subscriberIDs);
+            }
+            subscriberIDs.add(subscription.getSubscriberID());
+        }
+        // Publish to every subscribers
+        for (Map.Entry<QoSLevel, List<String>> group : groups.entrySet()) {
+            QoSLevel qos = group.getKey();
+            // New Message ID, not outstanding for any subscriber in the group
+            int messageID = acquire(group.getValue());
+            if (messageID == 0) {
+                continue;
+            }
+            // Subscribers whose queue accepts the message
+            List<String> accepted = new ArrayList<>(group.getValue().size());
+            for (String subscriberID : group.getValue()) {
+                if (queues.offer(subscriberID, messageID)) {
+                    accepted.add(subscriberID);
+                }
+            }
+            if (accepted.isEmpty()) {
+                continue;
+            }
             PublishMessage inFlightMessage = new PublishMessage(publishMessage);
             inFlightMessage.setRetain(false);
             inFlightMessage.setMessageID(messageID);
             inFlightMessage.setDupFlag(false);
             inFlightMessage.setQosLevel(qos);
-            // Save to in-flight messages
-            storage.putInFlight(subscription.getSubscriberID(), inFlightMessage);
-            // Push the event
-            pushEvent(new OutboundMQTTEventTranslator(subscription.getSubscriberID(), false, 0, 0, messageID, qos.byteValue(), MQTTMessage.MessageType.PUBLISH));
+            // Save to in-flight messages, the whole group in one call
+            storage.putInFlights(accepted, inFlightMessage, messageID);
+            // First delivery shares one Payload instead of loading it from storage for every subscriber
+            // Every event holds a reference, released by the OutboundProcessor
+            if (inFlightMessage.hasContent()) {
+                inFlightMessage.sharePayload();
+                if (accepted.size() > 1) {
+                    inFlightMessage.getPayload().retain(accepted.size() - 1);
+                }
+            }
+            // Push the events
+            for (String subscriberID : accepted) {
+                pushEvent(new OutboundMQTTEventTranslator(subscriberID, messageID, qos.byteValue(), inFlightMessage));
+            }
         }
     }
 
@@ -81,7 +155,10 @@ public class OutboundDisruptor {
      */
     public void pushRetain(String subscriberID, QoSLevel qosLevel, PublishMessage publishMessage) {
         // New Message ID
-        int messageID = storage.getNextMessageID();
+        int messageID = acquire(Collections.singletonList(subscriberID));
+        if (messageID == 0 || !queues.offer(subscriberID, messageID)) {
+            return;
+        }
         // In-Flight Message use Subscription QoS Level and Server generated Message ID
         QoSLevel qos = MQTTServerUtils.getLowerQoS(qosLevel, publishMessage.getQosLevel());
         PublishMessage inFlightMessage = new PublishMessage(publishMessage);
@@ -95,6 +172,102 @@ public class OutboundDisruptor {
         pushEvent(new OutboundMQTTEventTranslator(subscriberID, false, 0, 0, messageID, qos.byteValue(), MQTTMessage.MessageType.PUBLISH));
     }
 
+    /**
+     * Push the In-Flight Messages to the subscriber, called when the subscriber connected
+     * Messages are sent in order, limited by the in-flight window.
+     *
+     * @param subscriberID     Subscriber ID
+     * @param inFlightMessages In-Flight Messages
+     */
+    public void pushInFlights(String subscriberID, List<PublishMessage> inFlightMessages) {
+        queues.load(subscriberID, inFlightMessages);
+        // Message ID 0 resends all the PUBREL Messages waiting for PUBCOMP
+        pushEvent(new OutboundMQTTEventTranslator(subscriberID, false, 0, 0, 0, QoSLevel.EXACTLY_ONCE.byteValue(), MQTTMessage.MessageType.PUBREL));
+    }
+
+    /**
+     * PUBREC received, send PUBREL Message to the subscriber and wait for PUBCOMP
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     */
+    public void pushPubRel(String subscriberID, int messageID) {
+        pushEvent(new OutboundMQTTEventTranslator(subscriberID, false, 0, 0, messageID, QoSLevel.EXACTLY_ONCE.byteValue(), MQTTMessage.MessageType.PUBREL));
+    }
+
+    /**
+     * PUBCOMP received, the QoS2 flow completed
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     */
+    public void pushPubComp(String subscriberID, int messageID) {
+        pushEvent(new OutboundMQTTEventTranslator(subscriberID, false, 0, 0, messageID, QoSLevel.EXACTLY_ONCE.byteValue(), MQTTMessage.MessageType.PUBCOMP));
+    }
+
+    /**
+     * Subscriber's clean session started or ended, discard its queue and QoS2 states
+     * QoS2 states are only touched by OutboundProcessor, they are cleaned by a DISCONNECT event in order
+     * with the subscriber's other events.
+     *
+     * @param subscriberID Subscriber ID
+     */
+    public void clean(String subscriberID) {
+        queues.remove(subscriberID);
+        pushEvent(new OutboundMQTTEventTranslator(subscriberID, false, 0, 0, 0, QoSLevel.MOST_ONCE.byteValue(), MQTTMessage.MessageType.DISCONNECT));
+    }
+
+    /**
+     * The message is acknowledged, cancel the pending resend and send the next waiting messages
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     */
+    public void complete(String subscriberID, int messageID) {
+        scheduler.cancel(subscriberID, messageID);
+        queues.complete(subscriberID, messageID);
+    }
+
+    /**
+     * The subscriber's channel becomes writable, send the waiting messages
+     *
+     * @param subscriberID Subscriber ID
+     */
+    public void resume(String subscriberID) {
+        queues.resume(subscriberID);
+    }
+
+    /**
+     * Run the task one timer tick later, the task must not block
+     *
+     * @param task Task
+     */
+    protected void later(Runnable task) {
+        scheduler.later(task);
+    }
+
+    /**
+     * New Message ID for the subscribers, the message is rejected if no Message ID available
+     *
+     * @param subscriberIDs Subscriber IDs
+     * @return Message ID, 0 if rejected
+     */
+    protected int acquire(List<String> subscriberIDs) {
+        int messageID;
+        try {
+            messageID = messageIDs.acquire(subscriberIDs);
+        } catch (IllegalStateException e) {
+            logger.error("Error when acquire Message ID, message rejected: {}", ExceptionUtils.getMessage(e));
+            messageID = 0;
+        }
+        if (messageID == 0) {
+            for (int i = 0; i < subscriberIDs.size(); i++) {
+                metrics.messageDropped();
+            }
+        }
+        return messageID;
+    }
+
     /**
      * Push the Outbound Event to the disruptor's ring buffer
      *
@@ -103,4 +276,15 @@ public class OutboundDisruptor {
     public void pushEvent(OutboundMQTTEventTranslator translator) {
         disruptor.publishEvent(translator);
     }
+
+    /**
+     * Push the Outbound Event to the disruptor's ring buffer if there is room, never blocks
+     * Used by the threads which must not wait for the ring buffer.
+     *
+     * @param translator Outbound Event Translator
+     * @return True if pushed
+     */
+    public boolean tryPushEvent(OutboundMQTTEventTranslator translator) {
+        return disruptor.getRingBuffer().tryPublishEvent(translator);
+    }
 }
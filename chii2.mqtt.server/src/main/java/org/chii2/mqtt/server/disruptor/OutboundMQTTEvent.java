@@ -2,6 +2,7 @@ package org.chii2.mqtt.server.disruptor;
 
 import com.lmax.disruptor.EventFactory;
 import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
 
 /**
  * Event used by InboundDisruptor
@@ -22,6 +23,8 @@ public class OutboundMQTTEvent {
     private int qos;
     // Message Type
     private MQTTMessage.MessageType messageType;
+    // Publish Message shared by the subscribers of a fan-out, only set for the first delivery
+    private PublishMessage publishMessage;
 
     /**
      * Event Factory used by disruptor
@@ -87,4 +90,12 @@ public class OutboundMQTTEvent {
     public void setMessageType(MQTTMessage.MessageType messageType) {
         this.messageType = messageType;
     }
+
+    public PublishMessage getPublishMessage() {
+        return publishMessage;
+    }
+
+    public void setPublishMessage(PublishMessage publishMessage) {
+        this.publishMessage = publishMessage;
+    }
 }
@@ -2,6 +2,7 @@ package org.chii2.mqtt.server.disruptor;
 
 import com.lmax.disruptor.EventTranslator;
 import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
 
 /**
  * MQTT Event Translator used by OutboundDisruptor
@@ -22,6 +23,8 @@ public class OutboundMQTTEventTranslator implements EventTranslator<OutboundMQTT
     private int qos;
     // Message Type
     private MQTTMessage.MessageType messageType;
+    // Shared Publish Message, optional
+    private PublishMessage publishMessage;
 
     public OutboundMQTTEventTranslator(String subscriberID, boolean resend, long sendingTime, int resendTimes, int messageID, int qos, MQTTMessage.MessageType messageType) {
         this.subscriberID = subscriberID;
@@ -33,6 +36,11 @@ public class OutboundMQTTEventTranslator implements EventTranslator<OutboundMQTT
         this.messageType = messageType;
     }
 
+    public OutboundMQTTEventTranslator(String subscriberID, int messageID, int qos, PublishMessage publishMessage) {
+        this(subscriberID, false, 0, 0, messageID, qos, MQTTMessage.MessageType.PUBLISH);
+        this.publishMessage = publishMessage;
+    }
+
     @Override
     public void translateTo(OutboundMQTTEvent event, long sequence) {
         event.setSubscriberID(subscriberID);
@@ -42,5 +50,6 @@ public class OutboundMQTTEventTranslator implements EventTranslator<OutboundMQTT
         event.setMessageID(messageID);
         event.setQoS(qos);
         event.setMessageType(messageType);
+        event.setPublishMessage(publishMessage);
     }
 }
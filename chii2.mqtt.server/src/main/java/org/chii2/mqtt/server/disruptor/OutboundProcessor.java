@@ -1,12 +1,13 @@
 package org.chii2.mqtt.server.disruptor;
 
 import com.lmax.disruptor.EventHandler;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PubRelMessage;
 import org.chii2.mqtt.common.message.PublishMessage;
-import org.chii2.mqtt.server.storage.ChannelRepository;
+import org.chii2.mqtt.server.storage.ClientSession;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.SessionRegistry;
 import org.chii2.mqtt.server.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,17 +16,40 @@ import static org.chii2.mqtt.common.message.MQTTMessage.QoSLevel;
 
 /**
  * Outbound Processor used by OutboundDisruptor
- * Send outbound MQTT Publish Messages to Subscribers
+ * Send outbound MQTT Publish Messages to Subscribers, and runs the QoS2 flow:
+ * PUBLISH sent -> PUBREC received, PUBREL sent and resent -> PUBCOMP received
+ * DISCONNECT events are not sent, they clean the subscriber's QoS2 states on this thread.
  */
 public class OutboundProcessor implements EventHandler<OutboundMQTTEvent> {
 
     // Storage
     private StorageService storage;
+    // Message ID Allocator
+    private MessageIDAllocator messageIDs;
+    // Client Session Registry
+    private SessionRegistry sessions;
+    // Subscriber Queues
+    private SubscriberQueues queues;
+    // QoS2 States, only updated by this Processor
+    private QoS2States states;
+    // Resend Scheduler
+    private ResendScheduler scheduler;
+    // Channel Flusher, messages are flushed at the end of batch
+    private ChannelFlusher flusher;
+    // Max Resending retry
+    private int maxRetryTimes;
     // The Logger
     private final Logger logger = LoggerFactory.getLogger(OutboundProcessor.class);
 
-    public OutboundProcessor(StorageService storage) {
+    public OutboundProcessor(StorageService storage, MessageIDAllocator messageIDs, SessionRegistry sessions, SubscriberQueues queues, QoS2States states, ResendScheduler scheduler, ChannelFlusher flusher, int maxRetryTimes) {
         this.storage = storage;
+        this.messageIDs = messageIDs;
+        this.sessions = sessions;
+        this.queues = queues;
+        this.states = states;
+        this.scheduler = scheduler;
+        this.flusher = flusher;
+        this.maxRetryTimes = maxRetryTimes;
     }
 
     @Override
@@ -36,8 +60,21 @@ public class OutboundProcessor implements EventHandler<OutboundMQTTEvent> {
                 onPublish(event, sequence, endOfBatch);
                 break;
             case PUBREL:
+                onPubRel(event, sequence, endOfBatch);
+                break;
+            case PUBCOMP:
+                onPubComp(event, sequence, endOfBatch);
+                break;
+            case DISCONNECT:
+                onClean(event, sequence, endOfBatch);
                 break;
         }
+
+        // Group commit storage changes made in this batch, then send the messages
+        if (endOfBatch) {
+            storage.flush();
+            flusher.flush();
+        }
     }
 
     /**
@@ -49,45 +86,149 @@ public class OutboundProcessor implements EventHandler<OutboundMQTTEvent> {
         String subscriberID = event.getSubscriberID();
         int messageID = event.getMessageID();
         // Logic 1:     The subscriber is connected to the server
-        // Logic 1.1:   The storage contains the message, send the message and record the sending time
+        // Logic 1.1:   The storage contains the message and the subscriber's queue allows, send the message and record the sending time
         // Logic 1.1.1: Message QoS is 0, remove from storage and mark the event shouldn't resend
         // Logic 1.1.2: Message QoS is 1|2, mark the event should resend
         // Logic 1.2:   The storage doesn't contain the message, it must been acknowledged, mark the event shouldn't resend
+        // Logic 1.3:   The in-flight window is full or the channel is not writable, don't write
+        // Logic 1.3.1: Message QoS is 0, drop it and mark the event shouldn't resend
+        // Logic 1.3.2: Message QoS is 1|2, the message waits in the subscriber's queue, mark the event shouldn't resend
         // Logic 2:     The subscriber is NOT connected to the server, mark the event shouldn't resend
-        if (ChannelRepository.containsClientChannel(subscriberID)) {
-            ChannelHandlerContext context = ChannelRepository.getClientChannel(subscriberID);
-            if (context.channel().isActive()) {
-                // Load In-Flight Message from storage
-                PublishMessage publishMessage = storage.getInFlight(subscriberID, messageID);
-                if (publishMessage != null) {
-                    // Send Message
-                    publishMessage.setDupFlag(event.getSendingTime() > 0);
-                    sendMessage(context, publishMessage, subscriberID);
-                    // Set sending time and resend times
-                    event.setSendingTime(System.currentTimeMillis());
-                    event.setResendTimes(event.getResendTimes() + 1);
-                    if (publishMessage.getQosLevel() == QoSLevel.MOST_ONCE) {
+        // Logic 3:     Resent max times and still not acknowledged, free its place in the in-flight window, mark the event shouldn't resend
+        //              The message stays stored, it's sent again when the subscriber connects again
+        if (event.getSendingTime() > 0 && event.getResendTimes() >= maxRetryTimes) {
+            logger.debug("PUBLISH Message {} to {} not acknowledged after {} retries.", messageID, subscriberID, maxRetryTimes);
+            queues.expire(subscriberID, messageID);
+            event.setResend(false);
+            return;
+        }
+        // The event holds one reference of the shared Payload, released here if the Message is not written
+        PublishMessage shared = event.getPublishMessage();
+        event.setPublishMessage(null);
+        try {
+            ClientSession session = sessions.get(subscriberID);
+            if (session != null) {
+                ChannelHandlerContext context = session.getContext();
+                if (session.isActive()) {
+                    // First delivery uses the shared Message if still stored, otherwise load In-Flight Message from storage
+                    PublishMessage publishMessage;
+                    if (shared != null) {
+                        publishMessage = queues.contains(subscriberID, messageID) ? new PublishMessage(shared) : null;
+                    } else {
+                        publishMessage = storage.getInFlight(subscriberID, messageID);
+                    }
+                    if (publishMessage == null) {
+                        event.setResend(false);
+                    } else if (!queues.tryDeliver(event, context.channel().isWritable())) {
+                        // Pushed again by the queue when acknowledged or writable
+                        logger.debug("PUBLISH Message {} to {} is waiting in queue.", messageID, subscriberID);
                         event.setResend(false);
                     } else {
-                        event.setResend(true);
+                        // Send Message
+                        publishMessage.setDupFlag(event.getSendingTime() > 0);
+                        sendMessage(context, publishMessage, subscriberID);
+                        session.messageSent();
+                        // The written Message took over the event's reference, released by the encoder
+                        shared = null;
+                        // Set sending time and resend times
+                        event.setSendingTime(System.currentTimeMillis());
+                        event.setResendTimes(event.getResendTimes() + 1);
+                        if (publishMessage.getQosLevel() == QoSLevel.MOST_ONCE) {
+                            event.setResend(false);
+                        } else {
+                            event.setResend(true);
+                        }
+                        // First sent with the Message ID, drop the state left by a flow never completed
+                        if (publishMessage.getQosLevel() == QoSLevel.EXACTLY_ONCE && event.getResendTimes() == 1) {
+                            states.remove(subscriberID, messageID);
+                        }
                     }
                 } else {
+                    sessions.remove(session);
                     event.setResend(false);
                 }
             } else {
-                ChannelRepository.removeClientChannel(subscriberID);
                 event.setResend(false);
             }
-        } else {
-            event.setResend(false);
+        } finally {
+            if (shared != null) {
+                shared.release();
+            }
         }
 
         // QoS 0 only send once to online subscribers, always remove it from in-flight after one try
         if (QoSLevel.values()[event.getQoS()] == QoSLevel.MOST_ONCE) {
             storage.removeInFlight(subscriberID, messageID);
+            messageIDs.release(subscriberID, messageID);
+            queues.complete(subscriberID, messageID);
+        }
+    }
+
+    /**
+     * Received a PubRel event, the subscriber sent PUBREC or the PUBREL should be resent
+     *
+     * @param event Outbound MQTT Event
+     */
+    public void onPubRel(OutboundMQTTEvent event, long sequence, boolean endOfBatch) {
+        String subscriberID = event.getSubscriberID();
+        int messageID = event.getMessageID();
+        event.setResend(false);
+        // Subscriber connected, resend all the PUBREL Messages waiting for PUBCOMP
+        if (messageID == 0) {
+            for (int waiting : states.getMessageIDs(subscriberID, QoS2States.PUBREC_RECEIVED)) {
+                scheduler.schedule(subscriberID, waiting, event.getQoS(), 0, 0, 0, MQTTMessage.MessageType.PUBREL);
+            }
+            return;
+        }
+        // Logic 1:   PUBREC received, no need to resend the PUBLISH Message, mark PUBREC received
+        // Logic 2:   Resend but PUBCOMP has been received, stop
+        // Logic 3:   The subscriber is connected, send PUBREL and mark the event should resend
+        // Logic 4:   The subscriber is NOT connected, PUBREL is resent when connected again
+        if (states.get(subscriberID, messageID) != QoS2States.PUBREC_RECEIVED) {
+            if (event.getSendingTime() > 0) {
+                return;
+            }
+            storage.removeInFlight(subscriberID, messageID);
+            scheduler.cancel(subscriberID, messageID);
+            queues.complete(subscriberID, messageID);
+            states.set(subscriberID, messageID, QoS2States.PUBREC_RECEIVED);
+        }
+        ClientSession session = sessions.get(subscriberID);
+        if (session != null && session.isActive()) {
+            flusher.write(session.getContext(), new PubRelMessage(event.getSendingTime() > 0, messageID));
+            session.messageSent();
+            event.setSendingTime(System.currentTimeMillis());
+            event.setResendTimes(event.getResendTimes() + 1);
+            event.setResend(true);
         }
     }
 
+    /**
+     * Received a PubComp event, the QoS2 flow completed
+     *
+     * @param event Outbound MQTT Event
+     */
+    public void onPubComp(OutboundMQTTEvent event, long sequence, boolean endOfBatch) {
+        String subscriberID = event.getSubscriberID();
+        int messageID = event.getMessageID();
+        event.setResend(false);
+        // Stop resending PUBREL, the Message ID can be reused
+        states.remove(subscriberID, messageID);
+        scheduler.cancel(subscriberID, messageID);
+        messageIDs.release(subscriberID, messageID);
+    }
+
+    /**
+     * Received a Clean event, the subscriber's session is discarded
+     * QoS2 flows waiting for PUBCOMP are dropped, their Message IDs have been forgotten as well.
+     *
+     * @param event Outbound MQTT Event
+     */
+    public void onClean(OutboundMQTTEvent event, long sequence, boolean endOfBatch) {
+        event.setResend(false);
+        states.clear(event.getSubscriberID());
+    }
+
     /**
      * Send MQTT Publish Message to subscribers
      * Because using Netty, this should not blocking
@@ -96,13 +237,7 @@ public class OutboundProcessor implements EventHandler<OutboundMQTTEvent> {
      * @param message      MQTT Publish Message
      * @param subscriberID Subscriber ID
      */
-    protected void sendMessage(ChannelHandlerContext context, final PublishMessage message, final String subscriberID) {
-        ChannelFuture future = context.writeAndFlush(message);
-        future.addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                logger.info("{} Message {} has been sent to {}.", message.getMessageType(), message.getMessageID(), subscriberID);
-            }
-        });
+    protected void sendMessage(ChannelHandlerContext context, PublishMessage message, String subscriberID) {
+        flusher.write(context, message);
     }
 }
@@ -1,15 +1,12 @@
 package org.chii2.mqtt.server.disruptor;
 
 import com.lmax.disruptor.EventHandler;
-import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.chii2.mqtt.common.message.MQTTMessage;
-import org.chii2.mqtt.server.storage.StorageService;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Outbound Processor used by OutboundDisruptor
  * Try resend the message if client not acknowledged
+ * The resend is scheduled in ResendScheduler, so this never blocks the disruptor.
  */
 public class OutboundResendProcessor implements EventHandler<OutboundMQTTEvent> {
 
@@ -17,18 +14,13 @@ public class OutboundResendProcessor implements EventHandler<OutboundMQTTEvent>
     private long interval;
     // Max Resending retry
     private int maxRetryTimes;
-    // Storage
-    private StorageService storage;
-    // Outbound Disruptor
-    private OutboundDisruptor disruptor;
-    // The Logger
-    private final Logger logger = LoggerFactory.getLogger(OutboundResendProcessor.class);
+    // Resend Scheduler
+    private ResendScheduler scheduler;
 
-    public OutboundResendProcessor(long interval, int maxRetryTimes, StorageService storage, OutboundDisruptor disruptor) {
+    public OutboundResendProcessor(long interval, int maxRetryTimes, ResendScheduler scheduler) {
         this.interval = interval;
         this.maxRetryTimes = maxRetryTimes;
-        this.storage = storage;
-        this.disruptor = disruptor;
+        this.scheduler = scheduler;
     }
 
     @Override
@@ -36,38 +28,27 @@ public class OutboundResendProcessor implements EventHandler<OutboundMQTTEvent>
         MQTTMessage.MessageType messageType = event.getMessageType();
         switch (messageType) {
             case PUBLISH:
-                onPublish(event, sequence, endOfBatch);
-                break;
             case PUBREL:
+                onPublish(event, sequence, endOfBatch);
                 break;
         }
     }
 
     /**
-     * Received a Publish event, try to resend the message after specific time
+     * Received a Publish or PubRel event, try to resend the message after specific time
      *
      * @param event Outbound MQTT Event
      */
     public void onPublish(OutboundMQTTEvent event, long sequence, boolean endOfBatch) {
-        String subscriberID = event.getSubscriberID();
-        int messageID = event.getMessageID();
-        // Logic 1:   If event is marked as resend, sleep the specific interval time
-        // Logic 1.1: If storage contains the message, re-add the event to the disruptor
-        // Logic 1.2: If storage doesn't contains the message, it must been acknowledged, discard the event
+        // Logic 1:   If event is marked as resend, schedule it after the specific interval time
+        // Logic 1.1: When due, if storage contains the message, re-add the event to the disruptor
+        // Logic 1.2: If the message is acknowledged before due, the resend is cancelled
+        // Logic 1.3: PUBLISH is scheduled once more after the last retry, OutboundProcessor gives it up when due
         // Logic 2:   If event isn't marked as resend, discard it
-        if (event.isResend() && event.getResendTimes() < maxRetryTimes) {
-            long sleepTime = interval - (System.currentTimeMillis() - event.getSendingTime());
-            if (sleepTime > 0) {
-                try {
-                    Thread.sleep(sleepTime);
-                } catch (InterruptedException e) {
-                    logger.error("Outbound Resend Processor interrupted {}:", ExceptionUtils.getMessage(e));
-                }
-            }
-            if (storage.containsInFlight(subscriberID, messageID)) {
-                disruptor.pushEvent(new OutboundMQTTEventTranslator(subscriberID, false, event.getSendingTime(), event.getResendTimes(), messageID, event.getQoS(), MQTTMessage.MessageType.PUBLISH));
-                logger.info("Re-Add PUBLISH Message {} should be sent to {} to outbound message queue.", messageID, subscriberID);
-            }
+        int limit = event.getMessageType() == MQTTMessage.MessageType.PUBLISH ? maxRetryTimes + 1 : maxRetryTimes;
+        if (event.isResend() && event.getResendTimes() < limit) {
+            long delay = interval - (System.currentTimeMillis() - event.getSendingTime());
+            scheduler.schedule(event.getSubscriberID(), event.getMessageID(), event.getQoS(), event.getSendingTime(), event.getResendTimes(), delay, event.getMessageType());
         }
     }
 }
@@ -0,0 +1,180 @@
+package org.chii2.mqtt.server.disruptor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * QoS2 States used by OutboundProcessor
+ * State of each QoS2 PUBLISH Message sent to a subscriber, keyed by the 16-bit Message ID:
+ * <p/>
+ * (not tracked)     PUBLISH sent, waiting for PUBREC, the In-Flight Message is still stored
+ * PUBREC_RECEIVED   PUBREC received and PUBREL sent, waiting for PUBCOMP
+ * (removed)         PUBCOMP received, the flow completed
+ * <p/>
+ * Each subscriber has a small open addressing table of Message ID and state, lookups, updates and
+ * removes are O(1) without boxing. Not thread safe, only accessed by the OutboundProcessor thread,
+ * other threads clear a subscriber's states through the outbound ring buffer.
+ */
+public class QoS2States {
+
+    // PUBREC received and PUBREL sent, waiting for PUBCOMP
+    public static final byte PUBREC_RECEIVED = 2;
+
+    // Subscriber ID <---> State Table
+    private final Map<String, Table> tables = new HashMap<>();
+
+    /**
+     * Get the state of the Message
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     * @return State, 0 if not tracked
+     */
+    public byte get(String subscriberID, int messageID) {
+        Table table = tables.get(subscriberID);
+        return table == null ? 0 : table.get(messageID);
+    }
+
+    /**
+     * Set the state of the Message
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     * @param state        State
+     */
+    public void set(String subscriberID, int messageID, byte state) {
+        Table table = tables.get(subscriberID);
+        if (table == null) {
+            table = new Table();
+            tables.put(subscriberID, table);
+        }
+        table.put(messageID, state);
+    }
+
+    /**
+     * PUBCOMP received or the Message ID reused, stop tracking the Message
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     */
+    public void remove(String subscriberID, int messageID) {
+        Table table = tables.get(subscriberID);
+        if (table != null) {
+            table.remove(messageID);
+        }
+    }
+
+    /**
+     * Message IDs of the subscriber in the state
+     *
+     * @param subscriberID Subscriber ID
+     * @param state        State
+     * @return Message IDs
+     */
+    public int[] getMessageIDs(String subscriberID, byte state) {
+        Table table = tables.get(subscriberID);
+        return table == null ? new int[0] : table.keys(state);
+    }
+
+    /**
+     * Drop all the states of the subscriber, called when the subscriber's session is discarded
+     *
+     * @param subscriberID Subscriber ID
+     */
+    public void clear(String subscriberID) {
+        tables.remove(subscriberID);
+    }
+
+    /**
+     * Open addressing table with linear probing, Message ID 0 marks an empty slot
+     */
+    protected static class Table {
+
+        // Message IDs, 16-bit
+        private char[] keys = new char[8];
+        // States
+        private byte[] states = new byte[8];
+        // Tracked Messages count
+        private int size;
+
+        byte get(int messageID) {
+            int mask = keys.length - 1;
+            for (int i = index(messageID, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == messageID) {
+                    return states[i];
+                }
+            }
+            return 0;
+        }
+
+        void put(int messageID, byte state) {
+            // Keep the load factor under 0.5
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = index(messageID, mask);
+            while (keys[i] != 0 && keys[i] != messageID) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                keys[i] = (char) messageID;
+                size++;
+            }
+            states[i] = state;
+        }
+
+        void remove(int messageID) {
+            int mask = keys.length - 1;
+            int i = index(messageID, mask);
+            while (keys[i] != messageID) {
+                if (keys[i] == 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            // Shift back the following entries of the probe sequence, no tombstones needed
+            int hole = i;
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = index(keys[j], mask);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    states[hole] = states[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = 0;
+            states[hole] = 0;
+            size--;
+        }
+
+        int[] keys(byte state) {
+            int[] result = new int[size];
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0 && states[i] == state) {
+                    result[count++] = keys[i];
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        private void resize(int capacity) {
+            char[] oldKeys = keys;
+            byte[] oldStates = states;
+            keys = new char[capacity];
+            states = new byte[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldStates[i]);
+                }
+            }
+        }
+
+        private static int index(int messageID, int mask) {
+            return (messageID * 0x9E3779B1 >>> 12) & mask;
+        }
+    }
+}
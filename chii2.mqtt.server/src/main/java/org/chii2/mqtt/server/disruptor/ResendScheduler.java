@@ -0,0 +1,146 @@
+package org.chii2.mqtt.server.disruptor;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.server.MQTTServerUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resend Scheduler used by OutboundDisruptor
+ * Pending resends are held in a hashed timer wheel, keyed by subscriber and Message ID, and the
+ * event is re-added to the disruptor only when it's due. Acknowledged messages cancel their resend.
+ * <p/>
+ * The timer thread is shared by all the resends, so the task never blocks: it doesn't touch the Storage,
+ * OutboundProcessor checks the message when the event is handled, and if the ring buffer is full the
+ * resend is tried again one tick later.
+ */
+public class ResendScheduler {
+
+    // Timer wheel tick duration in milliseconds
+    private static final long TICK_DURATION = 100;
+    // Timer wheel size
+    private static final int TICKS_PER_WHEEL = 512;
+
+    // Outbound Disruptor
+    private final OutboundDisruptor disruptor;
+    // Timer Wheel
+    private final HashedWheelTimer timer = new HashedWheelTimer(TICK_DURATION, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    // Subscriber ID + Message ID <---> Pending resend
+    private final ConcurrentMap<String, Resend> pending = new ConcurrentHashMap<>();
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(ResendScheduler.class);
+
+    public ResendScheduler(OutboundDisruptor disruptor) {
+        this.disruptor = disruptor;
+    }
+
+    public void stop() {
+        timer.stop();
+        pending.clear();
+    }
+
+    /**
+     * Schedule to resend the message after delay, replace the previous pending resend of the same message
+     * PUBREL of a QoS2 flow replaces the pending resend of its PUBLISH.
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     * @param qos          QoS Level
+     * @param sendingTime  Last sending time in milliseconds
+     * @param resendTimes  Resend times
+     * @param delay        Delay in milliseconds
+     * @param messageType  Message Type, PUBLISH or PUBREL
+     */
+    public void schedule(String subscriberID, int messageID, int qos, long sendingTime, int resendTimes, long delay, MQTTMessage.MessageType messageType) {
+        String key = MQTTServerUtils.generateUID(subscriberID, String.valueOf(messageID));
+        Resend resend = new Resend(key, messageType, new OutboundMQTTEventTranslator(subscriberID, false, sendingTime, resendTimes, messageID, qos, messageType));
+        // Registered before the timeout is created, so it's found even if the timeout fires at once
+        Resend previous = pending.put(key, resend);
+        if (previous != null) {
+            previous.cancel();
+        }
+        resend.start(Math.max(0, delay));
+    }
+
+    /**
+     * Cancel the pending resend of the message
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     */
+    public void cancel(String subscriberID, int messageID) {
+        Resend resend = pending.remove(MQTTServerUtils.generateUID(subscriberID, String.valueOf(messageID)));
+        if (resend != null) {
+            resend.cancel();
+        }
+    }
+
+    /**
+     * Run the task one tick later, used to retry when the ring buffer is full
+     * The task runs on the timer thread, so it must not block.
+     *
+     * @param task Task
+     */
+    public void later(final Runnable task) {
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                task.run();
+            }
+        }, TICK_DURATION, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A pending resend, it's still wanted as long as it's registered in the pending map
+     */
+    private class Resend implements TimerTask {
+
+        // Subscriber ID + Message ID
+        private final String key;
+        // Message Type, PUBLISH or PUBREL
+        private final MQTTMessage.MessageType messageType;
+        // Event to re-add
+        private final OutboundMQTTEventTranslator translator;
+        // Current timeout, null until started
+        private volatile Timeout timeout;
+
+        Resend(String key, MQTTMessage.MessageType messageType, OutboundMQTTEventTranslator translator) {
+            this.key = key;
+            this.messageType = messageType;
+            this.translator = translator;
+        }
+
+        void start(long delay) {
+            timeout = timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        void cancel() {
+            Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            // Replaced or cancelled
+            if (pending.get(key) != this) {
+                return;
+            }
+            // Ring buffer is full, try again next tick
+            if (!disruptor.tryPushEvent(translator)) {
+                start(TICK_DURATION);
+                return;
+            }
+            pending.remove(key, this);
+            logger.debug("Re-Add {} Message {} to outbound message queue.", messageType, key);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package org.chii2.mqtt.server.disruptor;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.MQTTServerConfiguration;
+import org.chii2.mqtt.server.MQTTServerMetrics;
+import org.chii2.mqtt.server.storage.ClientSession;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.SessionRegistry;
+import org.chii2.mqtt.server.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Subscriber Queues used by OutboundDisruptor
+ * Applies backpressure to the Messages sent to each subscriber:
+ * <p/>
+ * At most maxInFlight QoS 1|2 Messages are sent and not acknowledged, others wait in the queue.
+ * Messages also wait while the subscriber's channel is not writable. Waiting Messages are pushed to the
+ * disruptor again when Messages are acknowledged or the channel becomes writable.
+ * <p/>
+ * At most maxQueued Messages are stored for a subscriber, online or offline, the overflow policy
+ * decides what happens when the queue is full.
+ * <p/>
+ * Queues never read the Storage, they are rebuilt from the stored Message IDs when the server started.
+ * Waiting Messages are pushed without blocking, the caller may be the OutboundProcessor itself, so when
+ * the ring buffer is full they stay waiting and are pushed again one timer tick later.
+ */
+public class SubscriberQueues {
+
+    // Max sent but not acknowledged QoS 1|2 Messages per subscriber
+    private final int maxInFlight;
+    // Max stored Messages per subscriber
+    private final int maxQueued;
+    // What to do when the queue is full
+    private final MQTTServerConfiguration.OverflowPolicy overflowPolicy;
+    // Storage
+    private final StorageService storage;
+    // Message ID Allocator
+    private final MessageIDAllocator messageIDs;
+    // Client Session Registry
+    private final SessionRegistry sessions;
+    // Outbound Disruptor
+    private final OutboundDisruptor disruptor;
+    // Server Metrics, counts dropped Messages
+    private final MQTTServerMetrics metrics;
+    // Subscriber ID <---> Queue
+    private final ConcurrentMap<String, Queue> queues = new ConcurrentHashMap<>();
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(SubscriberQueues.class);
+
+    public SubscriberQueues(MQTTServerConfiguration configuration, StorageService storage, MessageIDAllocator messageIDs, SessionRegistry sessions, OutboundDisruptor disruptor, MQTTServerMetrics metrics) {
+        this.maxInFlight = Math.max(1, configuration.getMaxInFlight());
+        this.maxQueued = Math.max(1, configuration.getMaxQueued());
+        this.overflowPolicy = configuration.getOverflowPolicy();
+        this.storage = storage;
+        this.messageIDs = messageIDs;
+        this.sessions = sessions;
+        this.disruptor = disruptor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Add the new Message to the subscriber's queue, apply the overflow policy if full
+     * The Message ID is released if the Message is rejected.
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     * @return True if the Message should be stored for the subscriber
+     */
+    public boolean offer(String subscriberID, int messageID) {
+        Queue queue = getQueue(subscriberID);
+        synchronized (queue) {
+            if (queue.stored.size() >= maxQueued) {
+                switch (overflowPolicy) {
+                    case DISCONNECT:
+                        disconnect(subscriberID);
+                        messageIDs.release(subscriberID, messageID);
+                        metrics.messageDropped();
+                        return false;
+                    case DROP_OLDEST:
+                        // Sent Messages may be acknowledged any time, only drop the oldest one not sent yet
+                        int oldest = queue.oldestUnsent();
+                        if (oldest != 0) {
+                            queue.remove(oldest);
+                            storage.removeInFlight(subscriberID, oldest);
+                            messageIDs.release(subscriberID, oldest);
+                            metrics.messageDropped();
+                            logger.debug("Queue of {} is full, oldest Message {} dropped.", subscriberID, oldest);
+                            break;
+                        }
+                        // All the stored Messages are in flight, drop the new one
+                    default:
+                        logger.debug("Queue of {} is full, new Message {} dropped.", subscriberID, messageID);
+                        messageIDs.release(subscriberID, messageID);
+                        metrics.messageDropped();
+                        return false;
+                }
+            }
+            queue.stored.add(messageID);
+            return true;
+        }
+    }
+
+    /**
+     * Can the Message be sent now, called before the Message is sent
+     * QoS 1|2 Messages beyond the in-flight window, or while the channel is not writable, wait in the queue.
+     * QoS 0 Messages are never queued, they are dropped if the channel is not writable.
+     *
+     * @param event    Outbound MQTT Event
+     * @param writable Is the subscriber's channel writable
+     * @return True if the Message should be sent
+     */
+    public boolean tryDeliver(OutboundMQTTEvent event, boolean writable) {
+        String subscriberID = event.getSubscriberID();
+        int messageID = event.getMessageID();
+        if (event.getQoS() == MQTTMessage.QoSLevel.MOST_ONCE.byteValue()) {
+            if (!writable) {
+                metrics.messageDropped();
+            }
+            return writable;
+        }
+        Queue queue = getQueue(subscriberID);
+        boolean deliver;
+        synchronized (queue) {
+            // Already in the window (resend or pushed by drain), or the window has room and nobody is waiting
+            deliver = writable && (queue.sent.contains(messageID) || (queue.sent.size() < maxInFlight && queue.waiting.isEmpty()));
+            if (deliver) {
+                queue.waiting.remove(messageID);
+                queue.sent.add(messageID);
+            } else {
+                queue.sent.remove(messageID);
+                queue.waiting.put(messageID, new OutboundMQTTEventTranslator(subscriberID, false, event.getSendingTime(), event.getResendTimes(), messageID, event.getQoS(), MQTTMessage.MessageType.PUBLISH));
+            }
+        }
+        // Waiting Messages before this one may be sent now
+        if (!deliver && writable) {
+            drain(subscriberID);
+        }
+        return deliver;
+    }
+
+    /**
+     * The Message is acknowledged or removed, send the next waiting Messages
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     */
+    public void complete(String subscriberID, int messageID) {
+        Queue queue = queues.get(subscriberID);
+        if (queue != null) {
+            synchronized (queue) {
+                queue.remove(messageID);
+            }
+            drain(subscriberID);
+        }
+    }
+
+    /**
+     * The Message is not acknowledged after all the retries, free its place in the in-flight window
+     * The Message stays stored, it's sent again when the subscriber connected again.
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     */
+    public void expire(String subscriberID, int messageID) {
+        Queue queue = queues.get(subscriberID);
+        if (queue != null) {
+            synchronized (queue) {
+                queue.sent.remove(messageID);
+            }
+            drain(subscriberID);
+        }
+    }
+
+    /**
+     * The subscriber's channel becomes writable, send the waiting Messages
+     *
+     * @param subscriberID Subscriber ID
+     */
+    public void resume(String subscriberID) {
+        if (queues.containsKey(subscriberID)) {
+            drain(subscriberID);
+        }
+    }
+
+    /**
+     * Send the in-flight Messages again, ahead of the other waiting Messages
+     * Called when the subscriber connected and the in-flight Messages have been loaded anyway. Messages
+     * offered meanwhile are kept, the in-flight Messages are merged into the queue.
+     *
+     * @param subscriberID     Subscriber ID
+     * @param inFlightMessages In-Flight Messages
+     */
+    public void load(String subscriberID, List<PublishMessage> inFlightMessages) {
+        Queue queue = getQueue(subscriberID);
+        synchronized (queue) {
+            LinkedHashMap<Integer, OutboundMQTTEventTranslator> waiting = new LinkedHashMap<>();
+            for (PublishMessage inFlightMessage : inFlightMessages) {
+                int messageID = inFlightMessage.getMessageID();
+                queue.stored.add(messageID);
+                // Sent to the previous connection, send again
+                queue.sent.remove(messageID);
+                waiting.put(messageID, new OutboundMQTTEventTranslator(subscriberID, false, 0, 0, messageID, inFlightMessage.getQosLevel().byteValue(), MQTTMessage.MessageType.PUBLISH));
+            }
+            for (Map.Entry<Integer, OutboundMQTTEventTranslator> entry : queue.waiting.entrySet()) {
+                if (!waiting.containsKey(entry.getKey())) {
+                    waiting.put(entry.getKey(), entry.getValue());
+                }
+            }
+            queue.waiting.clear();
+            queue.waiting.putAll(waiting);
+        }
+        drain(subscriberID);
+    }
+
+    /**
+     * Rebuild the queues from the stored Message IDs, called when the server started
+     *
+     * @param inFlightIDs Subscriber ID <---> In-Flight Message IDs
+     */
+    public void rebuild(Map<String, List<Integer>> inFlightIDs) {
+        for (Map.Entry<String, List<Integer>> entry : inFlightIDs.entrySet()) {
+            Queue queue = getQueue(entry.getKey());
+            synchronized (queue) {
+                queue.stored.addAll(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drop the subscriber's queue, called when its session is discarded
+     *
+     * @param subscriberID Subscriber ID
+     */
+    public void remove(String subscriberID) {
+        queues.remove(subscriberID);
+    }
+
+    /**
+     * Is the Message still stored for the subscriber, it's not dropped or removed with the session
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     * @return True if stored
+     */
+    public boolean contains(String subscriberID, int messageID) {
+        Queue queue = queues.get(subscriberID);
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            return queue.stored.contains(messageID);
+        }
+    }
+
+    /**
+     * Number of Messages stored for the subscriber
+     *
+     * @param subscriberID Subscriber ID
+     * @return Queue size
+     */
+    public int size(String subscriberID) {
+        Queue queue = queues.get(subscriberID);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.stored.size();
+        }
+    }
+
+    /**
+     * Push waiting Messages to the disruptor while the in-flight window has room
+     * Never blocks, if the ring buffer is full the rest are pushed one timer tick later.
+     *
+     * @param subscriberID Subscriber ID
+     */
+    protected void drain(final String subscriberID) {
+        final Queue queue = queues.get(subscriberID);
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            Iterator<Map.Entry<Integer, OutboundMQTTEventTranslator>> iterator = queue.waiting.entrySet().iterator();
+            while (queue.sent.size() < maxInFlight && iterator.hasNext()) {
+                Map.Entry<Integer, OutboundMQTTEventTranslator> entry = iterator.next();
+                if (!disruptor.tryPushEvent(entry.getValue())) {
+                    if (!queue.retrying) {
+                        queue.retrying = true;
+                        disruptor.later(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (queue) {
+                                    queue.retrying = false;
+                                }
+                                drain(subscriberID);
+                            }
+                        });
+                    }
+                    break;
+                }
+                iterator.remove();
+                // Reserve the place in the window
+                queue.sent.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Close the subscriber's channel
+     *
+     * @param subscriberID Subscriber ID
+     */
+    protected void disconnect(String subscriberID) {
+        ClientSession session = sessions.get(subscriberID);
+        if (session != null) {
+            logger.warn("Queue of {} is full, disconnect the subscriber.", subscriberID);
+            session.getContext().close();
+        }
+    }
+
+    /**
+     * Get the subscriber's queue, a subscriber without queue has nothing stored
+     *
+     * @param subscriberID Subscriber ID
+     * @return Queue
+     */
+    protected Queue getQueue(String subscriberID) {
+        Queue queue = queues.get(subscriberID);
+        if (queue == null) {
+            Queue newQueue = new Queue();
+            queue = queues.putIfAbsent(subscriberID, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Queue of a subscriber, guarded by itself
+     */
+    protected static class Queue {
+
+        // Stored Message IDs in arrival order
+        final LinkedHashSet<Integer> stored = new LinkedHashSet<>();
+        // Message IDs sent and not acknowledged, or pushed to be sent
+        final Set<Integer> sent = new HashSet<>();
+        // Message ID <---> Event waiting for the window or writable channel, in arrival order
+        final LinkedHashMap<Integer, OutboundMQTTEventTranslator> waiting = new LinkedHashMap<>();
+        // Drain retry scheduled after the ring buffer was full
+        boolean retrying;
+
+        void remove(int messageID) {
+            stored.remove(messageID);
+            sent.remove(messageID);
+            waiting.remove(messageID);
+        }
+
+        int oldestUnsent() {
+            for (int messageID : stored) {
+                if (!sent.contains(messageID)) {
+                    return messageID;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.chii2.mqtt.server.storage;
+
+import io.netty.channel.ChannelHandlerContext;
+import org.chii2.mqtt.common.message.PublishMessage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Client Session
+ * State of a connected client, registered in SessionRegistry and attached to the client's channel.
+ * <p/>
+ * QoS flow state is not kept here, it must outlive the connection of a persistent session: received
+ * QoS2 Message IDs are kept by QoS2Index, sent QoS2 Messages' states by QoS2States.
+ */
+public class ClientSession {
+
+    // Client ID
+    private final String clientID;
+    // Netty Channel Context
+    private final ChannelHandlerContext context;
+    // Clean Session flag of the CONNECT Message
+    private final boolean cleanSession;
+    // Keep Alive period in seconds, 0 means never expired
+    private final int keepAlive;
+    // Last time a message received from the client in milliseconds
+    private volatile long lastActivity = System.currentTimeMillis();
+    // Authorization state
+    private volatile boolean authorized;
+    // Will Message, published if the connection is lost without DISCONNECT
+    private final AtomicReference<PublishMessage> will = new AtomicReference<>();
+    // Messages received from the client
+    private final AtomicLong receivedMessages = new AtomicLong();
+    // Messages sent to the client
+    private final AtomicLong sentMessages = new AtomicLong();
+
+    public ClientSession(String clientID, ChannelHandlerContext context, boolean cleanSession, int keepAlive, boolean authorized) {
+        this.clientID = clientID;
+        this.context = context;
+        this.cleanSession = cleanSession;
+        this.keepAlive = keepAlive;
+        this.authorized = authorized;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    public ChannelHandlerContext getContext() {
+        return context;
+    }
+
+    public boolean isCleanSession() {
+        return cleanSession;
+    }
+
+    public int getKeepAlive() {
+        return keepAlive;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Something received from the client, called by Netty I/O thread for every frame
+     */
+    public void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public void setWill(PublishMessage willMessage) {
+        will.set(willMessage);
+    }
+
+    /**
+     * Take the Will Message away from the session, so it's published or discarded only once
+     *
+     * @return Will Message, or null if not set or already taken
+     */
+    public PublishMessage takeWill() {
+        return will.getAndSet(null);
+    }
+
+    public boolean isAuthorized() {
+        return authorized;
+    }
+
+    public void setAuthorized(boolean authorized) {
+        this.authorized = authorized;
+    }
+
+    /**
+     * Is the client's channel still active
+     *
+     * @return True if active
+     */
+    public boolean isActive() {
+        return context.channel().isActive();
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages.get();
+    }
+
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    public void messageReceived() {
+        receivedMessages.incrementAndGet();
+    }
+
+    public void messageSent() {
+        sentMessages.incrementAndGet();
+    }
+}
@@ -0,0 +1,222 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Message ID Allocator
+ * <p/>
+ * Reserves blocks of Message IDs from the Storage and hands them out from memory,
+ * so the Storage is only touched once per block instead of once per message.
+ * <p/>
+ * Message ID is a 16-bit number and wraps around. To avoid reusing an ID which is still in use,
+ * the allocator tracks outstanding Message IDs of each subscriber, an ID is skipped if it's still
+ * outstanding for any of the subscribers it would be sent to.
+ * <p/>
+ * Outstanding Message IDs are rebuilt from the Storage once when the server starts, and reloaded when
+ * a subscriber connects. The Storage is never read on the publish path.
+ */
+public class MessageIDAllocator {
+
+    // Max Message ID
+    public static final int MAX_MESSAGE_ID = 65535;
+
+    // Storage
+    private final StorageService storage;
+    // Number of Message IDs reserved at a time
+    private final int blockSize;
+    // Current reserved block
+    private volatile Block block;
+    // Subscriber ID <---> Outstanding Message IDs
+    private final ConcurrentMap<String, Set<Integer>> outstanding = new ConcurrentHashMap<>();
+
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(MessageIDAllocator.class);
+
+    public MessageIDAllocator(StorageService storage, int blockSize) {
+        this.storage = storage;
+        this.blockSize = Math.max(1, Math.min(blockSize, MAX_MESSAGE_ID));
+    }
+
+    /**
+     * Next Message ID, Range [1, 65535]
+     *
+     * @return Message ID
+     */
+    public int next() {
+        while (true) {
+            Block current = block;
+            if (current != null) {
+                int index = current.next.getAndIncrement();
+                if (index < current.count) {
+                    return wrap(current.first + index);
+                }
+            }
+            synchronized (this) {
+                if (block == current) {
+                    block = new Block(storage.reserveMessageIDs(blockSize), blockSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Next Message ID not outstanding for any of the subscribers, mark it outstanding for all of them
+     * At most one more ID than the subscribers' outstanding IDs in total is probed, one of them must be free.
+     *
+     * @param subscriberIDs Subscriber IDs
+     * @return Message ID, 0 if all the Message IDs are outstanding and the message should be rejected
+     */
+    public int acquire(List<String> subscriberIDs) {
+        long probes = 1;
+        for (String subscriberID : subscriberIDs) {
+            probes += getOutstanding(subscriberID).size();
+        }
+        probes = Math.min(probes, MAX_MESSAGE_ID);
+        for (long i = 0; i < probes; i++) {
+            int messageID = next();
+            if (!isOutstanding(subscriberIDs, messageID)) {
+                for (String subscriberID : subscriberIDs) {
+                    getOutstanding(subscriberID).add(messageID);
+                }
+                return messageID;
+            }
+        }
+        logger.warn("All Message IDs are outstanding for the subscribers, message rejected.");
+        return 0;
+    }
+
+    /**
+     * Next Message ID not outstanding for the subscriber, mark it outstanding
+     *
+     * @param subscriberID Subscriber ID
+     * @return Message ID, 0 if all the Message IDs are outstanding and the message should be rejected
+     */
+    public int acquire(String subscriberID) {
+        return acquire(Collections.singletonList(subscriberID));
+    }
+
+    /**
+     * The Message ID is no longer used by the subscriber
+     *
+     * @param subscriberID Subscriber ID
+     * @param messageID    Message ID
+     */
+    public void release(String subscriberID, int messageID) {
+        Set<Integer> set = outstanding.get(subscriberID);
+        if (set != null) {
+            set.remove(messageID);
+        }
+    }
+
+    /**
+     * Load the outstanding Message IDs from in-flight Messages
+     * Called when subscriber connected and the in-flight Messages have been loaded anyway.
+     *
+     * @param subscriberID     Subscriber ID
+     * @param inFlightMessages In-Flight Messages
+     */
+    public void load(String subscriberID, List<PublishMessage> inFlightMessages) {
+        Set<Integer> set = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        for (PublishMessage inFlightMessage : inFlightMessages) {
+            set.add(inFlightMessage.getMessageID());
+        }
+        outstanding.put(subscriberID, set);
+    }
+
+    /**
+     * Forget the outstanding Message IDs of the subscriber, called when its session is discarded
+     *
+     * @param subscriberID Subscriber ID
+     */
+    public void remove(String subscriberID) {
+        outstanding.remove(subscriberID);
+    }
+
+    /**
+     * Rebuild the outstanding Message IDs of all the subscribers
+     * Called once when the server started, subscribers not in the Storage have nothing outstanding.
+     *
+     * @param inFlightIDs Subscriber ID <---> In-Flight Message IDs
+     */
+    public void rebuild(Map<String, List<Integer>> inFlightIDs) {
+        outstanding.clear();
+        for (Map.Entry<String, List<Integer>> entry : inFlightIDs.entrySet()) {
+            Set<Integer> set = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            set.addAll(entry.getValue());
+            outstanding.put(entry.getKey(), set);
+        }
+    }
+
+    /**
+     * Is the Message ID outstanding for any of the subscribers
+     *
+     * @param subscriberIDs Subscriber IDs
+     * @param messageID     Message ID
+     * @return True if outstanding
+     */
+    protected boolean isOutstanding(List<String> subscriberIDs, int messageID) {
+        for (String subscriberID : subscriberIDs) {
+            if (getOutstanding(subscriberID).contains(messageID)) {
+                logger.debug("Message ID {} is still outstanding for {}, skipped.", messageID, subscriberID);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the outstanding Message IDs of the subscriber
+     *
+     * @param subscriberID Subscriber ID
+     * @return Outstanding Message IDs
+     */
+    protected Set<Integer> getOutstanding(String subscriberID) {
+        Set<Integer> set = outstanding.get(subscriberID);
+        if (set == null) {
+            Set<Integer> newSet = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            set = outstanding.putIfAbsent(subscriberID, newSet);
+            if (set == null) {
+                set = newSet;
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Wrap the number into Range [1, 65535]
+     *
+     * @param number Number
+     * @return Message ID
+     */
+    public static int wrap(int number) {
+        return (number - 1) % MAX_MESSAGE_ID + 1;
+    }
+
+    /**
+     * Reserved block of Message IDs
+     */
+    private static class Block {
+
+        // First Message ID
+        final int first;
+        // Number of Message IDs
+        final int count;
+        // Index of the next Message ID
+        final AtomicInteger next = new AtomicInteger();
+
+        Block(int first, int count) {
+            this.first = first;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.PublishMessage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * QoS2 PUBLISH Message Index
+ * <p/>
+ * Tracks the QoS2 Message IDs received from each publisher and waiting for PUBREL, so duplicated
+ * PUBLISH Messages are detected in memory. Each publisher has a small bloom filter for the fast
+ * negative path, backed by an exact sorted set of the outstanding Message IDs.
+ * <p/>
+ * The Storage is only consulted for IDs the index can't know: those stored before a restart by a
+ * publisher with persistent session. Clean session publishers' state doesn't outlive the connection,
+ * so it's only kept in memory and never written to the Storage, and dropped when the connection closed.
+ * <p/>
+ * Not thread safe, each InboundProcessor has its own instance, messages of a publisher are always
+ * handled by the same Processor.
+ */
+public class QoS2Index {
+
+    // Storage
+    private final StorageService storage;
+    // Publisher ID <---> Outstanding QoS2 Message IDs
+    private final Map<String, Publisher> publishers = new HashMap<>();
+
+    public QoS2Index(StorageService storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Publisher connected, reset its state if clean session
+     *
+     * @param publisherID  Publisher Client ID
+     * @param cleanSession Clean Session flag
+     */
+    public void connect(String publisherID, boolean cleanSession) {
+        if (cleanSession) {
+            publishers.put(publisherID, new Publisher(false, true));
+        } else {
+            Publisher publisher = publishers.get(publisherID);
+            // First time since restart, stored Message IDs are unknown
+            if (publisher == null) {
+                publishers.put(publisherID, new Publisher(true, false));
+            }
+            // Previous session was clean, its state has been discarded
+            else if (!publisher.persistent) {
+                publishers.put(publisherID, new Publisher(true, true));
+            }
+        }
+    }
+
+    /**
+     * Publisher's connection closed, drop its state unless something is outstanding for a persistent session
+     * A dropped persistent publisher is treated as first time since restart when it connects again.
+     *
+     * @param publisherID  Publisher Client ID
+     * @param cleanSession Clean Session flag
+     */
+    public void disconnect(String publisherID, boolean cleanSession) {
+        Publisher publisher = publishers.get(publisherID);
+        if (publisher != null && (cleanSession || !publisher.persistent || publisher.size == 0)) {
+            publishers.remove(publisherID);
+        }
+    }
+
+    /**
+     * Number of publishers tracked in memory
+     *
+     * @return Publishers count
+     */
+    public int size() {
+        return publishers.size();
+    }
+
+    /**
+     * Is the QoS2 Message received and waiting for PUBREL
+     *
+     * @param publisherID Publisher Client ID
+     * @param messageID   Message ID
+     * @return True if contains
+     */
+    public boolean contains(String publisherID, int messageID) {
+        Publisher publisher = publishers.get(publisherID);
+        if (publisher == null || !publisher.complete) {
+            return (publisher != null && publisher.contains(messageID)) || storage.containsQoS2(publisherID, messageID);
+        }
+        return publisher.contains(messageID);
+    }
+
+    /**
+     * QoS2 Message received, save it until PUBREL
+     *
+     * @param publisherID    Publisher Client ID
+     * @param publishMessage Publish Message
+     */
+    public void put(String publisherID, PublishMessage publishMessage) {
+        Publisher publisher = publishers.get(publisherID);
+        if (publisher == null) {
+            publisher = new Publisher(true, false);
+            publishers.put(publisherID, publisher);
+        }
+        publisher.add(publishMessage.getMessageID());
+        if (publisher.persistent) {
+            storage.putQoS2(publisherID, publishMessage);
+        }
+    }
+
+    /**
+     * PUBREL received, remove the QoS2 Message
+     *
+     * @param publisherID Publisher Client ID
+     * @param messageID   Message ID
+     */
+    public void remove(String publisherID, int messageID) {
+        Publisher publisher = publishers.get(publisherID);
+        if (publisher == null || publisher.persistent) {
+            storage.removeQoS2(publisherID, messageID);
+        }
+        if (publisher != null) {
+            publisher.remove(messageID);
+        }
+    }
+
+    /**
+     * Outstanding QoS2 Message IDs of a publisher
+     */
+    protected static class Publisher {
+
+        // Bloom filter bits count
+        private static final int BLOOM_BITS = 256;
+
+        // Bloom filter of the Message IDs added since the set was last empty
+        private final long[] bloom = new long[BLOOM_BITS / 64];
+        // Sorted outstanding Message IDs
+        private int[] ids = new int[4];
+        // Outstanding Message IDs count
+        private int size;
+        // Is the state written to the Storage
+        final boolean persistent;
+        // Does the index know all the outstanding Message IDs, false if some may be stored before restart
+        final boolean complete;
+
+        Publisher(boolean persistent, boolean complete) {
+            this.persistent = persistent;
+            this.complete = complete;
+        }
+
+        boolean contains(int messageID) {
+            return mightContain(messageID) && Arrays.binarySearch(ids, 0, size, messageID) >= 0;
+        }
+
+        void add(int messageID) {
+            int index = Arrays.binarySearch(ids, 0, size, messageID);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = messageID;
+            size++;
+            setBit(hash1(messageID));
+            setBit(hash2(messageID));
+        }
+
+        void remove(int messageID) {
+            int index = Arrays.binarySearch(ids, 0, size, messageID);
+            if (index < 0) {
+                return;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            // Bloom filter can't remove, start over when nothing outstanding
+            if (size == 0) {
+                Arrays.fill(bloom, 0);
+            }
+        }
+
+        boolean mightContain(int messageID) {
+            return getBit(hash1(messageID)) && getBit(hash2(messageID));
+        }
+
+        private void setBit(int bit) {
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+
+        private boolean getBit(int bit) {
+            return (bloom[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private static int hash1(int messageID) {
+            return messageID & (BLOOM_BITS - 1);
+        }
+
+        private static int hash2(int messageID) {
+            return ((messageID * 0x9E3779B1) >>> 24) & (BLOOM_BITS - 1);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.MQTTServerUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory retained Message index, retained Topics organized as a Trie
+ * Each node represents one Topic level of a retained Topic. A wildcard Topic only visits the
+ * matching subtree, so the cost depends on the number of matched Topics instead of all retained Topics.
+ * <p/>
+ * Payloads are cached in a LRU cache bounded by total payload size, evicted payloads are
+ * loaded from storage again when needed.
+ * <p/>
+ * Lookups are lock free, modifications are serialized.
+ */
+public class RetainIndex {
+
+    // Topic level separator
+    private static final String SEPARATOR = "/";
+    // Single level wildcard
+    private static final String SINGLE_LEVEL = "+";
+    // Multi level wildcard
+    private static final String MULTI_LEVEL = "#";
+
+    // Storage, used to load evicted payloads
+    private final StorageService storage;
+    // Max total payload size in cache
+    private final long cacheSize;
+    // Current total payload size in cache, guarded by cache
+    private long cachedSize;
+    // Topic <---> Retain Message, access ordered, guarded by itself
+    private final LinkedHashMap<String, PublishMessage> cache = new LinkedHashMap<>(16, 0.75f, true);
+    // Root node, represents the position before the first Topic level
+    private final Node root = new Node(null, null);
+
+    public RetainIndex(StorageService storage, long cacheSize) {
+        this.storage = storage;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Rebuild the index with given retain Messages
+     * Existing Messages will be discarded.
+     *
+     * @param retainMessages Retain Messages, usually loaded from storage
+     */
+    public synchronized void rebuild(List<PublishMessage> retainMessages) {
+        root.children.clear();
+        synchronized (cache) {
+            cache.clear();
+            cachedSize = 0;
+        }
+        for (PublishMessage retainMessage : retainMessages) {
+            put(retainMessage);
+        }
+    }
+
+    /**
+     * Add or update the retain Message
+     *
+     * @param publishMessage Publish Message, Topic may NOT contain wildcard
+     */
+    public synchronized void put(PublishMessage publishMessage) {
+        String topic = publishMessage.getTopicName();
+        Node node = root;
+        for (String level : split(topic)) {
+            Node child = node.children.get(level);
+            if (child == null) {
+                child = new Node(node, level);
+                node.children.put(level, child);
+            }
+            node = child;
+        }
+        cache(topic, publishMessage);
+        node.topic = topic;
+    }
+
+    /**
+     * Remove the retain Message
+     *
+     * @param topic Topic, may NOT contain wildcard
+     */
+    public synchronized void remove(String topic) {
+        Node node = root;
+        for (String level : split(topic)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return;
+            }
+        }
+        node.topic = null;
+        synchronized (cache) {
+            PublishMessage removed = cache.remove(topic);
+            if (removed != null) {
+                cachedSize -= removed.getContent().limit();
+            }
+        }
+        prune(node);
+    }
+
+    /**
+     * Get retain Messages match given Topic
+     * TOPIC MAY CONTAINS WILDCARD
+     *
+     * @param topic Topic may contain wildcard
+     * @return Publish Messages
+     */
+    public List<PublishMessage> match(String topic) {
+        List<String> topics = new ArrayList<>();
+        match(root, split(topic), 0, topics);
+        List<PublishMessage> messages = new ArrayList<>(topics.size());
+        for (String retainTopic : topics) {
+            PublishMessage message = get(retainTopic);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Get the retain Message from cache, load from storage if evicted
+     *
+     * @param topic Topic
+     * @return Publish Message, null if not exist
+     */
+    protected PublishMessage get(String topic) {
+        PublishMessage cached;
+        synchronized (cache) {
+            cached = cache.get(topic);
+        }
+        if (cached == null) {
+            cached = storage.getRetain(topic);
+            if (cached == null) {
+                return null;
+            }
+            cached = cache(topic, cached);
+        }
+        // Every caller gets its own buffer position
+        return new PublishMessage(
+                true,
+                cached.getQosLevel(),
+                false,
+                topic,
+                cached.getMessageID(),
+                cached.getContent().duplicate());
+    }
+
+    /**
+     * Put a copy of the retain Message into cache, evict least recently used Messages if full
+     *
+     * @param topic          Topic
+     * @param publishMessage Publish Message
+     * @return Cached Message, or the given Message if it's larger than the whole cache
+     */
+    private PublishMessage cache(String topic, PublishMessage publishMessage) {
+        // Too large to be cached, loaded from storage every time
+        if (publishMessage.getContent().limit() > cacheSize) {
+            synchronized (cache) {
+                PublishMessage replaced = cache.remove(topic);
+                if (replaced != null) {
+                    cachedSize -= replaced.getContent().limit();
+                }
+            }
+            return publishMessage;
+        }
+        PublishMessage cached = new PublishMessage(
+                true,
+                publishMessage.getQosLevel(),
+                false,
+                topic,
+                publishMessage.getMessageID(),
+                ByteBuffer.wrap(MQTTServerUtils.ByteBufferToByteArray(publishMessage.getContent())));
+        synchronized (cache) {
+            PublishMessage replaced = cache.put(topic, cached);
+            if (replaced != null) {
+                cachedSize -= replaced.getContent().limit();
+            }
+            cachedSize += cached.getContent().limit();
+            Iterator<PublishMessage> iterator = cache.values().iterator();
+            while (cachedSize > cacheSize && iterator.hasNext()) {
+                cachedSize -= iterator.next().getContent().limit();
+                iterator.remove();
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Recursively collect the retained Topics match the Topic levels start from given index
+     *
+     * @param node   Current node
+     * @param levels Topic levels, may contain wildcard
+     * @param index  Index of the level to be matched by node's children
+     * @param topics Matched retained Topics
+     */
+    private void match(Node node, String[] levels, int index, List<String> topics) {
+        // All levels matched
+        if (index == levels.length) {
+            String topic = node.topic;
+            if (topic != null) {
+                topics.add(topic);
+            }
+            return;
+        }
+        String level = levels[index];
+        if (MULTI_LEVEL.equals(level)) {
+            // '#' matches the parent level and any number of child levels
+            collect(node, topics);
+        } else if (SINGLE_LEVEL.equals(level)) {
+            for (Node child : node.children.values()) {
+                match(child, levels, index + 1, topics);
+            }
+        } else {
+            Node exact = node.children.get(level);
+            if (exact != null) {
+                match(exact, levels, index + 1, topics);
+            }
+        }
+    }
+
+    /**
+     * Collect the retained Topics of the node and all its descendants
+     *
+     * @param node   Node
+     * @param topics Matched retained Topics
+     */
+    private void collect(Node node, List<String> topics) {
+        String topic = node.topic;
+        if (topic != null) {
+            topics.add(topic);
+        }
+        for (Node child : node.children.values()) {
+            collect(child, topics);
+        }
+    }
+
+    /**
+     * Remove empty nodes from given node up to the root
+     *
+     * @param node Node
+     */
+    private void prune(Node node) {
+        while (node.parent != null && node.topic == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.level);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Split Topic into levels, empty levels are kept
+     *
+     * @param topic Topic
+     * @return Topic levels
+     */
+    private static String[] split(String topic) {
+        return topic.split(SEPARATOR, -1);
+    }
+
+    /**
+     * Trie Node
+     */
+    private static class Node {
+        // Parent node
+        private final Node parent;
+        // Topic level of this node
+        private final String level;
+        // Topic level <---> Child node
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+        // Retained Topic end at this node, null if nothing retained
+        private volatile String topic;
+
+        private Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+}
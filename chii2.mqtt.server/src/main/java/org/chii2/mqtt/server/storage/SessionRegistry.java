@@ -0,0 +1,66 @@
+package org.chii2.mqtt.server.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Client Session Registry, Map Client ID to ClientSession
+ * Lock free, lookups on the delivery path never block each other.
+ * <p/>
+ * Register replaces the session of the same Client ID atomically and returns the replaced one,
+ * remove only removes the given session, so a closing old channel never removes its successor.
+ */
+public class SessionRegistry {
+
+    // Client ID <---> Client Session
+    private final ConcurrentMap<String, ClientSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Register the session, take over the previous session of the same Client ID
+     *
+     * @param session Client Session
+     * @return Previous session of the Client ID, or null
+     */
+    public ClientSession register(ClientSession session) {
+        return sessions.put(session.getClientID(), session);
+    }
+
+    /**
+     * Get the session of the Client ID
+     *
+     * @param clientID Client ID
+     * @return Client Session, or null if not connected
+     */
+    public ClientSession get(String clientID) {
+        return sessions.get(clientID);
+    }
+
+    /**
+     * Remove the session if it's still the registered one of its Client ID
+     *
+     * @param session Client Session
+     * @return True if removed
+     */
+    public boolean remove(ClientSession session) {
+        return session != null && sessions.remove(session.getClientID(), session);
+    }
+
+    /**
+     * Is the client connected
+     *
+     * @param clientID Client ID
+     * @return True if the client has a registered session
+     */
+    public boolean contains(String clientID) {
+        return sessions.containsKey(clientID);
+    }
+
+    /**
+     * Number of registered sessions
+     *
+     * @return Sessions count
+     */
+    public int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,146 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.MQTTServerUtils;
+
+/**
+ * A pending change to the Storage
+ * Used to apply multiple changes to the Storage in one batch.
+ */
+public class StorageMutation {
+
+    public enum Type {
+        PUT_INFLIGHT,
+        REMOVE_INFLIGHT,
+        PUT_QOS2,
+        REMOVE_QOS2,
+        PUT_SUBSCRIPTION,
+        REMOVE_SUBSCRIPTION
+    }
+
+    private final Type type;
+    // Subscriber ID or Publisher ID
+    private final String clientID;
+    // Message ID, for In-Flight and QoS2
+    private final int messageID;
+    // Topic, for Subscription
+    private final String topic;
+    // Publish Message, for PUT_INFLIGHT and PUT_QOS2
+    private final PublishMessage publishMessage;
+    // Subscription, for PUT_SUBSCRIPTION
+    private final Subscription subscription;
+
+    private StorageMutation(Type type, String clientID, int messageID, String topic, PublishMessage publishMessage, Subscription subscription) {
+        this.type = type;
+        this.clientID = clientID;
+        this.messageID = messageID;
+        this.topic = topic;
+        this.publishMessage = publishMessage;
+        this.subscription = subscription;
+    }
+
+    public static StorageMutation putInFlight(String subscriberID, PublishMessage publishMessage) {
+        return new StorageMutation(Type.PUT_INFLIGHT, subscriberID, publishMessage.getMessageID(), null, publishMessage, null);
+    }
+
+    public static StorageMutation removeInFlight(String subscriberID, int messageID) {
+        return new StorageMutation(Type.REMOVE_INFLIGHT, subscriberID, messageID, null, null, null);
+    }
+
+    public static StorageMutation putQoS2(String publisherID, PublishMessage publishMessage) {
+        return new StorageMutation(Type.PUT_QOS2, publisherID, publishMessage.getMessageID(), null, publishMessage, null);
+    }
+
+    public static StorageMutation removeQoS2(String publisherID, int messageID) {
+        return new StorageMutation(Type.REMOVE_QOS2, publisherID, messageID, null, null, null);
+    }
+
+    public static StorageMutation putSubscription(Subscription subscription) {
+        return new StorageMutation(Type.PUT_SUBSCRIPTION, subscription.getSubscriberID(), 0, subscription.getTopic(), null, subscription);
+    }
+
+    public static StorageMutation removeSubscription(String subscriberID, String topic) {
+        return new StorageMutation(Type.REMOVE_SUBSCRIPTION, subscriberID, 0, topic, null, null);
+    }
+
+    /**
+     * Key of the record this mutation changes
+     * Put and remove mutations of the same record share the same key.
+     *
+     * @return Key
+     */
+    public String getKey() {
+        switch (type) {
+            case PUT_INFLIGHT:
+            case REMOVE_INFLIGHT:
+                return "I" + MQTTServerUtils.generateUID(clientID, String.valueOf(messageID));
+            case PUT_QOS2:
+            case REMOVE_QOS2:
+                return "Q" + MQTTServerUtils.generateUID(clientID, String.valueOf(messageID));
+            default:
+                return "S" + MQTTServerUtils.generateUID(clientID, topic);
+        }
+    }
+
+    /**
+     * Apply this mutation to the Storage one by one
+     * Used by the Storage which has no cheaper batch operation.
+     *
+     * @param storage Storage Service
+     */
+    public void applyTo(StorageService storage) {
+        switch (type) {
+            case PUT_INFLIGHT:
+                storage.putInFlight(clientID, publishMessage);
+                break;
+            case REMOVE_INFLIGHT:
+                storage.removeInFlight(clientID, messageID);
+                break;
+            case PUT_QOS2:
+                storage.putQoS2(clientID, publishMessage);
+                break;
+            case REMOVE_QOS2:
+                storage.removeQoS2(clientID, messageID);
+                break;
+            case PUT_SUBSCRIPTION:
+                storage.putSubscription(subscription);
+                break;
+            case REMOVE_SUBSCRIPTION:
+                storage.removeSubscription(clientID, topic);
+                break;
+        }
+    }
+
+    /**
+     * Is this mutation a removal
+     *
+     * @return True if removal
+     */
+    public boolean isRemove() {
+        return type == Type.REMOVE_INFLIGHT || type == Type.REMOVE_QOS2 || type == Type.REMOVE_SUBSCRIPTION;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    public int getMessageID() {
+        return messageID;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public PublishMessage getPublishMessage() {
+        return publishMessage;
+    }
+
+    public Subscription getSubscription() {
+        return subscription;
+    }
+}
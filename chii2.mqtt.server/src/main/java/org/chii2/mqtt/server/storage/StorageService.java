@@ -3,9 +3,14 @@ package org.chii2.mqtt.server.storage;
 import org.chii2.mqtt.common.message.PublishMessage;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Storage Service
+ * <p/>
+ * Content of large PUBLISH Messages is a memory mapped buffer of the spooled Payload,
+ * implementations should read it as a stream (e.g. {@link org.chii2.mqtt.server.MQTTServerUtils#ByteBufferToInputStream})
+ * instead of copying it to the heap.
  */
 public interface StorageService {
 
@@ -26,6 +31,16 @@ public interface StorageService {
      */
     public int getNextMessageID();
 
+    /**
+     * Reserve a block of Message IDs
+     * The reserved Message IDs are continuous and wrap around, Range [1, 65535].
+     * Generated Message IDs after this call start after the reserved block.
+     *
+     * @param count Number of Message IDs to reserve
+     * @return First reserved Message ID
+     */
+    public int reserveMessageIDs(int count);
+
     /**
      * The server must discard any previously maintained information about the
      * client and treat the connection as "clean". The server must also discard any state when
@@ -42,6 +57,14 @@ public interface StorageService {
      */
     public void putRetain(PublishMessage publishMessage);
 
+    /**
+     * Get the retain PUBLISH Message for given Topic
+     *
+     * @param topic Topic may NOT contain wildcard
+     * @return Publish Message, null if not exist
+     */
+    public PublishMessage getRetain(String topic);
+
     /**
      * Get the retain PUBLISH Messages for given Topic
      * TOPIC MAY CONTAINS WILDCARD
@@ -66,6 +89,16 @@ public interface StorageService {
      */
     public void putInFlight(String subscriberID, PublishMessage publishMessage);
 
+    /**
+     * Save the same in-flight Message for multiple subscribers
+     * Used by publish fan-out, the content is shared by all the subscribers.
+     *
+     * @param subscriberIDs  Subscriber IDs
+     * @param publishMessage Publish Message as template
+     * @param messageID      Message ID
+     */
+    public void putInFlights(List<String> subscriberIDs, PublishMessage publishMessage, int messageID);
+
     /**
      * Get list of in-flight Messages with give Subscriber ID
      *
@@ -73,6 +106,14 @@ public interface StorageService {
      */
     public List<PublishMessage> getInFlights(String subscriberID);
 
+    /**
+     * Get the Message IDs of all the in-flight Messages in storage
+     * Used to rebuild in-memory outstanding Message IDs
+     *
+     * @return Subscriber ID <---> Message IDs
+     */
+    public Map<String, List<Integer>> getAllInFlightIDs();
+
     /**
      * Get the in-flight Message with give Subscriber ID and Message ID
      *
@@ -160,4 +201,26 @@ public interface StorageService {
      * @return List of Subscription
      */
     public List<Subscription> getSubscriptions(String topic);
+
+    /**
+     * Get all the Subscriptions in storage
+     * Used to rebuild in-memory Subscription index
+     *
+     * @return List of Subscription
+     */
+    public List<Subscription> getAllSubscriptions();
+
+    /**
+     * Apply the mutations in a single transaction
+     * The mutations must be coalesced, each record appears at most once in the list.
+     *
+     * @param mutations List of StorageMutation
+     */
+    public void applyBatch(List<StorageMutation> mutations);
+
+    /**
+     * Flush the pending changes to the persistent storage
+     * Called at the end of each Disruptor batch, implementations write through immediately may do nothing.
+     */
+    public void flush();
 }
@@ -0,0 +1,212 @@
+package org.chii2.mqtt.server.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory Subscription index, Topic levels organized as a Trie
+ * Each node represents one Topic level, wildcard levels '+' and '#' are stored as normal child nodes.
+ * Matching a Topic only visits the nodes on the path of the Topic (plus wildcard branches),
+ * so the cost depends on the Topic depth instead of the total number of Subscriptions.
+ * <p/>
+ * Lookups are lock free, modifications are serialized.
+ */
+public class SubscriptionTrie {
+
+    // Topic level separator
+    private static final String SEPARATOR = "/";
+    // Single level wildcard
+    private static final String SINGLE_LEVEL = "+";
+    // Multi level wildcard
+    private static final String MULTI_LEVEL = "#";
+
+    // Root node, represents the position before the first Topic level
+    private final Node root = new Node(null, null);
+    // Subscriber ID <---> Subscribed Topics, used to clean up a subscriber
+    private final ConcurrentMap<String, Set<String>> subscriberTopics = new ConcurrentHashMap<>();
+
+    /**
+     * Rebuild the Trie with given Subscriptions
+     * Existing Subscriptions will be discarded.
+     *
+     * @param subscriptions Subscriptions, usually loaded from storage
+     */
+    public synchronized void rebuild(List<Subscription> subscriptions) {
+        root.children.clear();
+        root.subscriptions.clear();
+        subscriberTopics.clear();
+        for (Subscription subscription : subscriptions) {
+            put(subscription);
+        }
+    }
+
+    /**
+     * Add or update the Subscription
+     *
+     * @param subscription Subscription, Topic may contain wildcard
+     */
+    public synchronized void put(Subscription subscription) {
+        Node node = root;
+        for (String level : split(subscription.getTopic())) {
+            Node child = node.children.get(level);
+            if (child == null) {
+                child = new Node(node, level);
+                node.children.put(level, child);
+            }
+            node = child;
+        }
+        node.subscriptions.put(subscription.getSubscriberID(), subscription);
+
+        Set<String> topics = subscriberTopics.get(subscription.getSubscriberID());
+        if (topics == null) {
+            topics = new HashSet<>();
+            subscriberTopics.put(subscription.getSubscriberID(), topics);
+        }
+        topics.add(subscription.getTopic());
+    }
+
+    /**
+     * Remove the Subscription
+     *
+     * @param subscriberID Subscriber ID
+     * @param topic        Topic, may contain wildcard
+     */
+    public synchronized void remove(String subscriberID, String topic) {
+        Node node = root;
+        for (String level : split(topic)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return;
+            }
+        }
+        node.subscriptions.remove(subscriberID);
+        prune(node);
+
+        Set<String> topics = subscriberTopics.get(subscriberID);
+        if (topics != null) {
+            topics.remove(topic);
+            if (topics.isEmpty()) {
+                subscriberTopics.remove(subscriberID);
+            }
+        }
+    }
+
+    /**
+     * Remove all the Subscriptions of given subscriber
+     *
+     * @param subscriberID Subscriber ID
+     */
+    public synchronized void removeAll(String subscriberID) {
+        Set<String> topics = subscriberTopics.get(subscriberID);
+        if (topics != null) {
+            for (String topic : new ArrayList<>(topics)) {
+                remove(subscriberID, topic);
+            }
+        }
+    }
+
+    /**
+     * Get Subscriptions match given Topic
+     * TOPIC MUST NOT CONTAIN WILDCARD
+     * If a subscriber has multiple Subscriptions match the Topic, only the one with highest QoS Level is returned.
+     *
+     * @param topic Topic
+     * @return List of Subscription
+     */
+    public List<Subscription> match(String topic) {
+        Map<String, Subscription> result = new HashMap<>();
+        match(root, split(topic), 0, result);
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * Recursively collect the Subscriptions match the Topic levels start from given index
+     *
+     * @param node   Current node
+     * @param levels Topic levels
+     * @param index  Index of the level to be matched by node's children
+     * @param result Subscriber ID <---> Subscription
+     */
+    private void match(Node node, String[] levels, int index, Map<String, Subscription> result) {
+        // '#' matches the parent level and any number of child levels
+        Node multi = node.children.get(MULTI_LEVEL);
+        if (multi != null) {
+            collect(multi, result);
+        }
+        // All levels matched
+        if (index == levels.length) {
+            collect(node, result);
+            return;
+        }
+        Node exact = node.children.get(levels[index]);
+        if (exact != null) {
+            match(exact, levels, index + 1, result);
+        }
+        Node single = node.children.get(SINGLE_LEVEL);
+        if (single != null) {
+            match(single, levels, index + 1, result);
+        }
+    }
+
+    /**
+     * Add node's Subscriptions to result, keep the highest QoS Level for each subscriber
+     *
+     * @param node   Node
+     * @param result Subscriber ID <---> Subscription
+     */
+    private void collect(Node node, Map<String, Subscription> result) {
+        for (Subscription subscription : node.subscriptions.values()) {
+            Subscription exist = result.get(subscription.getSubscriberID());
+            if (exist == null || exist.getQosLevel() < subscription.getQosLevel()) {
+                result.put(subscription.getSubscriberID(), subscription);
+            }
+        }
+    }
+
+    /**
+     * Remove empty nodes from given node up to the root
+     *
+     * @param node Node
+     */
+    private void prune(Node node) {
+        while (node.parent != null && node.subscriptions.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.level);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Split Topic into levels, empty levels are kept
+     *
+     * @param topic Topic
+     * @return Topic levels
+     */
+    private static String[] split(String topic) {
+        return topic.split(SEPARATOR, -1);
+    }
+
+    /**
+     * Trie Node
+     */
+    private static class Node {
+        // Parent node
+        private final Node parent;
+        // Topic level of this node
+        private final String level;
+        // Topic level <---> Child node
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+        // Subscriber ID <---> Subscription end at this node
+        private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+        private Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+}
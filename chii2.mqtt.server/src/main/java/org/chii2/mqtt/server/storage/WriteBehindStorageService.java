@@ -0,0 +1,317 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-Behind Storage Service
+ * <p/>
+ * Decorates another Storage Service, queues In-Flight, QoS2 and Subscription changes in memory and
+ * applies them to the delegate in one batch when flushed. Flush happens at the end of each Disruptor
+ * batch, when the queue reaches the flush size, or periodically.
+ * <p/>
+ * Changes of the same record are coalesced, so a message acknowledged before flush never reaches the delegate.
+ * Reads of single record and In-Flight Messages of a subscriber are served from the pending changes over the
+ * delegate, other reads flush before query the delegate.
+ */
+public class WriteBehindStorageService implements StorageService {
+
+    // Delegate Storage
+    private final StorageService delegate;
+    // Max pending changes before flush
+    private final int flushSize;
+    // Interval to flush in milliseconds
+    private final long flushInterval;
+    // Pending changes, guarded by this
+    private Map<String, StorageMutation> pending = new LinkedHashMap<>();
+    // Changes being applied to the delegate, guarded by this
+    private Map<String, StorageMutation> flushing;
+    // Only one flush at a time
+    private final Object flushLock = new Object();
+    // Periodic flush scheduler
+    private ScheduledExecutorService scheduler;
+
+    // The Logger
+    private final Logger logger = LoggerFactory.getLogger(WriteBehindStorageService.class);
+
+    public WriteBehindStorageService(StorageService delegate, int flushSize, long flushInterval) {
+        this.delegate = delegate;
+        this.flushSize = flushSize;
+        this.flushInterval = flushInterval;
+    }
+
+    @Override
+    public void start() {
+        delegate.start();
+        if (flushInterval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        flush();
+        delegate.stop();
+    }
+
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            flushPending();
+        }
+        delegate.flush();
+    }
+
+    /**
+     * Apply the pending changes to the delegate, must hold the flush lock
+     */
+    protected void flushPending() {
+        List<StorageMutation> mutations;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            flushing = pending;
+            pending = new LinkedHashMap<>();
+            mutations = new ArrayList<>(flushing.values());
+        }
+        try {
+            delegate.applyBatch(mutations);
+            logger.debug("Flushed {} changes to storage.", mutations.size());
+        } finally {
+            synchronized (this) {
+                flushing = null;
+            }
+        }
+    }
+
+    @Override
+    public void applyBatch(List<StorageMutation> mutations) {
+        for (StorageMutation mutation : mutations) {
+            queue(mutation);
+        }
+    }
+
+    @Override
+    public int getNextMessageID() {
+        return delegate.getNextMessageID();
+    }
+
+    @Override
+    public int reserveMessageIDs(int count) {
+        return delegate.reserveMessageIDs(count);
+    }
+
+    @Override
+    public void clean(String clientID) {
+        // No flush in between, changes queued before clean can't be applied after it
+        synchronized (flushLock) {
+            flushPending();
+            delegate.clean(clientID);
+        }
+        delegate.flush();
+    }
+
+    @Override
+    public void putRetain(PublishMessage publishMessage) {
+        delegate.putRetain(publishMessage);
+    }
+
+    @Override
+    public PublishMessage getRetain(String topic) {
+        return delegate.getRetain(topic);
+    }
+
+    @Override
+    public List<PublishMessage> getRetainWildcard(String topic) {
+        return delegate.getRetainWildcard(topic);
+    }
+
+    @Override
+    public void removeRetain(String topic) {
+        delegate.removeRetain(topic);
+    }
+
+    @Override
+    public void putInFlight(String subscriberID, PublishMessage publishMessage) {
+        queue(StorageMutation.putInFlight(subscriberID, publishMessage));
+    }
+
+    @Override
+    public void putInFlights(List<String> subscriberIDs, PublishMessage publishMessage, int messageID) {
+        PublishMessage inFlightMessage = new PublishMessage(publishMessage);
+        inFlightMessage.setMessageID(messageID);
+        for (String subscriberID : subscriberIDs) {
+            queue(StorageMutation.putInFlight(subscriberID, inFlightMessage));
+        }
+    }
+
+    @Override
+    public List<PublishMessage> getInFlights(String subscriberID) {
+        // No flush in between, the pending changes are exactly those not applied to the delegate yet
+        synchronized (flushLock) {
+            Map<Integer, PublishMessage> messages = new LinkedHashMap<>();
+            for (PublishMessage message : delegate.getInFlights(subscriberID)) {
+                messages.put(message.getMessageID(), message);
+            }
+            synchronized (this) {
+                for (StorageMutation mutation : pending.values()) {
+                    if (mutation.getType() == StorageMutation.Type.PUT_INFLIGHT && subscriberID.equals(mutation.getClientID())) {
+                        messages.put(mutation.getMessageID(), copy(mutation.getPublishMessage()));
+                    } else if (mutation.getType() == StorageMutation.Type.REMOVE_INFLIGHT && subscriberID.equals(mutation.getClientID())) {
+                        messages.remove(mutation.getMessageID());
+                    }
+                }
+            }
+            return new ArrayList<>(messages.values());
+        }
+    }
+
+    @Override
+    public Map<String, List<Integer>> getAllInFlightIDs() {
+        flush();
+        return delegate.getAllInFlightIDs();
+    }
+
+    @Override
+    public PublishMessage getInFlight(String subscriberID, int messageID) {
+        StorageMutation mutation = lookup(StorageMutation.removeInFlight(subscriberID, messageID).getKey());
+        if (mutation == null) {
+            return delegate.getInFlight(subscriberID, messageID);
+        } else if (mutation.isRemove()) {
+            return null;
+        } else {
+            return copy(mutation.getPublishMessage());
+        }
+    }
+
+    @Override
+    public void removeInFlight(String subscriberID, int messageID) {
+        queue(StorageMutation.removeInFlight(subscriberID, messageID));
+    }
+
+    @Override
+    public void removeInFLightQoS0() {
+        flush();
+        delegate.removeInFLightQoS0();
+    }
+
+    @Override
+    public boolean containsInFlight(String subscriberID, int messageID) {
+        StorageMutation mutation = lookup(StorageMutation.removeInFlight(subscriberID, messageID).getKey());
+        return mutation == null ? delegate.containsInFlight(subscriberID, messageID) : !mutation.isRemove();
+    }
+
+    @Override
+    public void putQoS2(String publisherID, PublishMessage publishMessage) {
+        queue(StorageMutation.putQoS2(publisherID, publishMessage));
+    }
+
+    @Override
+    public boolean containsQoS2(String publisherID, int messageID) {
+        StorageMutation mutation = lookup(StorageMutation.removeQoS2(publisherID, messageID).getKey());
+        return mutation == null ? delegate.containsQoS2(publisherID, messageID) : !mutation.isRemove();
+    }
+
+    @Override
+    public void removeQoS2(String publisherID, int messageID) {
+        queue(StorageMutation.removeQoS2(publisherID, messageID));
+    }
+
+    @Override
+    public void putSubscription(Subscription subscription) {
+        queue(StorageMutation.putSubscription(subscription));
+    }
+
+    @Override
+    public boolean containsSubscription(String subscriberID, String topic) {
+        StorageMutation mutation = lookup(StorageMutation.removeSubscription(subscriberID, topic).getKey());
+        return mutation == null ? delegate.containsSubscription(subscriberID, topic) : !mutation.isRemove();
+    }
+
+    @Override
+    public void removeSubscription(String subscriberID, String topic) {
+        queue(StorageMutation.removeSubscription(subscriberID, topic));
+    }
+
+    @Override
+    public List<Subscription> getSubscriptions(String topic) {
+        flush();
+        return delegate.getSubscriptions(topic);
+    }
+
+    @Override
+    public List<Subscription> getAllSubscriptions() {
+        flush();
+        return delegate.getAllSubscriptions();
+    }
+
+    /**
+     * Queue the change, replace the pending change of the same record
+     * Flush if the queue is full.
+     *
+     * @param mutation StorageMutation
+     */
+    protected void queue(StorageMutation mutation) {
+        int size;
+        synchronized (this) {
+            String key = mutation.getKey();
+            pending.remove(key);
+            pending.put(key, mutation);
+            size = pending.size();
+        }
+        if (size >= flushSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Copy the pending message, it will be written to the delegate later
+     *
+     * @param message Pending Publish Message
+     * @return Publish Message
+     */
+    protected PublishMessage copy(PublishMessage message) {
+        return new PublishMessage(
+                message.isRetain(),
+                message.getQosLevel(),
+                false,
+                message.getTopicName(),
+                message.getMessageID(),
+                message.getContent() == null ? ByteBuffer.allocate(0) : message.getContent().duplicate());
+    }
+
+    /**
+     * Find the pending change of the record
+     *
+     * @param key Record key
+     * @return StorageMutation, null if no pending change
+     */
+    protected synchronized StorageMutation lookup(String key) {
+        StorageMutation mutation = pending.get(key);
+        if (mutation == null && flushing != null) {
+            mutation = flushing.get(key);
+        }
+        return mutation;
+    }
+}
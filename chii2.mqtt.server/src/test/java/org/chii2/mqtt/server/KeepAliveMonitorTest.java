@@ -0,0 +1,30 @@
+package org.chii2.mqtt.server;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.chii2.mqtt.server.storage.ClientSession;
+import org.testng.annotations.Test;
+
+/**
+ * Keep Alive Monitor Test
+ */
+public class KeepAliveMonitorTest {
+
+    @Test
+    public void checkTest() {
+        KeepAliveMonitor monitor = new KeepAliveMonitor();
+        ChannelInboundHandlerAdapter handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        ClientSession session = new ClientSession("Chii2-C8-60-00-E2-1D-60", channel.pipeline().context(handler), true, 10, true);
+        long last = session.getLastActivity();
+        // Timeout is one and a half times the Keep Alive period
+        assert monitor.check(session, last + 10000) == 5000;
+        assert monitor.check(session, last + 14999) == 1;
+        assert channel.isActive();
+        // Expired, connection closed and no longer monitored
+        assert monitor.check(session, last + 15000) == -1;
+        assert !channel.isActive();
+        assert monitor.check(session, last) == -1;
+        monitor.stop();
+    }
+}
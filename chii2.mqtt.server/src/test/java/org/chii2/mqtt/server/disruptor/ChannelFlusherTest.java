@@ -0,0 +1,47 @@
+package org.chii2.mqtt.server.disruptor;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PubAckMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.MQTTServerMetrics;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Channel Flusher Test
+ */
+public class ChannelFlusherTest {
+
+    @Test
+    public void flushTest() {
+        ChannelOutboundHandlerAdapter handler = new ChannelOutboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        ChannelHandlerContext context = channel.pipeline().context(handler);
+        MQTTServerMetrics metrics = new MQTTServerMetrics();
+        ChannelFlusher flusher = new ChannelFlusher(100, metrics.newCounters());
+        // Small messages wait for the end of batch
+        flusher.write(context, new PubAckMessage(1));
+        flusher.write(context, new PubAckMessage(2));
+        assert channel.readOutbound() == null;
+        flusher.flush();
+        assert ((PubAckMessage) channel.readOutbound()).getMessageID() == 1;
+        assert ((PubAckMessage) channel.readOutbound()).getMessageID() == 2;
+        // Threshold reached, flushed immediately
+        flusher.write(context, new PubAckMessage(3));
+        flusher.write(context, new PublishMessage(false, MQTTMessage.QoSLevel.LEAST_ONCE, false, "/SmartHome/Server", 4, ByteBuffer.allocate(100)));
+        assert ((PubAckMessage) channel.readOutbound()).getMessageID() == 3;
+        assert ((PublishMessage) channel.readOutbound()).getMessageID() == 4;
+        // Nothing pending
+        flusher.flush();
+        assert channel.readOutbound() == null;
+        // Counted by message type
+        assert metrics.getSent(MQTTMessage.MessageType.PUBACK) == 3;
+        assert metrics.getSentPublishMessages() == 1;
+        assert metrics.getSentMessages() == 4;
+        channel.finish();
+    }
+}
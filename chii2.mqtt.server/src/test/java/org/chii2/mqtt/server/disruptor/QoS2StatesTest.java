@@ -0,0 +1,49 @@
+package org.chii2.mqtt.server.disruptor;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * QoS2 States Test
+ */
+public class QoS2StatesTest {
+
+    private static final String CLIENT_ID = "Chii2-C8-60-00-E2-1D-60";
+    // Any other state value
+    private static final byte OTHER_STATE = 1;
+
+    @Test
+    public void stateTest() {
+        QoS2States states = new QoS2States();
+        assert states.get(CLIENT_ID, 1) == 0;
+        // Table grows and keeps all the states
+        for (int i = 1; i <= 1000; i++) {
+            states.set(CLIENT_ID, i * 61 % 65536, OTHER_STATE);
+        }
+        for (int i = 1; i <= 1000; i += 2) {
+            states.set(CLIENT_ID, i * 61 % 65536, QoS2States.PUBREC_RECEIVED);
+        }
+        for (int i = 1; i <= 1000; i++) {
+            assert states.get(CLIENT_ID, i * 61 % 65536) == (i % 2 == 1 ? QoS2States.PUBREC_RECEIVED : OTHER_STATE);
+        }
+        assert states.getMessageIDs(CLIENT_ID, QoS2States.PUBREC_RECEIVED).length == 500;
+        // Removed entries don't break the probe sequence of others
+        for (int i = 1; i <= 1000; i += 3) {
+            states.remove(CLIENT_ID, i * 61 % 65536);
+        }
+        for (int i = 1; i <= 1000; i++) {
+            byte expected = (i - 1) % 3 == 0 ? 0 : (i % 2 == 1 ? QoS2States.PUBREC_RECEIVED : OTHER_STATE);
+            assert states.get(CLIENT_ID, i * 61 % 65536) == expected;
+        }
+        // Message ID 65535 is a valid key
+        states.set(CLIENT_ID, 65535, QoS2States.PUBREC_RECEIVED);
+        int[] ids = states.getMessageIDs(CLIENT_ID, QoS2States.PUBREC_RECEIVED);
+        Arrays.sort(ids);
+        assert ids[ids.length - 1] == 65535;
+        // Clean session drops the whole table
+        states.clear(CLIENT_ID);
+        assert states.get(CLIENT_ID, 65535) == 0;
+        assert states.getMessageIDs(CLIENT_ID, QoS2States.PUBREC_RECEIVED).length == 0;
+    }
+}
@@ -0,0 +1,198 @@
+package org.chii2.mqtt.server.disruptor;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.server.MQTTServerConfiguration;
+import org.chii2.mqtt.server.MQTTServerMetrics;
+import org.chii2.mqtt.server.storage.MemoryStorageService;
+import org.chii2.mqtt.server.storage.MessageIDAllocator;
+import org.chii2.mqtt.server.storage.SessionRegistry;
+import org.chii2.mqtt.server.storage.SubscriptionTrie;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subscriber Queues Test
+ */
+public class SubscriberQueuesTest {
+
+    private static final String CLIENT_ID = "Chii2-C8-60-00-E2-1D-60";
+
+    @Test
+    public void overflowTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        MQTTServerConfiguration configuration = new MQTTServerConfiguration();
+        configuration.setMaxQueued(3);
+        MessageIDAllocator messageIDs = new MessageIDAllocator(storage, 1000);
+        MQTTServerMetrics metrics = new MQTTServerMetrics();
+        // Drop oldest
+        SubscriberQueues queues = createQueues(configuration, storage, messageIDs, metrics);
+        for (int i = 1; i <= 4; i++) {
+            assert queues.offer(CLIENT_ID, i);
+            storage.putInFlight(CLIENT_ID, createMessage(i));
+        }
+        assert queues.size(CLIENT_ID) == 3;
+        assert !storage.containsInFlight(CLIENT_ID, 1);
+        assert storage.containsInFlight(CLIENT_ID, 4);
+        // Drop newest, stored Messages are rebuilt from storage
+        configuration.setOverflowPolicy(MQTTServerConfiguration.OverflowPolicy.DROP_NEWEST);
+        queues = createQueues(configuration, storage, messageIDs, metrics);
+        queues.rebuild(storage.getAllInFlightIDs());
+        assert !queues.offer(CLIENT_ID, 5);
+        assert queues.size(CLIENT_ID) == 3;
+        assert metrics.getDroppedMessages() == 2;
+        // Room after acknowledged
+        storage.removeInFlight(CLIENT_ID, 2);
+        queues.complete(CLIENT_ID, 2);
+        assert queues.offer(CLIENT_ID, 5);
+    }
+
+    @Test
+    public void dropOldestTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        MQTTServerConfiguration configuration = new MQTTServerConfiguration();
+        configuration.setMaxQueued(2);
+        MQTTServerMetrics metrics = new MQTTServerMetrics();
+        SubscriberQueues queues = createQueues(configuration, storage, new MessageIDAllocator(storage, 1000), metrics);
+        assert queues.offer(CLIENT_ID, 1);
+        assert queues.offer(CLIENT_ID, 2);
+        // 1 is in flight, 2 is the oldest not sent
+        assert queues.tryDeliver(createEvent(1, 1), true);
+        assert queues.offer(CLIENT_ID, 3);
+        assert queues.tryDeliver(createEvent(3, 1), true);
+        // Everything stored is in flight, the new one is dropped
+        assert !queues.offer(CLIENT_ID, 4);
+        assert queues.size(CLIENT_ID) == 2;
+        assert metrics.getDroppedMessages() == 2;
+        // Nothing stored once the session discarded
+        queues.remove(CLIENT_ID);
+        assert queues.size(CLIENT_ID) == 0;
+    }
+
+    @Test
+    public void loadTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        MQTTServerConfiguration configuration = new MQTTServerConfiguration();
+        configuration.setMaxInFlight(1);
+        SubscriberQueues queues = createQueues(configuration, storage, new MessageIDAllocator(storage, 1000), new MQTTServerMetrics());
+        assert queues.offer(CLIENT_ID, 1);
+        assert queues.tryDeliver(createEvent(1, 1), true);
+        // Offered while the subscriber connecting
+        assert queues.offer(CLIENT_ID, 2);
+        assert !queues.tryDeliver(createEvent(2, 1), true);
+        // In-Flight Messages are merged and sent first, nothing offered meanwhile is lost
+        List<PublishMessage> inFlights = Collections.singletonList(createMessage(1));
+        queues.load(CLIENT_ID, inFlights);
+        assert queues.size(CLIENT_ID) == 2;
+        assert queues.tryDeliver(createEvent(1, 1), true);
+        assert !queues.tryDeliver(createEvent(2, 1), true);
+        queues.complete(CLIENT_ID, 1);
+        assert queues.tryDeliver(createEvent(2, 1), true);
+    }
+
+    @Test
+    public void expireTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        MQTTServerConfiguration configuration = new MQTTServerConfiguration();
+        configuration.setMaxInFlight(1);
+        SubscriberQueues queues = createQueues(configuration, storage, new MessageIDAllocator(storage, 1000), new MQTTServerMetrics());
+        assert queues.offer(CLIENT_ID, 1);
+        assert queues.offer(CLIENT_ID, 2);
+        assert queues.tryDeliver(createEvent(1, 1), true);
+        assert !queues.tryDeliver(createEvent(2, 1), true);
+        // 1 is never acknowledged, its place is freed after the retries and 2 has been pushed
+        queues.expire(CLIENT_ID, 1);
+        assert queues.tryDeliver(createEvent(2, 1), true);
+        // 1 is still stored, sent again when the subscriber connected again
+        assert queues.size(CLIENT_ID) == 2;
+        queues.complete(CLIENT_ID, 2);
+        queues.load(CLIENT_ID, Collections.singletonList(createMessage(1)));
+        assert queues.tryDeliver(createEvent(1, 1), true);
+    }
+
+    @Test
+    public void ringFullTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        MQTTServerConfiguration configuration = new MQTTServerConfiguration();
+        configuration.setMaxInFlight(10);
+        MessageIDAllocator messageIDs = new MessageIDAllocator(storage, 1000);
+        MQTTServerMetrics metrics = new MQTTServerMetrics();
+        SessionRegistry sessions = new SessionRegistry();
+        // Ring buffer only has room for 4 events
+        OutboundDisruptor disruptor = new OutboundDisruptor(configuration, storage, new SubscriptionTrie(), messageIDs, sessions, metrics) {
+            private int room = 4;
+
+            @Override
+            public boolean tryPushEvent(OutboundMQTTEventTranslator translator) {
+                return room-- > 0;
+            }
+        };
+        SubscriberQueues queues = new SubscriberQueues(configuration, storage, messageIDs, sessions, disruptor, metrics);
+        Map<String, List<Integer>> inFlightIDs = Collections.singletonMap(CLIENT_ID, Arrays.asList(1, 2, 3, 4, 5, 6));
+        queues.rebuild(inFlightIDs);
+        assert queues.size(CLIENT_ID) == 6;
+        List<PublishMessage> inFlights = Arrays.asList(createMessage(1), createMessage(2), createMessage(3), createMessage(4), createMessage(5), createMessage(6));
+        // Never blocks, the rest keep waiting in order
+        queues.load(CLIENT_ID, inFlights);
+        SubscriberQueues.Queue queue = queues.getQueue(CLIENT_ID);
+        synchronized (queue) {
+            assert queue.sent.size() == 4;
+            assert queue.waiting.keySet().iterator().next() == 5;
+            assert queue.retrying;
+        }
+        disruptor.stop();
+    }
+
+    @Test
+    public void windowTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        MQTTServerConfiguration configuration = new MQTTServerConfiguration();
+        configuration.setMaxInFlight(2);
+        SubscriberQueues queues = createQueues(configuration, storage, new MessageIDAllocator(storage, 1000), new MQTTServerMetrics());
+        for (int i = 1; i <= 4; i++) {
+            assert queues.offer(CLIENT_ID, i);
+        }
+        assert queues.tryDeliver(createEvent(1, 1), true);
+        // Not writable, wait
+        assert !queues.tryDeliver(createEvent(2, 1), false);
+        // Nobody waits ahead of it after drained, 2 has been pushed again
+        queues.resume(CLIENT_ID);
+        assert queues.tryDeliver(createEvent(2, 1), true);
+        // Window is full
+        assert !queues.tryDeliver(createEvent(3, 1), true);
+        assert !queues.tryDeliver(createEvent(4, 1), true);
+        // QoS 0 is not limited by the window
+        assert queues.tryDeliver(createEvent(5, 0), true);
+        // Acknowledged, 3 is pushed again and takes the place
+        queues.complete(CLIENT_ID, 1);
+        assert queues.tryDeliver(createEvent(3, 1), true);
+        assert !queues.tryDeliver(createEvent(4, 1), true);
+    }
+
+    private SubscriberQueues createQueues(MQTTServerConfiguration configuration, MemoryStorageService storage, MessageIDAllocator messageIDs, MQTTServerMetrics metrics) {
+        SessionRegistry sessions = new SessionRegistry();
+        OutboundDisruptor disruptor = new OutboundDisruptor(configuration, storage, new SubscriptionTrie(), messageIDs, sessions, metrics);
+        return new SubscriberQueues(configuration, storage, messageIDs, sessions, disruptor, metrics);
+    }
+
+    private OutboundMQTTEvent createEvent(int messageID, int qos) {
+        OutboundMQTTEvent event = new OutboundMQTTEvent();
+        event.setSubscriberID(CLIENT_ID);
+        event.setMessageID(messageID);
+        event.setQoS(qos);
+        event.setMessageType(MQTTMessage.MessageType.PUBLISH);
+        return event;
+    }
+
+    private PublishMessage createMessage(int messageID) {
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        buffer.put((byte) 1);
+        buffer.flip();
+        return new PublishMessage(false, MQTTMessage.QoSLevel.LEAST_ONCE, false, "/SmartHome/Server", messageID, buffer);
+    }
+}
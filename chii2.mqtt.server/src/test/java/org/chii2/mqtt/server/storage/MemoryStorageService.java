@@ -0,0 +1,245 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.chii2.mqtt.common.utils.MQTTUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Simple in-memory Storage Service used by the tests
+ * The storage modules depend on this module, so tests here can't use them.
+ */
+public class MemoryStorageService implements StorageService {
+
+    // Last Message ID
+    private int messageID = 0;
+    // Topic <---> Retain Message
+    private final Map<String, PublishMessage> retains = new HashMap<>();
+    // Subscriber ID <---> Message ID <---> In-Flight Message
+    private final Map<String, Map<Integer, PublishMessage>> inFlights = new HashMap<>();
+    // Publisher ID <---> QoS2 Message IDs
+    private final Map<String, Set<Integer>> qos2 = new HashMap<>();
+    // Subscriber ID <---> Topic <---> Subscription
+    private final Map<String, Map<String, Subscription>> subscriptions = new HashMap<>();
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public synchronized int getNextMessageID() {
+        return reserveMessageIDs(1);
+    }
+
+    @Override
+    public synchronized int reserveMessageIDs(int count) {
+        int first = MessageIDAllocator.wrap(messageID + 1);
+        messageID = MessageIDAllocator.wrap(messageID + count);
+        return first;
+    }
+
+    @Override
+    public synchronized void clean(String clientID) {
+        subscriptions.remove(clientID);
+        inFlights.remove(clientID);
+    }
+
+    @Override
+    public synchronized void putRetain(PublishMessage publishMessage) {
+        retains.put(publishMessage.getTopicName(), copy(publishMessage, publishMessage.getMessageID()));
+    }
+
+    @Override
+    public synchronized PublishMessage getRetain(String topic) {
+        PublishMessage retain = retains.get(topic);
+        return retain == null ? null : copy(retain, retain.getMessageID());
+    }
+
+    @Override
+    public synchronized List<PublishMessage> getRetainWildcard(String topic) {
+        List<PublishMessage> messages = new ArrayList<>();
+        for (PublishMessage retain : retains.values()) {
+            if (MQTTUtils.isTopicMatch(topic, retain.getTopicName(), false)) {
+                messages.add(copy(retain, retain.getMessageID()));
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void removeRetain(String topic) {
+        retains.remove(topic);
+    }
+
+    @Override
+    public synchronized void putInFlight(String subscriberID, PublishMessage publishMessage) {
+        getInFlightMap(subscriberID).put(publishMessage.getMessageID(), copy(publishMessage, publishMessage.getMessageID()));
+    }
+
+    @Override
+    public synchronized void putInFlights(List<String> subscriberIDs, PublishMessage publishMessage, int messageID) {
+        for (String subscriberID : subscriberIDs) {
+            getInFlightMap(subscriberID).put(messageID, copy(publishMessage, messageID));
+        }
+    }
+
+    @Override
+    public synchronized List<PublishMessage> getInFlights(String subscriberID) {
+        List<PublishMessage> messages = new ArrayList<>();
+        for (PublishMessage inFlight : getInFlightMap(subscriberID).values()) {
+            messages.add(copy(inFlight, inFlight.getMessageID()));
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized Map<String, List<Integer>> getAllInFlightIDs() {
+        Map<String, List<Integer>> result = new HashMap<>();
+        for (Map.Entry<String, Map<Integer, PublishMessage>> entry : inFlights.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                result.put(entry.getKey(), new ArrayList<>(entry.getValue().keySet()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized PublishMessage getInFlight(String subscriberID, int messageID) {
+        PublishMessage inFlight = getInFlightMap(subscriberID).get(messageID);
+        return inFlight == null ? null : copy(inFlight, messageID);
+    }
+
+    @Override
+    public synchronized void removeInFlight(String subscriberID, int messageID) {
+        getInFlightMap(subscriberID).remove(messageID);
+    }
+
+    @Override
+    public synchronized void removeInFLightQoS0() {
+        for (Map<Integer, PublishMessage> map : inFlights.values()) {
+            Iterator<PublishMessage> iterator = map.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getQosLevel() == MQTTMessage.QoSLevel.MOST_ONCE) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean containsInFlight(String subscriberID, int messageID) {
+        return getInFlightMap(subscriberID).containsKey(messageID);
+    }
+
+    @Override
+    public synchronized void putQoS2(String publisherID, PublishMessage publishMessage) {
+        Set<Integer> set = qos2.get(publisherID);
+        if (set == null) {
+            set = new HashSet<>();
+            qos2.put(publisherID, set);
+        }
+        set.add(publishMessage.getMessageID());
+    }
+
+    @Override
+    public synchronized boolean containsQoS2(String publisherID, int messageID) {
+        Set<Integer> set = qos2.get(publisherID);
+        return set != null && set.contains(messageID);
+    }
+
+    @Override
+    public synchronized void removeQoS2(String publisherID, int messageID) {
+        Set<Integer> set = qos2.get(publisherID);
+        if (set != null) {
+            set.remove(messageID);
+        }
+    }
+
+    @Override
+    public synchronized void putSubscription(Subscription subscription) {
+        Map<String, Subscription> map = subscriptions.get(subscription.getSubscriberID());
+        if (map == null) {
+            map = new HashMap<>();
+            subscriptions.put(subscription.getSubscriberID(), map);
+        }
+        map.put(subscription.getTopic(), subscription);
+    }
+
+    @Override
+    public synchronized boolean containsSubscription(String subscriberID, String topic) {
+        Map<String, Subscription> map = subscriptions.get(subscriberID);
+        return map != null && map.containsKey(topic);
+    }
+
+    @Override
+    public synchronized void removeSubscription(String subscriberID, String topic) {
+        Map<String, Subscription> map = subscriptions.get(subscriberID);
+        if (map != null) {
+            map.remove(topic);
+        }
+    }
+
+    @Override
+    public synchronized List<Subscription> getSubscriptions(String topic) {
+        List<Subscription> result = new ArrayList<>();
+        for (Subscription subscription : getAllSubscriptions()) {
+            if (MQTTUtils.isTopicMatch(subscription.getTopic(), topic, false)) {
+                result.add(new Subscription(topic, subscription.getSubscriberID(), subscription.getQosLevel()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<Subscription> getAllSubscriptions() {
+        List<Subscription> result = new ArrayList<>();
+        for (Map<String, Subscription> map : subscriptions.values()) {
+            result.addAll(map.values());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void applyBatch(List<StorageMutation> mutations) {
+        for (StorageMutation mutation : mutations) {
+            mutation.applyTo(this);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    private Map<Integer, PublishMessage> getInFlightMap(String subscriberID) {
+        Map<Integer, PublishMessage> map = inFlights.get(subscriberID);
+        if (map == null) {
+            map = new LinkedHashMap<>();
+            inFlights.put(subscriberID, map);
+        }
+        return map;
+    }
+
+    private static PublishMessage copy(PublishMessage message, int messageID) {
+        ByteBuffer content = ByteBuffer.allocate(0);
+        if (message.getContent() != null) {
+            ByteBuffer source = message.getContent().duplicate();
+            content = ByteBuffer.allocate(source.remaining());
+            content.put(source);
+            content.flip();
+        }
+        return new PublishMessage(message.isRetain(), message.getQosLevel(), false, message.getTopicName(), messageID, content);
+    }
+}
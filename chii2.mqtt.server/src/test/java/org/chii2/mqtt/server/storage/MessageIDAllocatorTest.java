@@ -0,0 +1,90 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message ID Allocator Test
+ */
+public class MessageIDAllocatorTest {
+
+    @Test
+    public void blockTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        storage.start();
+        MessageIDAllocator allocator = new MessageIDAllocator(storage, 10);
+        for (int i = 1; i <= 25; i++) {
+            assert allocator.next() == i;
+        }
+        // Only 3 blocks have been reserved from the storage
+        assert storage.getNextMessageID() == 31;
+        // Wrap around after 65535
+        storage.reserveMessageIDs(65535 - 31 - 5);
+        allocator = new MessageIDAllocator(storage, 10);
+        assert allocator.next() == 65531;
+        for (int i = 0; i < 4; i++) {
+            allocator.next();
+        }
+        assert allocator.next() == 1;
+        storage.stop();
+    }
+
+    @Test
+    public void outstandingTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        storage.start();
+        String clientID1 = "Chii2-C8-60-00-E2-1D-60";
+        String clientID2 = "Chii2-C8-60-00-E2-1D-61";
+        // In-Flight Messages from previous run
+        storage.putInFlight(clientID1, createMessage(2));
+        storage.putInFlight(clientID2, createMessage(3));
+        MessageIDAllocator allocator = new MessageIDAllocator(storage, 1000);
+        allocator.rebuild(storage.getAllInFlightIDs());
+        assert allocator.acquire(clientID1) == 1;
+        // 2 and 3 still outstanding for one of the subscribers
+        assert allocator.acquire(Arrays.asList(clientID1, clientID2)) == 4;
+        // Released ID can be reused after wrap around
+        allocator.release(clientID1, 2);
+        allocator.load(clientID2, storage.getInFlights(clientID2));
+        storage.reserveMessageIDs(65535 - 1000 - 1);
+        allocator = new MessageIDAllocator(storage, 1000);
+        allocator.load(clientID1, Arrays.asList(createMessage(1), createMessage(4)));
+        allocator.load(clientID2, storage.getInFlights(clientID2));
+        assert allocator.acquire(clientID1) == 65535;
+        assert allocator.acquire(clientID1) == 2;
+        assert allocator.acquire(Arrays.asList(clientID1, clientID2)) == 5;
+        storage.stop();
+    }
+
+    @Test
+    public void exhaustedTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        String clientID = "Chii2-C8-60-00-E2-1D-62";
+        List<Integer> messageIDs = new ArrayList<>();
+        for (int i = 1; i <= MessageIDAllocator.MAX_MESSAGE_ID; i++) {
+            messageIDs.add(i);
+        }
+        MessageIDAllocator allocator = new MessageIDAllocator(storage, 1000);
+        allocator.rebuild(Collections.singletonMap(clientID, messageIDs));
+        // Every Message ID is outstanding, rejected instead of reusing one
+        assert allocator.acquire(clientID) == 0;
+        // The only free Message ID is found
+        allocator.release(clientID, 777);
+        assert allocator.acquire(clientID) == 777;
+        assert allocator.acquire(clientID) == 0;
+    }
+
+    private PublishMessage createMessage(int messageID) {
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        buffer.put((byte) 1);
+        buffer.flip();
+        return new PublishMessage(false, MQTTMessage.QoSLevel.LEAST_ONCE, false, "/SmartHome/Server", messageID, buffer);
+    }
+}
@@ -0,0 +1,80 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * QoS2 Message Index Test
+ */
+public class QoS2IndexTest {
+
+    private static final String CLEAN_ID = "Chii2-C8-60-00-E2-1D-60";
+    private static final String PERSISTENT_ID = "Chii2-C8-60-00-E2-1D-61";
+
+    @Test
+    public void cleanSessionTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        QoS2Index index = new QoS2Index(storage);
+        index.connect(CLEAN_ID, true);
+        for (int i = 1; i <= 100; i++) {
+            index.put(CLEAN_ID, createMessage(i));
+        }
+        assert index.contains(CLEAN_ID, 1);
+        assert index.contains(CLEAN_ID, 100);
+        assert !index.contains(CLEAN_ID, 101);
+        // Only kept in memory
+        assert !storage.containsQoS2(CLEAN_ID, 1);
+        for (int i = 1; i <= 99; i++) {
+            index.remove(CLEAN_ID, i);
+        }
+        assert !index.contains(CLEAN_ID, 50);
+        assert index.contains(CLEAN_ID, 100);
+        // Reset when connected again
+        index.connect(CLEAN_ID, true);
+        assert !index.contains(CLEAN_ID, 100);
+        // Dropped when the connection closed
+        index.put(CLEAN_ID, createMessage(1));
+        index.disconnect(CLEAN_ID, true);
+        assert index.size() == 0;
+        assert !index.contains(CLEAN_ID, 1);
+    }
+
+    @Test
+    public void persistentSessionTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        QoS2Index index = new QoS2Index(storage);
+        index.connect(PERSISTENT_ID, false);
+        index.put(PERSISTENT_ID, createMessage(1));
+        index.put(PERSISTENT_ID, createMessage(2));
+        index.remove(PERSISTENT_ID, 2);
+        assert index.contains(PERSISTENT_ID, 1);
+        assert !index.contains(PERSISTENT_ID, 2);
+        // Written to storage
+        assert storage.containsQoS2(PERSISTENT_ID, 1);
+        assert !storage.containsQoS2(PERSISTENT_ID, 2);
+        // Kept while something is outstanding
+        index.disconnect(PERSISTENT_ID, false);
+        assert index.size() == 1;
+        assert index.contains(PERSISTENT_ID, 1);
+        // After restart, stored Message IDs are loaded from storage
+        index = new QoS2Index(storage);
+        index.connect(PERSISTENT_ID, false);
+        assert index.contains(PERSISTENT_ID, 1);
+        index.remove(PERSISTENT_ID, 1);
+        assert !index.contains(PERSISTENT_ID, 1);
+        assert !storage.containsQoS2(PERSISTENT_ID, 1);
+        // Nothing outstanding, dropped
+        index.disconnect(PERSISTENT_ID, false);
+        assert index.size() == 0;
+    }
+
+    private PublishMessage createMessage(int messageID) {
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        buffer.put((byte) 1);
+        buffer.flip();
+        return new PublishMessage(false, MQTTMessage.QoSLevel.EXACTLY_ONCE, false, "/SmartHome/Server", messageID, buffer);
+    }
+}
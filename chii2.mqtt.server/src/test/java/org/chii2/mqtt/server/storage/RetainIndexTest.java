@@ -0,0 +1,87 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Retain Message Index Test, evicted payloads are loaded from the storage
+ */
+public class RetainIndexTest {
+
+    @Test
+    public void matchTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        storage.start();
+        storage.putRetain(createMessage("/SmartHome/Server", 1));
+        storage.putRetain(createMessage("/SmartHome/Server/Temperature", 2));
+        storage.putRetain(createMessage("/SmartHome/Client/Temperature", 3));
+        storage.putRetain(createMessage("/Office/Server", 4));
+        RetainIndex index = new RetainIndex(storage, 1024);
+        index.rebuild(storage.getRetainWildcard("#"));
+
+        assert topics(index.match("#")).size() == 4;
+        assert topics(index.match("/SmartHome/Server")).contains("/SmartHome/Server");
+        assert index.match("/SmartHome/Server").get(0).getContent().get(0) == 1;
+        assert topics(index.match("/SmartHome/#")).size() == 3;
+        // '#' also matches the parent level
+        assert topics(index.match("/SmartHome/Server/#")).size() == 2;
+        assert topics(index.match("/+/Server")).size() == 2;
+        assert topics(index.match("/SmartHome/+/Temperature")).size() == 2;
+        assert index.match("/SmartHome/+").size() == 1;
+        assert index.match("/SmartHome/Office").isEmpty();
+
+        index.remove("/SmartHome/Server");
+        assert topics(index.match("/SmartHome/#")).size() == 2;
+        index.put(createMessage("/SmartHome/Server/Humidity", 5));
+        assert topics(index.match("/SmartHome/Server/+")).size() == 2;
+        storage.stop();
+    }
+
+    @Test
+    public void cacheTest() {
+        MemoryStorageService storage = new MemoryStorageService();
+        storage.start();
+        RetainIndex index = new RetainIndex(storage, 10);
+        // Each payload is 5 bytes, only 2 of them fit in cache
+        for (int i = 1; i <= 3; i++) {
+            PublishMessage message = createMessage("/SmartHome/Sensor" + i, i);
+            storage.putRetain(message);
+            index.put(message);
+        }
+        // Evicted payload is loaded from storage
+        List<PublishMessage> messages = index.match("/SmartHome/Sensor1");
+        assert messages.size() == 1;
+        assert messages.get(0).getContent().get(0) == 1;
+        assert messages.get(0).isRetain();
+        // Evicted and removed from storage, nothing to send
+        storage.removeRetain("/SmartHome/Sensor2");
+        assert index.match("/SmartHome/Sensor2").isEmpty();
+        assert index.match("/SmartHome/+").size() == 2;
+        storage.stop();
+    }
+
+    private Set<String> topics(List<PublishMessage> messages) {
+        Set<String> topics = new HashSet<>();
+        for (PublishMessage message : messages) {
+            topics.add(message.getTopicName());
+        }
+        return topics;
+    }
+
+    private PublishMessage createMessage(String topic, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        buffer.put((byte) value);
+        buffer.put((byte) 3);
+        buffer.put((byte) 5);
+        buffer.put((byte) 7);
+        buffer.put((byte) 9);
+        buffer.flip();
+        return new PublishMessage(true, MQTTMessage.QoSLevel.LEAST_ONCE, false, topic, value, buffer);
+    }
+}
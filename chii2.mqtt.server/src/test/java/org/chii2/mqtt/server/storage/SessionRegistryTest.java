@@ -0,0 +1,40 @@
+package org.chii2.mqtt.server.storage;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.testng.annotations.Test;
+
+/**
+ * Client Session Registry Test
+ */
+public class SessionRegistryTest {
+
+    private static final String CLIENT_ID = "Chii2-C8-60-00-E2-1D-60";
+
+    @Test
+    public void takeoverTest() {
+        SessionRegistry sessions = new SessionRegistry();
+        ClientSession session1 = new ClientSession(CLIENT_ID, createContext(), true, 0, true);
+        ClientSession session2 = new ClientSession(CLIENT_ID, createContext(), true, 0, true);
+        assert sessions.register(session1) == null;
+        assert sessions.get(CLIENT_ID) == session1;
+        assert session1.isActive();
+        // Same Client ID connected again, the previous session is returned
+        assert sessions.register(session2) == session1;
+        assert sessions.get(CLIENT_ID) == session2;
+        // Old session closing doesn't remove the new one
+        assert !sessions.remove(session1);
+        assert sessions.contains(CLIENT_ID);
+        assert sessions.remove(session2);
+        assert !sessions.contains(CLIENT_ID);
+        assert sessions.size() == 0;
+        assert !sessions.remove(null);
+    }
+
+    private ChannelHandlerContext createContext() {
+        ChannelInboundHandlerAdapter handler = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        return channel.pipeline().context(handler);
+    }
+}
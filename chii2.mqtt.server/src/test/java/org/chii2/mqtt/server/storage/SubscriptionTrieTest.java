@@ -0,0 +1,64 @@
+package org.chii2.mqtt.server.storage;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Subscription Trie Test
+ */
+public class SubscriptionTrieTest {
+
+    @Test
+    public void matchTest() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.put(new Subscription("/SmartHome/Server", "client1", 1));
+        trie.put(new Subscription("/SmartHome/+", "client2", 2));
+        trie.put(new Subscription("/SmartHome/#", "client3", 0));
+        trie.put(new Subscription("#", "client4", 1));
+        trie.put(new Subscription("+/SmartHome/Client", "client5", 1));
+        trie.put(new Subscription("finance/stock/#", "client6", 1));
+
+        assert trie.match("/SmartHome/Server").size() == 4;
+        assert trie.match("/SmartHome/Client").size() == 4;
+        assert trie.match("/SmartHome").size() == 2;
+        assert trie.match("/SmartHome/Server/Room").size() == 2;
+        assert trie.match("finance/stock").size() == 2;
+        assert trie.match("finance/stock/ibm").size() == 2;
+        assert trie.match("finance").size() == 1;
+    }
+
+    @Test
+    public void highestQoSTest() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.put(new Subscription("/SmartHome/Server", "client1", 0));
+        trie.put(new Subscription("/SmartHome/+", "client1", 2));
+        trie.put(new Subscription("/SmartHome/#", "client1", 1));
+
+        List<Subscription> results = trie.match("/SmartHome/Server");
+        assert results.size() == 1;
+        assert results.get(0).getQosLevel() == 2;
+    }
+
+    @Test
+    public void removeTest() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.rebuild(Arrays.asList(
+                new Subscription("/SmartHome/Server", "client1", 1),
+                new Subscription("/SmartHome/#", "client1", 1),
+                new Subscription("/SmartHome/Server", "client2", 1)));
+        assert trie.match("/SmartHome/Server").size() == 2;
+
+        trie.remove("client2", "/SmartHome/Server");
+        assert trie.match("/SmartHome/Server").size() == 1;
+        assert trie.match("/SmartHome/Client").size() == 1;
+
+        trie.removeAll("client1");
+        assert trie.match("/SmartHome/Server").isEmpty();
+        assert trie.match("/SmartHome/Client").isEmpty();
+
+        trie.put(new Subscription("/SmartHome/Server", "client2", 1));
+        assert trie.match("/SmartHome/Server").size() == 1;
+    }
+}
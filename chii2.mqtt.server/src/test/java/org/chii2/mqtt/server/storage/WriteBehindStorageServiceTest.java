@@ -0,0 +1,128 @@
+package org.chii2.mqtt.server.storage;
+
+import org.chii2.mqtt.common.message.MQTTMessage;
+import org.chii2.mqtt.common.message.PublishMessage;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-Behind Storage Service Test
+ */
+public class WriteBehindStorageServiceTest {
+
+    @Test
+    public void overlayTest() {
+        BatchRecorder delegate = new BatchRecorder();
+        WriteBehindStorageService storage = new WriteBehindStorageService(delegate, 1000, 0);
+        storage.start();
+        String clientID = "Chii2-C8-60-00-E2-1D-5E";
+
+        storage.putInFlight(clientID, createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, 1111));
+        storage.putQoS2(clientID, createMessage(MQTTMessage.QoSLevel.EXACTLY_ONCE, 2222));
+        storage.putSubscription(new Subscription("/SmartHome/#", clientID, 1));
+        // Pending changes are visible
+        assert storage.containsInFlight(clientID, 1111);
+        assert storage.getInFlight(clientID, 1111).getContent().get(3) == 7;
+        assert storage.containsQoS2(clientID, 2222);
+        assert storage.containsSubscription(clientID, "/SmartHome/#");
+        // But not applied to the delegate yet
+        assert !delegate.containsInFlight(clientID, 1111);
+        assert !delegate.containsQoS2(clientID, 2222);
+        assert delegate.batches.isEmpty();
+
+        storage.removeInFlight(clientID, 1111);
+        assert !storage.containsInFlight(clientID, 1111);
+        assert storage.getInFlight(clientID, 1111) == null;
+
+        storage.flush();
+        assert delegate.batches.size() == 1;
+        assert delegate.batches.get(0) == 3;
+        assert !delegate.containsInFlight(clientID, 1111);
+        assert delegate.containsQoS2(clientID, 2222);
+        assert delegate.containsSubscription(clientID, "/SmartHome/#");
+
+        // Nothing pending, nothing to apply
+        storage.flush();
+        assert delegate.batches.size() == 1;
+
+        // Pending message without content
+        PublishMessage empty = new PublishMessage();
+        empty.setTopicName("/SmartHome/Server");
+        empty.setQosLevel(MQTTMessage.QoSLevel.LEAST_ONCE);
+        empty.setMessageID(3333);
+        storage.putInFlight(clientID, empty);
+        assert !storage.getInFlight(clientID, 3333).hasContent();
+        assert storage.getInFlights(clientID).size() == 1;
+        storage.stop();
+    }
+
+    @Test
+    public void flushTest() {
+        BatchRecorder delegate = new BatchRecorder();
+        WriteBehindStorageService storage = new WriteBehindStorageService(delegate, 10, 0);
+        storage.start();
+        String clientID = "Chii2-C8-60-00-E2-1D-5F";
+
+        for (int i = 1; i <= 25; i++) {
+            storage.putInFlight(clientID, createMessage(MQTTMessage.QoSLevel.LEAST_ONCE, i));
+        }
+        // Flushed when the queue is full
+        assert delegate.batches.size() == 2;
+        // Bulk read merges the pending changes, no flush
+        storage.removeInFlight(clientID, 1);
+        storage.removeInFlight(clientID, 25);
+        List<PublishMessage> inFlights = storage.getInFlights(clientID);
+        assert inFlights.size() == 23;
+        assert inFlights.get(0).getMessageID() == 2;
+        assert inFlights.get(22).getMessageID() == 24;
+        assert inFlights.get(22).getContent().get(3) == 7;
+        assert delegate.batches.size() == 2;
+
+        // Clean flushes first, then the delegate cleans
+        storage.putSubscription(new Subscription("/SmartHome/#", clientID, 1));
+        storage.clean(clientID);
+        assert !storage.containsSubscription(clientID, "/SmartHome/#");
+        assert storage.getInFlights(clientID).isEmpty();
+        assert delegate.batches.size() == 3;
+
+        // Stop flushes the pending changes
+        storage.putQoS2(clientID, createMessage(MQTTMessage.QoSLevel.EXACTLY_ONCE, 2222));
+        storage.stop();
+        assert delegate.containsQoS2(clientID, 2222);
+    }
+
+    private PublishMessage createMessage(MQTTMessage.QoSLevel qos, int messageID) {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put((byte) 1);
+        buffer.put((byte) 3);
+        buffer.put((byte) 5);
+        buffer.put((byte) 7);
+        buffer.put((byte) 9);
+        buffer.flip();
+        return new PublishMessage(
+                false,
+                qos,
+                false,
+                "/SmartHome/Server",
+                messageID,
+                buffer
+        );
+    }
+
+    /**
+     * Memory storage records the size of each batch
+     */
+    private static class BatchRecorder extends MemoryStorageService {
+
+        final List<Integer> batches = new ArrayList<>();
+
+        @Override
+        public void applyBatch(List<StorageMutation> mutations) {
+            batches.add(mutations.size());
+            super.applyBatch(mutations);
+        }
+    }
+}